@@ -0,0 +1,176 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Admission {
+    /**
+     * Who gets to connect, and how fast they may talk once they have.
+     * Connections are counted at accept(), against a server-wide cap and a cap
+     * per remote address, before any TLS work is spent on them. Every client
+     * then gets token buckets for commands and for command bytes, and shares a
+     * second pair with everyone else from its address, so opening more sockets
+     * doesn't buy a flooder more throughput. It's all atomics and CAS loops,
+     * the only map work is at connect and disconnect.
+     */
+
+    private final ServerConfig config;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, Peer> peers = new ConcurrentHashMap<>();
+    private final LongAdder rejectedGlobal;
+    private final LongAdder rejectedPerAddress;
+    private final LongAdder rejectedCommands;
+    private final LongAdder rejectedBytes;
+
+    // everyone connected from one address
+    static class Peer {
+        final InetAddress address;
+        final AtomicInteger connections = new AtomicInteger(); // -1 once it's been dropped from the map
+        final TokenBucket commands;
+        final TokenBucket bytes;
+
+        Peer(InetAddress address, ServerConfig config) {
+            this.address = address;
+            this.commands = TokenBucket.of(config.getAddressCommandRate(), config.getAddressCommandBurst());
+            this.bytes = TokenBucket.of(config.getAddressByteRate(), config.getAddressByteBurst());
+        }
+
+        // nobody connected and nothing owed, so forgetting it loses nothing
+        boolean isIdle() {
+            return connections.get() == 0 && (commands == null || commands.isFull())
+                    && (bytes == null || bytes.isFull());
+        }
+    }
+
+    // one connection's limits, plus its share of its address's
+    public class Limits {
+        private final Peer peer; // null if it didn't come through admit() (the benchmark's fake clients)
+        private final TokenBucket commands;
+        private final TokenBucket bytes;
+
+        Limits(Peer peer) {
+            this.peer = peer;
+            this.commands = TokenBucket.of(config.getCommandRate(), config.getCommandBurst());
+            this.bytes = TokenBucket.of(config.getByteRate(), config.getByteBurst());
+        }
+
+        // may this connection run a command of length bytes right now. all or nothing: when
+        // one bucket says no, what the others gave is put back, so a refused command costs
+        // neither this connection nor its address anything
+        public boolean allowCommand(int length) {
+            TokenBucket peerCommands = peer != null ? peer.commands : null;
+            TokenBucket peerBytes = peer != null ? peer.bytes : null;
+            if (!take(commands, 1)) {
+                rejectedCommands.increment();
+                return false;
+            }
+            if (!take(peerCommands, 1)) {
+                giveBack(commands, 1);
+                rejectedCommands.increment();
+                return false;
+            }
+            if (!take(bytes, length)) {
+                giveBack(commands, 1);
+                giveBack(peerCommands, 1);
+                rejectedBytes.increment();
+                return false;
+            }
+            if (!take(peerBytes, length)) {
+                giveBack(commands, 1);
+                giveBack(peerCommands, 1);
+                giveBack(bytes, length);
+                rejectedBytes.increment();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    public Admission(ServerConfig config, ServerStats stats) {
+        this.config = config;
+        this.rejectedGlobal = stats.counter("admission.rejected.global");
+        this.rejectedPerAddress = stats.counter("admission.rejected.perAddress");
+        this.rejectedCommands = stats.counter("ratelimit.rejected.commands");
+        this.rejectedBytes = stats.counter("ratelimit.rejected.bytes");
+        stats.gauge("admission.connections", connections::get);
+        stats.gauge("admission.addresses", peers::size);
+    }
+
+    // a new socket from address was just accepted: count it, or say no (and count that)
+    public boolean admit(InetAddress address) {
+        int max = config.getMaxConnections();
+        while (true) {
+            int n = connections.get();
+            if (max > 0 && n >= max) {
+                rejectedGlobal.increment();
+                return false;
+            }
+            if (connections.compareAndSet(n, n + 1)) {
+                break;
+            }
+        }
+
+        int maxPerAddress = config.getMaxConnectionsPerAddress();
+        while (true) {
+            Peer peer = peers.computeIfAbsent(address, a -> new Peer(a, config));
+            int n = peer.connections.get();
+            if (n < 0) {
+                peers.remove(address, peer); // being dropped by sweep(), make a new one
+                continue;
+            }
+            if (maxPerAddress > 0 && n >= maxPerAddress) {
+                connections.decrementAndGet();
+                rejectedPerAddress.increment();
+                return false;
+            }
+            if (peer.connections.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // the limits for a connection from address (after admit() let it in)
+    public Limits limits(SocketAddress address) {
+        Peer peer = null;
+        if (address instanceof InetSocketAddress) {
+            peer = peers.get(((InetSocketAddress) address).getAddress());
+        }
+        return new Limits(peer);
+    }
+
+    // an admitted connection has closed
+    public void release(Limits limits) {
+        if (limits.peer != null) {
+            release(limits.peer.address);
+        }
+    }
+
+    // same, for a connection that never got as far as having limits
+    public void release(InetAddress address) {
+        Peer peer = peers.get(address);
+        if (peer != null) {
+            peer.connections.decrementAndGet();
+        }
+        connections.decrementAndGet();
+    }
+
+    // forget addresses that have nobody connected and full buckets. kept until then so
+    // reconnecting doesn't hand a flooder a fresh bucket; run now and then by the server
+    public void sweep() {
+        for (Peer peer : peers.values()) {
+            if (peer.isIdle() && peer.connections.compareAndSet(0, -1)) {
+                peers.remove(peer.address, peer);
+            }
+        }
+    }
+
+    private static boolean take(TokenBucket bucket, long n) {
+        return bucket == null || bucket.tryTake(n);
+    }
+
+    private static void giveBack(TokenBucket bucket, long n) {
+        if (bucket != null) {
+            bucket.giveBack(n);
+        }
+    }
+}
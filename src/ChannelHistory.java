@@ -0,0 +1,146 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ChannelHistory {
+    /**
+     * The last few messages said in each channel, for people who join later.
+     * Every channel gets a ring of the CHAN frames that were broadcast in it,
+     * kept as the exact bytes that went out, so replaying them is just queueing
+     * the same arrays again. A ring is capped in messages and in bytes, and
+     * all rings together in bytes: when they go over, whole channels are
+     * dropped, the ones that have been quiet longest first. History is kept
+     * by channel name and outlives the channel itself, so a channel that
+     * empties and fills up again still has it. Each ring has its own lock,
+     * the only thing every message touches is one byte counter.
+     */
+
+    private static final int FRAME_OVERHEAD = 16; // roughly what an array costs besides its bytes
+
+    private final int maxMessages;
+    private final long maxChannelBytes;
+    private final long maxTotalBytes;
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder evicted;
+
+    // one channel's recent messages, oldest at head
+    private static final class Ring {
+        final String channel;
+        final byte[][] frames;
+        int head;
+        int count;
+        long bytes;
+        volatile long lastActive;
+        boolean dropped; // evicted, a new ring has to be made for the channel
+
+        Ring(String channel, int size) {
+            this.channel = channel;
+            this.frames = new byte[size][];
+        }
+    }
+
+    public ChannelHistory(ServerConfig config, ServerStats stats) {
+        this.maxMessages = config.getHistorySize();
+        this.maxChannelBytes = config.getHistoryChannelBytes();
+        this.maxTotalBytes = config.getHistoryTotalBytes();
+        this.evicted = stats.counter("history.evicted");
+        stats.gauge("history.bytes", totalBytes::get);
+        stats.gauge("history.channels", rings::size);
+    }
+
+    // remember a frame broadcast in channel. it's shared with the write queues, so it's
+    // kept as it is and never modified
+    public void add(String channel, byte[] frame) {
+        if (maxMessages <= 0) {
+            return;
+        }
+        long size = frame.length + FRAME_OVERHEAD;
+        long delta;
+        while (true) {
+            Ring ring = rings.computeIfAbsent(channel, name -> new Ring(name, maxMessages));
+            synchronized (ring) {
+                if (ring.dropped) {
+                    continue; // evicted under us, the next computeIfAbsent makes a fresh one
+                }
+                byte[][] frames = ring.frames;
+                if (ring.count == frames.length) {
+                    delta = -dropOldest(ring);
+                } else {
+                    delta = 0;
+                }
+                frames[(ring.head + ring.count) % frames.length] = frame;
+                ring.count++;
+                ring.bytes += size;
+                delta += size;
+                // the per channel byte cap, the newest message always stays
+                while (ring.bytes > maxChannelBytes && ring.count > 1) {
+                    delta -= dropOldest(ring);
+                }
+                ring.lastActive = System.nanoTime();
+            }
+            break;
+        }
+        if (totalBytes.addAndGet(delta) > maxTotalBytes) {
+            evictQuietest();
+        }
+    }
+
+    // the last n frames said in channel, oldest first (fewer if there aren't that many)
+    public List<byte[]> last(String channel, int n) {
+        Ring ring = rings.get(channel);
+        if (ring == null || n <= 0) {
+            return Collections.emptyList();
+        }
+        synchronized (ring) {
+            int k = Math.min(n, ring.count);
+            List<byte[]> frames = new ArrayList<>(k);
+            for (int i = ring.count - k; i < ring.count; i++) {
+                frames.add(ring.frames[(ring.head + i) % ring.frames.length]);
+            }
+            return frames;
+        }
+    }
+
+    private static long dropOldest(Ring ring) {
+        byte[] frame = ring.frames[ring.head];
+        ring.frames[ring.head] = null;
+        ring.head = (ring.head + 1) % ring.frames.length;
+        ring.count--;
+        long size = frame.length + FRAME_OVERHEAD;
+        ring.bytes -= size;
+        return size;
+    }
+
+    // over the global cap: drop whole channels, least recently active first, until we're
+    // a bit under it (so the next few messages don't each start another scan). one
+    // thread at a time, the others carry on and go over for a moment
+    private void evictQuietest() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long target = maxTotalBytes - maxTotalBytes / 10;
+            while (totalBytes.get() > target) {
+                Ring quietest = null;
+                for (Ring ring : rings.values()) {
+                    if (quietest == null || ring.lastActive - quietest.lastActive < 0) {
+                        quietest = ring;
+                    }
+                }
+                if (quietest == null) {
+                    return;
+                }
+                synchronized (quietest) {
+                    quietest.dropped = true;
+                    totalBytes.addAndGet(-quietest.bytes);
+                }
+                rings.remove(quietest.channel, quietest);
+                evicted.increment();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
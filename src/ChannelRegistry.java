@@ -0,0 +1,132 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ChannelRegistry {
+    /**
+     * Keeps track of which users are in which channel.
+     * Users and channels are referred to by small int ids, and memberships are
+     * stored as sorted int arrays (see IntSets) in both directions: channel ->
+     * members and user -> joined channels. There is no global lock: a channel's
+     * member set only changes inside ConcurrentHashMap.compute on its own entry,
+     * a user's joined set is swapped with compare-and-set, and readers just
+     * grab the current array.
+     */
+
+    // a channel and its current members, the array is replaced on every change
+    public static final class Channel {
+        private final int id;
+        private final String name;
+        private volatile int[] members = IntSets.EMPTY;
+
+        Channel(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        // snapshot of the member ids, safe to iterate while people join and leave
+        public int[] members() {
+            return members;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+    private final IdTable<Channel> channelsById = new IdTable<>();
+    private final IdTable<AtomicReference<int[]>> joinedByUser = new IdTable<>();
+
+    // add a user to a channel, creating the channel if needed
+    public void join(String channel, int userId) {
+        // checked first, a bad id would be published as a member nobody can ever part
+        if (userId < 0) {
+            throw new IllegalArgumentException("Bad user id " + userId);
+        }
+        channels.compute(channel, (name, ch) -> {
+            if (ch == null) {
+                ch = channelsById.allocateWith(id -> new Channel(id, name));
+            }
+            int[] members = ch.members;
+            int[] updated = IntSets.add(members, userId);
+            if (updated != members) {
+                ch.members = updated;
+                int channelId = ch.id;
+                joined(userId).updateAndGet(ids -> IntSets.add(ids, channelId));
+            }
+            return ch;
+        });
+    }
+
+    // remove a user from a channel, returns false if they weren't in it.
+    // an empty channel is dropped inside the same compute, so a JOIN racing with
+    // the last PART either lands before the removal or creates a fresh channel
+    public boolean part(String channel, int userId) {
+        boolean[] removed = new boolean[1];
+        channels.computeIfPresent(channel, (name, ch) -> {
+            int[] members = ch.members;
+            int[] updated = IntSets.remove(members, userId);
+            if (updated != members) {
+                removed[0] = true;
+                ch.members = updated;
+                int channelId = ch.id;
+                joined(userId).updateAndGet(ids -> IntSets.remove(ids, channelId));
+            }
+            if (updated.length == 0) {
+                channelsById.release(ch.id);
+                return null;
+            }
+            return ch;
+        });
+        return removed[0];
+    }
+
+    // check if a user is in a specific channel
+    public boolean isMember(String channel, int userId) {
+        Channel ch = channels.get(channel);
+        return ch != null && IntSets.contains(ch.members, userId);
+    }
+
+    // same check by channel id, using the user's side of the index
+    public boolean isMember(int channelId, int userId) {
+        AtomicReference<int[]> ids = joinedByUser.get(userId);
+        return ids != null && IntSets.contains(ids.get(), channelId);
+    }
+
+    // the channel with this name, or null if it doesn't exist
+    public Channel get(String channel) {
+        return channels.get(channel);
+    }
+
+    // the channels a user is currently in
+    public List<String> channelsOf(int userId) {
+        List<String> names = new ArrayList<>();
+        AtomicReference<int[]> ids = joinedByUser.get(userId);
+        if (ids != null) {
+            for (int channelId : ids.get()) {
+                Channel ch = channelsById.get(channelId);
+                if (ch != null) {
+                    names.add(ch.name);
+                }
+            }
+        }
+        return names;
+    }
+
+    public List<String> channelNames() {
+        return new ArrayList<>(channels.keySet());
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+    private AtomicReference<int[]> joined(int userId) {
+        return joinedByUser.getOrCreate(userId, () -> new AtomicReference<>(IntSets.EMPTY));
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+public class ChannelShards {
+    /**
+     * Gives every channel an owner thread. Channels are split over a few shard
+     * threads by a hash of their name, and everything that changes a channel
+     * or broadcasts in it (JOIN, PART, CHAN and the like) is posted to its
+     * shard's lock-free queue instead of running on whichever handler thread
+     * or event loop read the command. A channel's member set and history
+     * ring then only ever have one writer, seeing its commands in the order
+     * they were posted, and the fan-out of busy channels runs on the shards,
+     * spread over the cores, instead of holding up the event loops. Any
+     * thread can still read a channel (membership checks, USERS, LIST) the
+     * way it always could. With no shards a task just runs on the caller's
+     * thread.
+     */
+
+    private final Shard[] shards;
+
+    // one owner thread and its queue of tasks, any thread may add to it
+    private static final class Shard implements Runnable {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean parked = new AtomicBoolean();
+        volatile boolean running = true;
+        Thread thread;
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            // only the first post after it went to sleep pays for the wakeup
+            if (parked.get() && parked.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    // say we're going to sleep before the last look, so a post can't slip in between
+                    parked.set(true);
+                    if (tasks.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    parked.set(false);
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.error("[SERVER] Channel task failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // count threads, 0 to run everything on the caller
+    public ChannelShards(int count) {
+        shards = new Shard[Math.max(0, count)];
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = new Shard();
+            shard.thread = new Thread(shard, "channel-shard-" + i);
+            shard.thread.setDaemon(true);
+            shard.thread.start();
+            shards[i] = shard;
+        }
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    // which shard owns a channel
+    public int shardOf(String channel) {
+        return shards.length == 0 ? 0 : (channel.hashCode() & 0x7fffffff) % shards.length;
+    }
+
+    // run task on the channel's shard, after everything posted there before it
+    public void execute(String channel, Runnable task) {
+        if (shards.length == 0) {
+            task.run();
+        } else {
+            shards[shardOf(channel)].execute(task);
+        }
+    }
+
+    // run perShard on every shard, with its number. for what touches channels on every
+    // shard, like a user leaving all of theirs
+    public void forEachShard(IntConsumer perShard) {
+        if (shards.length == 0) {
+            perShard.accept(0);
+            return;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            int index = i;
+            shards[i].execute(() -> perShard.accept(index));
+        }
+    }
+
+    // run task once every shard has run what was posted to it before now
+    public void afterAll(Runnable task) {
+        if (shards.length == 0) {
+            task.run();
+            return;
+        }
+        AtomicInteger left = new AtomicInteger(shards.length);
+        for (Shard shard : shards) {
+            shard.execute(() -> {
+                if (left.decrementAndGet() == 0) {
+                    task.run();
+                }
+            });
+        }
+    }
+
+    // tasks still waiting, for STATS (counting walks the queues, fine for now and then)
+    public long pending() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.tasks.size();
+        }
+        return total;
+    }
+
+    public void stop() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+    }
+}
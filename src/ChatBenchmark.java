@@ -0,0 +1,1222 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class ChatBenchmark {
+    /**
+     * Small benchmark harness for the chat server.
+     * Each scenario starts what it needs in this JVM and prints plain numbers,
+     * e.g. "java -cp bin ChatBenchmark connect nio 2000".
+     */
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+
+        switch (args[0]) {
+            case "connect":
+                // connect <thread|virtual|nio> [connections]
+                benchConnect(ServerConfig.Mode.valueOf(arg(args, 1, "thread").toUpperCase()),
+                        Integer.parseInt(arg(args, 2, "1000")));
+                break;
+            case "fanout":
+                // fanout [messages]
+                benchFanout(Integer.parseInt(arg(args, 1, "2000")));
+                break;
+            case "channels":
+                // channels [ops per thread]
+                benchChannels(Integer.parseInt(arg(args, 1, "200000")));
+                break;
+            case "shards":
+                // shards [milliseconds per shard count]
+                benchShards(Integer.parseInt(arg(args, 1, "2000")));
+                break;
+            case "disconnect":
+                // disconnect [channels]
+                benchDisconnect(Integer.parseInt(arg(args, 1, "50000")));
+                break;
+            case "members":
+                // members [users] [channels per user]
+                benchMembers(Integer.parseInt(arg(args, 1, "20000")), Integer.parseInt(arg(args, 2, "10")));
+                break;
+            case "relay":
+                // relay <thread|nio> [megabytes...]
+                long[] sizes = new long[Math.max(1, args.length - 2)];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = Long.parseLong(arg(args, i + 2, "64")) << 20;
+                }
+                benchRelay(ServerConfig.Mode.valueOf(arg(args, 1, "thread").toUpperCase()), sizes);
+                break;
+            case "mux":
+                // mux <thread|nio> [megabytes]
+                benchMux(ServerConfig.Mode.valueOf(arg(args, 1, "thread").toUpperCase()),
+                        Long.parseLong(arg(args, 2, "256")) << 20);
+                break;
+            case "log":
+                // log [threads] [lines per thread]
+                benchLog(Integer.parseInt(arg(args, 1, "4")), Integer.parseInt(arg(args, 2, "200000")));
+                break;
+            case "parse":
+                // parse [milliseconds per measurement]
+                benchParse(Integer.parseInt(arg(args, 1, "500")));
+                break;
+            case "handshake":
+                // handshake <thread|nio> [connections]
+                benchHandshake(ServerConfig.Mode.valueOf(arg(args, 1, "thread").toUpperCase()),
+                        Integer.parseInt(arg(args, 2, "200")));
+                break;
+            case "ratelimit":
+                // ratelimit [milliseconds per measurement]
+                benchRateLimit(Integer.parseInt(arg(args, 1, "500")));
+                break;
+            case "timers":
+                // timers [connections]
+                benchTimers(Integer.parseInt(arg(args, 1, "100000")));
+                break;
+            case "journal":
+                // journal [milliseconds per policy]
+                benchJournal(Integer.parseInt(arg(args, 1, "2000")));
+                break;
+            case "search":
+                // search [messages]
+                benchSearch(Integer.parseInt(arg(args, 1, "1000000")));
+                break;
+            case "compress":
+                // compress [messages]
+                benchCompress(Integer.parseInt(arg(args, 1, "20000")));
+                break;
+            default:
+                usage();
+        }
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java ChatBenchmark <scenario> [args]");
+        System.out.println("  connect <thread|virtual|nio> [connections]  - connect rate and memory per connection");
+        System.out.println("  fanout [messages]                            - broadcast CPU per message vs channel size");
+        System.out.println("  channels [ops per thread]                    - JOIN/PART throughput, threads on different channels");
+        System.out.println("  shards [ms per shard count]                  - CHAN messages/s with channels owned by 0-8 shard threads");
+        System.out.println("  disconnect [channels]                        - cost of removing a user who is in 3 channels");
+        System.out.println("  members [users] [channels per user]          - heap per membership and broadcast cost");
+        System.out.println("  parse [ms per measurement]                   - command lines parsed per second, by command");
+        System.out.println("  handshake <thread|nio> [connections]         - full vs resumed TLS handshake latency");
+        System.out.println("  ratelimit [ms per measurement]               - token bucket checks per second, own vs shared bucket");
+        System.out.println("  timers [connections]                         - idle timeout schedule/re-arm/cancel cost, wheel vs scheduled pool");
+        System.out.println("  journal [ms per policy]                      - journal appends/s by fsync policy, and indexed reads");
+        System.out.println("  search [messages]                            - search index throughput, size per message, query latency by terms");
+        System.out.println("  compress [messages]                          - DEFLATE ratio and CPU per message, by level");
+        System.out.println("  log [threads] [lines per thread]             - caller cost of logging, println vs ServerLog");
+        System.out.println("  relay <thread|nio> [megabytes...]            - file relay throughput and server heap growth");
+        System.out.println("  mux <thread|nio> [megabytes]                 - chat latency at a receiver while a file streams to it");
+    }
+
+    private static String arg(String[] args, int index, String defaultValue) {
+        return args.length > index ? args[index] : defaultValue;
+    }
+
+    // open lots of idle logged-in connections and see what they cost the server
+    private static void benchConnect(ServerConfig.Mode mode, int connections) throws Exception {
+        int port = startServer(mode);
+        SSLSocketFactory factory = clientFactory();
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // connect from a few client threads, each login is handshake + greeting + NICK
+        List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger nextId = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(16);
+        long start = System.nanoTime();
+        List<Future<?>> done = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            done.add(clients.submit(() -> {
+                Socket socket = factory.createSocket("localhost", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                readUntil(in, "INFO");
+                out.println("NICK u" + nextId.getAndIncrement());
+                readUntil(in, "OK NICK");
+                sockets.add(socket);
+                return null;
+            }));
+        }
+        for (Future<?> f : done) {
+            f.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        clients.shutdown();
+
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        System.out.println("mode=" + mode.name().toLowerCase() + " connections=" + connections);
+        System.out.printf("connect rate:      %.0f logins/s%n", connections / (elapsed / 1e9));
+        System.out.printf("heap per conn:     %.1f KB (server and client side together)%n",
+                (heapAfter - heapBefore) / 1024.0 / connections);
+        System.out.println("platform threads:  " + threadsBefore + " -> " + threadsAfter);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    // CPU per broadcast message: encoding for every member vs encoding once and sharing
+    private static void benchFanout(int messages) {
+        String line = "CHAN #general someone " + "the quick brown fox jumps over the lazy dog ".repeat(2) + "\n";
+        ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+        System.out.println("members   per-member encode   encode once   (CPU us per message)");
+
+        for (int members : new int[] { 10, 100, 1000, 5000 }) {
+            OutboundQueue[] queues = new OutboundQueue[members];
+            for (int i = 0; i < members; i++) {
+                queues[i] = new OutboundQueue(messages + 1, OutboundQueue.Policy.DROP_OLDEST, 0, null, null);
+            }
+            int rounds = Math.max(1, messages * 10 / members);
+
+            // warm up both paths first so the JIT has done its thing
+            fanout(queues, line, rounds, false);
+            fanout(queues, line, rounds, true);
+
+            long t0 = cpu.getCurrentThreadCpuTime();
+            fanout(queues, line, rounds, false);
+            long t1 = cpu.getCurrentThreadCpuTime();
+            fanout(queues, line, rounds, true);
+            long t2 = cpu.getCurrentThreadCpuTime();
+
+            System.out.printf("%7d   %17.1f   %11.1f%n", members, (t1 - t0) / 1e3 / rounds, (t2 - t1) / 1e3 / rounds);
+        }
+    }
+
+    private static void fanout(OutboundQueue[] queues, String line, int rounds, boolean encodeOnce) {
+        for (int r = 0; r < rounds; r++) {
+            if (encodeOnce) {
+                byte[] frame = line.getBytes(StandardCharsets.UTF_8);
+                for (OutboundQueue q : queues) {
+                    q.offer(frame);
+                }
+            } else {
+                for (OutboundQueue q : queues) {
+                    q.offer(line.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            // pretend the writers kept up
+            for (OutboundQueue q : queues) {
+                q.poll();
+            }
+        }
+    }
+
+    // the old design for comparison: every membership change behind one server-wide lock
+    private static class GlobalLockRegistry extends ChannelRegistry {
+        @Override
+        public synchronized void join(String channel, int userId) {
+            super.join(channel, userId);
+        }
+
+        @Override
+        public synchronized boolean part(String channel, int userId) {
+            return super.part(channel, userId);
+        }
+
+        @Override
+        public synchronized boolean isMember(String channel, int userId) {
+            return super.isMember(channel, userId);
+        }
+    }
+
+    // many threads doing JOIN / membership check / PART, each on its own channel
+    private static void benchChannels(int opsPerThread) throws Exception {
+        System.out.println("threads   global lock   per-channel compute   (million ops/s)");
+        for (int threads : new int[] { 1, 2, 4, 8, 16 }) {
+            // warm-up round, then the measured one
+            hammerChannels(new GlobalLockRegistry(), threads, opsPerThread / 4);
+            hammerChannels(new ChannelRegistry(), threads, opsPerThread / 4);
+            double locked = hammerChannels(new GlobalLockRegistry(), threads, opsPerThread);
+            double striped = hammerChannels(new ChannelRegistry(), threads, opsPerThread);
+            System.out.printf("%7d   %11.2f   %19.2f%n", threads, locked, striped);
+        }
+    }
+
+    private static double hammerChannels(ChannelRegistry registry, int threads, int opsPerThread)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String channel = "#bench" + t;
+            done.add(pool.submit(() -> {
+                go.await();
+                for (int i = 0; i < opsPerThread; i += 3) {
+                    int userId = i & 63;
+                    registry.join(channel, userId);
+                    registry.isMember(channel, userId);
+                    registry.part(channel, userId);
+                }
+                return null;
+            }));
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        for (Future<?> f : done) {
+            f.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return (double) threads * opsPerThread / (elapsed / 1e3);
+    }
+
+    // CHAN traffic through ChatServer the way handleChan does it (history, then broadcast)
+    // from 8 threads standing in for event loops, into 64 channels of 50 members with no
+    // real connections. 0 shards is the old way, every sender does its own fan-out
+    private static void benchShards(int millis) throws Exception {
+        ServerLog.setLevel(ServerLog.Level.WARN);
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores, 8 senders, 64 channels of 50");
+        shardRun(0, millis / 2);
+        shardRun(4, millis / 2);
+        System.out.println("shards   messages/s   deliveries/s");
+        for (int shardCount : new int[] { 0, 1, 2, 4, 8 }) {
+            double messages = shardRun(shardCount, millis);
+            System.out.printf("%6d   %10.0f   %12.0f%n", shardCount, messages, messages * 49);
+        }
+    }
+
+    private static double shardRun(int shardCount, int millis) throws Exception {
+        int channelCount = 64;
+        int members = 50;
+        int window = 4096; // messages posted and not yet delivered, so the queues can't grow forever
+        ChatServer server = new ChatServer(0, null, new ServerConfig().setChannelShards(shardCount)
+                .setOutboundCapacity(4).setSlowConsumerPolicy(OutboundQueue.Policy.DROP_OLDEST));
+        for (int i = 0; i < channelCount * members; i++) {
+            server.registerClient("u" + i, new ClientHandler(new Socket(), server));
+            server.joinChannel("#c" + (i % channelCount), "u" + i);
+        }
+
+        Semaphore inFlight = new Semaphore(window);
+        LongAdder delivered = new LongAdder();
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        Thread[] senders = new Thread[8];
+        for (int t = 0; t < senders.length; t++) {
+            senders[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                String text = "a typical chat line of about a hundred bytes, give or take a word or two";
+                try {
+                    while (System.nanoTime() < deadline) {
+                        int c = random.nextInt(channelCount);
+                        String channel = "#c" + c;
+                        String nickname = "u" + (c + channelCount * random.nextInt(members));
+                        inFlight.acquire();
+                        server.onChannel(channel, () -> {
+                            byte[] frame = ("CHAN " + channel + " " + nickname + " " + text + "\n")
+                                    .getBytes(StandardCharsets.UTF_8);
+                            server.keepChannelMessage(channel, frame, text);
+                            server.broadcastToChannel(channel, frame, nickname);
+                            delivered.increment();
+                            inFlight.release();
+                        });
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread sender : senders) {
+            sender.start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        inFlight.acquire(window); // everything posted has been delivered
+        double seconds = (System.nanoTime() - start) / 1e9;
+        server.shutdown();
+        return delivered.sum() / seconds;
+    }
+
+    // removing a user from a server with lots of channels, most of which they aren't in,
+    // the way a disconnect does it (ChatServer.removeFromAllChannels, then unregisterClient)
+    private static void benchDisconnect(int channelCount) throws IOException {
+        ServerLog.setLevel(ServerLog.Level.WARN);
+        ChatServer server = new ChatServer(0, null, new ServerConfig().setOutboundCapacity(4)
+                .setSlowConsumerPolicy(OutboundQueue.Policy.DROP_OLDEST));
+        for (int i = 0; i < 100; i++) {
+            server.registerClient("u" + i, new ClientHandler(new Socket(), server));
+        }
+        for (int i = 0; i < channelCount; i++) {
+            server.joinChannel("#c" + i, "u" + (i % 100));
+        }
+        int users = 10000;
+        ClientHandler[] handlers = new ClientHandler[users];
+        for (int u = 0; u < users; u++) {
+            handlers[u] = new ClientHandler(new Socket(), server);
+        }
+        long start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            String nickname = "d" + u;
+            server.registerClient(nickname, handlers[u]);
+            for (int c = 0; c < 3; c++) {
+                server.joinChannel("#c" + ((u * 7 + c * 13) % channelCount), nickname);
+            }
+            server.removeFromAllChannels(nickname);
+            server.unregisterClient(nickname);
+        }
+        long elapsed = System.nanoTime() - start;
+        server.shutdown();
+        System.out.printf("channels=%d: %.2f us per join x3 + disconnect%n", channelCount, elapsed / 1e3 / users);
+    }
+
+    // memory per channel membership, and the cost of one broadcast to a big channel,
+    // measured through ChatServer with handlers that have no real connection
+    private static void benchMembers(int users, int channelsPerUser) throws IOException {
+        ChatServer server = new ChatServer(0, null, new ServerConfig().setOutboundCapacity(4)
+                .setSlowConsumerPolicy(OutboundQueue.Policy.DROP_OLDEST));
+        String[] nicknames = new String[users];
+        String[] channelNames = new String[users / 10];
+        for (int i = 0; i < channelNames.length; i++) {
+            channelNames[i] = "#c" + i;
+        }
+        for (int i = 0; i < users; i++) {
+            nicknames[i] = "u" + i;
+            server.registerClient(nicknames[i], new ClientHandler(new Socket(), server));
+        }
+
+        long before = usedHeap();
+        for (int i = 0; i < users; i++) {
+            for (int c = 0; c < channelsPerUser; c++) {
+                server.joinChannel(channelNames[(i + c * 37) % channelNames.length], nicknames[i]);
+            }
+        }
+        long after = usedHeap();
+        long memberships = (long) users * channelsPerUser;
+        System.out.printf("memberships=%d: %.1f bytes per membership%n", memberships,
+                (double) (after - before) / memberships);
+
+        // one big channel everybody is in
+        for (String nickname : nicknames) {
+            server.joinChannel("#everyone", nickname);
+        }
+        byte[] frame = "CHAN #everyone u0 hello\n".getBytes(StandardCharsets.UTF_8);
+        ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 200; i++) {
+            server.broadcastToChannel("#everyone", frame, "u0");
+        }
+        int rounds = 500;
+        long t0 = cpu.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) {
+            server.broadcastToChannel("#everyone", frame, "u0");
+        }
+        long t1 = cpu.getCurrentThreadCpuTime();
+        System.out.printf("broadcast to %d members: %.1f us CPU (%.1f ns per member)%n", users,
+                (t1 - t0) / 1e3 / rounds, (double) (t1 - t0) / rounds / users);
+    }
+
+    // send files of the given sizes from one client to another through the server, checking
+    // that every byte arrives and watching how much heap the transfer takes
+    private static void benchRelay(ServerConfig.Mode mode, long[] sizes) throws Exception {
+        ServerLog.setLevel(ServerLog.Level.ERROR);
+        int port = startServer(mode);
+        SSLSocketFactory factory = clientFactory();
+        Socket sender = login(factory, port, "sender");
+        Socket receiver = login(factory, port, "receiver");
+        InputStream senderIn = new BufferedInputStream(sender.getInputStream());
+        InputStream receiverIn = new BufferedInputStream(receiver.getInputStream());
+        OutputStream senderOut = sender.getOutputStream();
+
+        System.out.println("mode=" + mode.name().toLowerCase());
+        System.out.println("     size      MB/s   peak heap growth");
+        for (long size : sizes) {
+            long baseline = usedHeap();
+            AtomicLong peak = new AtomicLong(baseline);
+            AtomicBoolean sampling = new AtomicBoolean(true);
+            Thread sampler = new Thread(() -> {
+                Runtime rt = Runtime.getRuntime();
+                while (sampling.get()) {
+                    peak.accumulateAndGet(rt.totalMemory() - rt.freeMemory(), Math::max);
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            sampler.start();
+
+            // the receiver reads on its own thread while we upload
+            CRC32 received = new CRC32();
+            Future<Long> download = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }).submit(() -> {
+                readAsciiLine(receiverIn, "FILEOFFER");
+                long length = Long.parseLong(readAsciiLine(receiverIn, "FILEDATA").substring(9).trim());
+                byte[] buf = new byte[64 * 1024];
+                long left = length;
+                while (left > 0) {
+                    int n = receiverIn.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n < 0) {
+                        throw new EOFException("receiver connection closed");
+                    }
+                    received.update(buf, 0, n);
+                    left -= n;
+                }
+                return length;
+            });
+
+            long start = System.nanoTime();
+            senderOut.write(("FILE receiver bench.bin " + size + "\n").getBytes(StandardCharsets.UTF_8));
+            senderOut.flush();
+            readAsciiLine(senderIn, "OK FILE");
+            CRC32 sent = new CRC32();
+            byte[] chunk = new byte[64 * 1024];
+            new Random(size).nextBytes(chunk);
+            for (long left = size; left > 0;) {
+                int n = (int) Math.min(chunk.length, left);
+                senderOut.write(chunk, 0, n);
+                sent.update(chunk, 0, n);
+                left -= n;
+            }
+            senderOut.flush();
+            readAsciiLine(senderIn, "OK FILE");
+            long length = download.get();
+            long elapsed = System.nanoTime() - start;
+            sampling.set(false);
+            sampler.join();
+
+            String check = length == size && sent.getValue() == received.getValue() ? "" : "  (DATA MISMATCH)";
+            System.out.printf("%6d MB   %7.1f   %8.1f MB%s%n", size >> 20, size / 1048576.0 / (elapsed / 1e9),
+                    (peak.get() - baseline) / 1048576.0, check);
+        }
+        sender.close();
+        receiver.close();
+    }
+
+    // a third user chats to the receiver while a file streams to it, once with FILE and once
+    // with FILESTART/FILECHUNK, and we see how long the chat lines take to get through
+    private static void benchMux(ServerConfig.Mode mode, long size) throws Exception {
+        ServerLog.setLevel(ServerLog.Level.ERROR);
+        int port = startServer(mode);
+        SSLSocketFactory factory = clientFactory();
+        Socket sender = login(factory, port, "sender");
+        Socket receiver = login(factory, port, "receiver");
+        Socket chatter = login(factory, port, "chatter");
+        InputStream senderIn = new BufferedInputStream(sender.getInputStream());
+        InputStream receiverIn = new BufferedInputStream(receiver.getInputStream());
+        OutputStream receiverOut = receiver.getOutputStream();
+        OutputStream senderOut = new BufferedOutputStream(sender.getOutputStream(), 128 * 1024);
+        OutputStream chatterOut = chatter.getOutputStream();
+        byte[] chunk = new byte[64 * 1024];
+        new Random(size).nextBytes(chunk);
+        CRC32 chunkCrc = new CRC32();
+        chunkCrc.update(chunk);
+
+        System.out.println("mode=" + mode.name().toLowerCase() + " file=" + (size >> 20) + " MB");
+        System.out.println("transfer      MB/s   chat lines   p50 ms   max ms");
+        for (boolean multiplexed : new boolean[] { false, true }) {
+            // the receiver reads everything, timing each chat line on arrival
+            List<Long> latencies = new ArrayList<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    byte[] buf = new byte[64 * 1024];
+                    while (true) {
+                        String line = readAsciiLine(receiverIn, "");
+                        long skip = 0;
+                        if (line.startsWith("FILEDATA ")) {
+                            skip = Long.parseLong(line.substring(9).trim());
+                        } else if (line.startsWith("FILECHUNK ")) {
+                            skip = Long.parseLong(line.split(" ")[3]);
+                        } else if (line.startsWith("FILESTART ")) {
+                            // a fresh download, start at 0
+                            receiverOut.write(("FILERESUME " + line.split(" ")[1] + " 0\n")
+                                    .getBytes(StandardCharsets.UTF_8));
+                        } else if (line.startsWith("FILEEND ")) {
+                            receiverOut.write(("FILEDONE " + line.substring(8) + "\n").getBytes(StandardCharsets.UTF_8));
+                        } else if (line.startsWith("MSG chatter last")) {
+                            return;
+                        } else if (line.startsWith("MSG chatter ")) {
+                            latencies.add(System.nanoTime() - Long.parseLong(line.substring(12)));
+                        }
+                        while (skip > 0) {
+                            int n = receiverIn.read(buf, 0, (int) Math.min(buf.length, skip));
+                            if (n < 0) {
+                                return;
+                            }
+                            skip -= n;
+                        }
+                    }
+                } catch (IOException e) {
+                    // connection gone, the numbers so far are all we get
+                }
+            });
+            reader.start();
+
+            // a chat line every 20ms until the upload is done
+            AtomicBoolean uploading = new AtomicBoolean(true);
+            Thread pinger = new Thread(() -> {
+                try {
+                    while (uploading.get()) {
+                        chatterOut.write(("MSG receiver " + System.nanoTime() + "\n").getBytes(StandardCharsets.UTF_8));
+                        Thread.sleep(20);
+                    }
+                    chatterOut.write("MSG receiver last\n".getBytes(StandardCharsets.UTF_8));
+                } catch (IOException | InterruptedException e) {
+                    // stop pinging
+                }
+            });
+            pinger.start();
+
+            long start = System.nanoTime();
+            if (multiplexed) {
+                senderOut.write(("FILESTART 1 receiver bench.bin " + size + "\n").getBytes(StandardCharsets.UTF_8));
+                senderOut.flush();
+                long credit = Long.parseLong(readAsciiLine(senderIn, "OK FILESTART").split(" ")[3]);
+                readAsciiLine(senderIn, "FILERESUME");
+                for (long left = size; left > 0;) {
+                    int n = (int) Math.min(chunk.length, left);
+                    String crc = Long.toHexString(n == chunk.length ? chunkCrc.getValue() : crcOf(chunk, n));
+                    // FILEACKs only come when we ask for them, so read them when we run out
+                    while (credit < n) {
+                        String ack = readAsciiLine(senderIn, "FILEACK");
+                        credit += Long.parseLong(ack.substring(ack.lastIndexOf(' ') + 1));
+                    }
+                    senderOut.write(("FILECHUNK 1 " + (size - left) + " " + n + " " + crc + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    senderOut.write(chunk, 0, n);
+                    senderOut.flush();
+                    credit -= n;
+                    left -= n;
+                }
+                readAsciiLine(senderIn, "OK FILEEND");
+            } else {
+                senderOut.write(("FILE receiver bench.bin " + size + "\n").getBytes(StandardCharsets.UTF_8));
+                senderOut.flush();
+                readAsciiLine(senderIn, "OK FILE");
+                for (long left = size; left > 0;) {
+                    int n = (int) Math.min(chunk.length, left);
+                    senderOut.write(chunk, 0, n);
+                    left -= n;
+                }
+                senderOut.flush();
+                readAsciiLine(senderIn, "OK FILE");
+            }
+            long elapsed = System.nanoTime() - start;
+            uploading.set(false);
+            pinger.join();
+            reader.join();
+
+            Collections.sort(latencies);
+            double p50 = latencies.isEmpty() ? 0 : latencies.get(latencies.size() / 2) / 1e6;
+            double max = latencies.isEmpty() ? 0 : latencies.get(latencies.size() - 1) / 1e6;
+            System.out.printf("%-11s %6.1f   %10d   %6.1f   %6.1f%n", multiplexed ? "FILECHUNK" : "FILE",
+                    size / 1048576.0 / (elapsed / 1e9), latencies.size(), p50, max);
+        }
+        sender.close();
+        receiver.close();
+        chatter.close();
+    }
+
+    private static long crcOf(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+
+    private static Socket login(SSLSocketFactory factory, int port, String nickname) throws IOException {
+        Socket socket = factory.createSocket("localhost", port);
+        InputStream in = socket.getInputStream();
+        readAsciiLine(in, "INFO");
+        socket.getOutputStream().write(("NICK " + nickname + "\n").getBytes(StandardCharsets.UTF_8));
+        readAsciiLine(in, "OK NICK");
+        return socket;
+    }
+
+    // read lines a byte at a time until one starts with prefix, so nothing past it is consumed
+    static String readAsciiLine(InputStream in, String prefix) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                if (sb.toString().startsWith(prefix)) {
+                    return sb.toString();
+                }
+                sb.setLength(0);
+            } else {
+                sb.append((char) b);
+            }
+        }
+        throw new EOFException("connection closed while waiting for " + prefix);
+    }
+
+    // reconnect cost: every client with a fresh SSLContext (a full handshake each time) vs
+    // one shared context like ChatClient's, which resumes its session after the first
+    private static void benchHandshake(ServerConfig.Mode mode, int connections) throws Exception {
+        ChatServer server = startServer(new ServerConfig().setMode(mode).unlimited());
+        ServerStats stats = server.getStats();
+        System.out.println("clients         client ms/connect   server full   server resumed   server us/handshake");
+
+        SSLContext shared = Tls.newClientContext();
+        handshakes(server.getPort(), shared, 20); // warm-up, and the shared context gets its session
+        for (boolean resume : new boolean[] { false, true }) {
+            long full = stats.get("tls.handshakes.full");
+            long resumed = stats.get("tls.handshakes.resumed");
+            long micros = stats.get("tls.handshakes.fullMicros") + stats.get("tls.handshakes.resumedMicros");
+
+            long elapsed = handshakes(server.getPort(), resume ? shared : null, connections);
+            Thread.sleep(200); // the server's counters trail the clients a little
+
+            full = stats.get("tls.handshakes.full") - full;
+            resumed = stats.get("tls.handshakes.resumed") - resumed;
+            micros = stats.get("tls.handshakes.fullMicros") + stats.get("tls.handshakes.resumedMicros") - micros;
+            System.out.printf("%-14s  %17.2f   %11d   %14d   %19.0f%n", resume ? "shared context" : "fresh context",
+                    elapsed / 1e6 / connections, full, resumed, (double) micros / Math.max(1, full + resumed));
+        }
+    }
+
+    // connect, wait for the greeting (so the session ticket has been read) and hang up.
+    // a null context means a new one for every connection. returns the total nanos
+    private static long handshakes(int port, SSLContext context, int connections) throws Exception {
+        long total = 0;
+        for (int i = 0; i < connections; i++) {
+            SSLContext c = context != null ? context : Tls.newClientContext();
+            long start = System.nanoTime();
+            try (Socket socket = c.getSocketFactory().createSocket("localhost", port)) {
+                socket.setTcpNoDelay(true);
+                readAsciiLine(socket.getInputStream(), "WELCOME");
+            }
+            total += System.nanoTime() - start;
+        }
+        return total;
+    }
+
+    // what a rate limit check costs: every thread with its own bucket (a connection's) vs
+    // all of them on one bucket (everyone from the same address). the buckets are set
+    // high enough that nothing is refused, so this is the accounting alone
+    private static void benchRateLimit(int millis) throws Exception {
+        System.out.println("threads   own bucket   shared bucket   (million checks/s)");
+        for (int threads : new int[] { 1, 2, 4, 8 }) {
+            double own = 0;
+            double shared = 0;
+            for (int i = 0; i < 3; i++) {
+                own = Math.max(own, hammerBuckets(threads, millis, false));
+                shared = Math.max(shared, hammerBuckets(threads, millis, true));
+            }
+            System.out.printf("%7d   %10.1f   %13.1f%n", threads, own, shared);
+        }
+    }
+
+    private static double hammerBuckets(int threads, int millis, boolean shared) throws Exception {
+        TokenBucket common = new TokenBucket(1_000_000_000L, 1_000_000_000L);
+        LongAdder checks = new LongAdder();
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            TokenBucket bucket = shared ? common : new TokenBucket(1_000_000_000L, 1_000_000_000L);
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                do {
+                    for (int i = 0; i < 1000; i++) {
+                        bucket.tryTake(1);
+                    }
+                    n += 1000;
+                } while (System.nanoTime() < deadline);
+                checks.add(n);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return checks.sum() / (millis * 1e3);
+    }
+
+    // what a per-connection idle timeout costs with many connections: scheduling one each,
+    // re-arming all of them (cancel and schedule again, what activity used to cost) and
+    // cancelling them at disconnect, on the timer wheel vs a ScheduledThreadPoolExecutor
+    private static void benchTimers(int connections) throws Exception {
+        System.out.println("timer       schedule ns/op   re-arm ns/op   cancel ns/op   heap MB");
+        for (int round = 0; round < 3; round++) {
+            boolean last = round == 2; // the first two are warm-up
+            TimerWheel wheel = new TimerWheel(100, 512);
+            wheel.start("bench-wheel");
+            timerRun("wheel", connections, last,
+                    task -> wheel.schedule(task, 60_000 + ThreadLocalRandom.current().nextInt(60_000)),
+                    timeout -> ((TimerWheel.Timeout) timeout).cancel());
+            wheel.stop();
+
+            ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1);
+            pool.setRemoveOnCancelPolicy(true);
+            timerRun("scheduled", connections, last,
+                    task -> pool.schedule(task, 60_000 + ThreadLocalRandom.current().nextInt(60_000),
+                            TimeUnit.MILLISECONDS),
+                    timeout -> ((ScheduledFuture<?>) timeout).cancel(false));
+            pool.shutdownNow();
+        }
+    }
+
+    private static void timerRun(String name, int connections, boolean print,
+            java.util.function.Function<Runnable, Object> schedule,
+            java.util.function.Consumer<Object> cancel) {
+        Runnable task = () -> {
+        };
+        Object[] timeouts = new Object[connections];
+        long heapBefore = usedHeap();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            timeouts[i] = schedule.apply(task);
+        }
+        long t1 = System.nanoTime();
+        long heap = usedHeap() - heapBefore;
+        for (int i = 0; i < connections; i++) {
+            cancel.accept(timeouts[i]);
+            timeouts[i] = schedule.apply(task);
+        }
+        long t2 = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            cancel.accept(timeouts[i]);
+        }
+        long t3 = System.nanoTime();
+        if (print) {
+            System.out.printf("%-9s   %14.0f   %12.0f   %12.0f   %7.1f%n", name, (double) (t1 - t0) / connections,
+                    (double) (t2 - t1) / connections, (double) (t3 - t2) / connections, heap / 1e6);
+        }
+    }
+
+    // sustained journal appends from 4 threads under each fsync policy: fire and forget
+    // (what the server does) and waiting for every message to be on the disk, which is
+    // where group commit matters. then random reads, found through the sparse index
+    private static void benchJournal(int millis) throws Exception {
+        byte[] message = "CHAN #general someone a typical chat line of about a hundred bytes, give or take a word\n"
+                .getBytes(StandardCharsets.UTF_8);
+        ServerLog.setLevel(ServerLog.Level.WARN);
+        System.out.println("fsync      wait   appends/s    fsyncs/s   us/fsync   MB/s");
+        for (Journal.Fsync fsync : Journal.Fsync.values()) {
+            for (boolean wait : new boolean[] { false, true }) {
+                File dir = Files.createTempDirectory("bench-journal").toFile();
+                ServerStats stats = new ServerStats();
+                Journal journal = Journal.open(new ServerConfig().setJournalDir(dir.getPath()).setJournalFsync(fsync)
+                        .setJournalFsyncMillis(100).setJournalSegmentBytes(16 * 1024 * 1024), stats);
+                Journal target = journal;
+                long deadline = System.nanoTime() + millis * 1_000_000L;
+                Thread[] writers = new Thread[4];
+                for (int t = 0; t < writers.length; t++) {
+                    writers[t] = new Thread(() -> {
+                        try {
+                            do {
+                                long offset = target.append(message, message.length);
+                                if (wait) {
+                                    target.sync(offset);
+                                }
+                            } while (System.nanoTime() < deadline);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                    writers[t].start();
+                }
+                for (Thread writer : writers) {
+                    writer.join();
+                }
+                Map<String, Long> counts = stats.snapshot();
+                double seconds = millis / 1e3;
+                long fsyncs = counts.get("journal.fsyncs");
+                System.out.printf("%-8s   %4s   %9.0f   %9.0f   %8.0f   %4.0f%n", fsync, wait ? "yes" : "no",
+                        counts.get("journal.appends") / seconds, fsyncs / seconds,
+                        fsyncs > 0 ? (double) counts.get("journal.fsyncMicros") / fsyncs : 0.0,
+                        counts.get("journal.bytes") / seconds / 1e6);
+                journal.close();
+                deleteTree(dir);
+            }
+        }
+
+        File dir = Files.createTempDirectory("bench-journal").toFile();
+        Journal journal = Journal.open(new ServerConfig().setJournalDir(dir.getPath())
+                .setJournalFsync(Journal.Fsync.OS).setJournalSegmentBytes(16 * 1024 * 1024), new ServerStats());
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 2_000_000; i++) {
+            journal.append(message, message.length);
+        }
+        long span = Math.max(1, System.currentTimeMillis() - begin);
+        long records = journal.nextOffset();
+        int reads = 20000;
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            journal.read(ThreadLocalRandom.current().nextLong(records), 1);
+        }
+        long perRead = (System.nanoTime() - start) / reads;
+        start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            journal.offsetAt(begin + ThreadLocalRandom.current().nextLong(span));
+        }
+        System.out.printf("%nrandom read of 1 record out of %d: %.1f us, offset by time: %.1f us%n", records,
+                perRead / 1e3, (System.nanoTime() - start) / 1000 / 1e3);
+        journal.close();
+        deleteTree(dir);
+    }
+
+    // index made-up chat lines (words picked with a skewed distribution, like real text,
+    // spread over 50 channels), see how fast the indexer keeps up and how big the frozen
+    // segments are, then time queries of 1 to 3 common-ish words in one channel and in all
+    private static void benchSearch(int messages) throws Exception {
+        String[] words = new String[5000];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = "w" + Integer.toString(i * 7919 % 100000, 36);
+        }
+        List<String> channels = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            channels.add("#chan" + i);
+        }
+        Random random = new Random(42);
+        String[] texts = new String[messages];
+        for (int i = 0; i < messages; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < 12; w++) {
+                // squaring a uniform number favours the low ranks, roughly the way word use does
+                double r = random.nextDouble();
+                text.append(words[(int) (r * r * words.length)]).append(' ');
+            }
+            texts[i] = text.toString();
+        }
+
+        ServerLog.setLevel(ServerLog.Level.WARN);
+        ServerStats stats = new ServerStats();
+        SearchIndex index = new SearchIndex(messages, () -> 0, stats);
+        index.start(null);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            index.add(i, channels.get(i % channels.size()), texts[i]);
+        }
+        while (stats.get("search.indexed") < messages) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = stats.get("search.bytes");
+        System.out.printf("indexed %d messages: %.0f messages/s, %d segments, %.1f bytes/message in frozen segments%n",
+                messages, messages / seconds, stats.get("search.segments"),
+                (double) bytes / Math.max(1, messages - messages % (64 * 1024)));
+
+        System.out.println();
+        System.out.println("terms   scope      hits   us/query");
+        for (int terms = 1; terms <= 3; terms++) {
+            for (boolean all : new boolean[] { false, true }) {
+                int queries = 2000;
+                long hits = 0;
+                start = System.nanoTime();
+                for (int q = 0; q < queries; q++) {
+                    StringBuilder query = new StringBuilder();
+                    for (int t = 0; t < terms; t++) {
+                        query.append(words[random.nextInt(50)]).append(' ');
+                    }
+                    String channel = channels.get(random.nextInt(channels.size()));
+                    hits += all ? index.search(null, channels, query.toString(), 20).length
+                            : index.search(channel, null, query.toString(), 20).length;
+                }
+                System.out.printf("%5d   %-7s   %5.1f   %8.1f%n", terms, all ? "all" : "channel",
+                        (double) hits / queries, (System.nanoTime() - start) / 1e3 / queries);
+            }
+        }
+        index.stop();
+    }
+
+    private static void deleteTree(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // what PROTO BINARY DEFLATE saves on the wire and costs in CPU: game boards and channel
+    // lines through one connection's stream at a few levels, and for comparison each
+    // message deflated on its own (no shared history, no dictionary)
+    private static void benchCompress(int messages) {
+        GameSession game = new GameSession(null, null); // only rendered, nobody plays
+        String[] coords = { "A1", "B7", "C3", "D10", "E5", "F2", "G8", "H4", "I9", "J6" };
+        byte[][] boards = new byte[coords.length][];
+        for (int i = 0; i < coords.length; i++) {
+            boards[i] = ("GAME_UPDATE Opponent fired at " + coords[i] + ": MISS!\n" + game.getRenderedBoard(null))
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        byte[][] lines = new byte[coords.length][];
+        for (int i = 0; i < coords.length; i++) {
+            lines[i] = ("CHAN #general user" + i + " deploy " + (1000 + i) + " finished, " + coords[i]
+                    + " is back in rotation and the error rate looks normal again\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+        System.out.println("traffic   level   plain B/msg   wire B/msg   ratio   CPU us/msg   alone B/msg");
+        for (byte[][] traffic : new byte[][][] { boards, lines }) {
+            for (int level : new int[] { 1, 6, 9 }) {
+                compressRun(traffic, level, messages); // warm-up
+                long t0 = cpu.getCurrentThreadCpuTime();
+                Compression compression = compressRun(traffic, level, messages);
+                long t1 = cpu.getCurrentThreadCpuTime();
+
+                // the same messages each through a fresh Deflater
+                long alone = 0;
+                byte[] out = new byte[64 * 1024];
+                for (byte[] message : traffic) {
+                    Deflater deflater = new Deflater(level);
+                    deflater.setInput(message);
+                    deflater.finish();
+                    alone += deflater.deflate(out);
+                    deflater.end();
+                }
+
+                double plain = (double) compression.getPlainOut() / messages;
+                double wire = (double) compression.getPackedOut() / messages;
+                System.out.printf("%-7s   %5d   %11.0f   %10.1f   %4.1fx   %10.2f   %11.1f%n",
+                        traffic == boards ? "board" : "chan", level, plain, wire, plain / wire,
+                        (t1 - t0) / 1e3 / messages, (double) alone / traffic.length);
+            }
+        }
+    }
+
+    private static Compression compressRun(byte[][] traffic, int level, int messages) {
+        Compression compression = new Compression(level, 0);
+        for (int i = 0; i < messages; i++) {
+            byte[] message = traffic[i % traffic.length];
+            compression.compress(message, message.length);
+        }
+        return compression;
+    }
+
+    // what logging costs the threads doing the work: a shared synchronized PrintStream
+    // (like System.out) vs the ring buffer, plus a disabled debug call
+    private static void benchLog(int threads, int lines) throws Exception {
+        File printlnFile = File.createTempFile("bench-println", ".log");
+        File ringFile = File.createTempFile("bench-ring", ".log");
+        printlnFile.deleteOnExit();
+        ringFile.deleteOnExit();
+        ServerLog.configure(ServerLog.Level.INFO, ringFile.getPath(), 0);
+
+        try (PrintStream console = new PrintStream(new FileOutputStream(printlnFile), true)) {
+            // warm up, then measure
+            for (int round = 0; round < 2; round++) {
+                long println = runLoggers(threads, lines, i -> console.println(
+                        "[CLIENT user" + (i & 63) + "] Command: CHAN #general message number " + i));
+                long ring = runLoggers(threads, lines,
+                        i -> ServerLog.info("[CLIENT user{}] Command: CHAN #general message number {}", i & 63, i));
+                long flushStart = System.nanoTime();
+                ServerLog.flush();
+                long drain = System.nanoTime() - flushStart;
+                long disabled = runLoggers(threads, lines,
+                        i -> ServerLog.debug("[CLIENT user{}] Command: CHAN #general message number {}", i & 63, i));
+                if (round == 1) {
+                    double total = (double) threads * lines;
+                    System.out.println("threads=" + threads + " lines=" + (long) total);
+                    System.out.printf("synchronized println:  %7.0f ns per line%n", println / total);
+                    System.out.printf("ring buffer:           %7.0f ns per line (+%.0f ms to drain, %d dropped)%n",
+                            ring / total, drain / 1e6, ServerLog.getDropped());
+                    System.out.printf("disabled debug:        %7.1f ns per line%n", disabled / total);
+                }
+            }
+        }
+    }
+
+    private interface LogCall {
+        void log(int i);
+    }
+
+    // run the same logging call from several threads at once, returns the elapsed nanos
+    private static long runLoggers(int threads, int lines, LogCall call) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            done.add(pool.submit(() -> {
+                go.await();
+                for (int i = 0; i < lines; i++) {
+                    call.log(i);
+                }
+                return null;
+            }));
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        for (Future<?> f : done) {
+            f.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return elapsed;
+    }
+
+    // one sample line per command type
+    private static final String[] PARSE_LINES = {
+            "NICK alice_42",
+            "JOIN #general",
+            "PART #general",
+            "MSG bob hey, are you coming to the meeting later?",
+            "CHAN #general the quick brown fox jumps over the lazy dog",
+            "USERS #general",
+            "FILE bob notes.txt 48213 9f86d081884c7d659a2feaa0c55ad015",
+            "GAME place B4 H",
+            "STATS",
+    };
+
+    // sink for parse results so the JIT can't throw the work away
+    private static volatile int blackhole;
+
+    // lines/s through the old split/toUpperCase/switch/regex parsing vs the tokenizer and
+    // verb table, done JMH style: warm-up iterations first, then the best of a few timed ones
+    private static void benchParse(int millis) {
+        System.out.println("command   split + switch   tokenizer + table   (million lines/s)");
+        CommandLine cursor = new CommandLine();
+        for (String line : PARSE_LINES) {
+            for (int i = 0; i < 3; i++) {
+                measureParse(line, cursor, millis / 2, false);
+                measureParse(line, cursor, millis / 2, true);
+            }
+            double legacy = 0;
+            double table = 0;
+            for (int i = 0; i < 3; i++) {
+                legacy = Math.max(legacy, measureParse(line, cursor, millis, false));
+                table = Math.max(table, measureParse(line, cursor, millis, true));
+            }
+            System.out.printf("%-7s   %14.2f   %17.2f%n", line.substring(0, line.indexOf(' ') > 0 ? line.indexOf(' ')
+                    : line.length()), legacy, table);
+        }
+    }
+
+    private static double measureParse(String line, CommandLine cursor, int millis, boolean useTable) {
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        long start = System.nanoTime();
+        long lines = 0;
+        int sink = 0;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                sink += useTable ? tableParse(cursor.reset(line)) : legacyParse(line);
+            }
+            lines += 1000;
+        } while (System.nanoTime() < deadline);
+        long elapsed = System.nanoTime() - start;
+        blackhole = sink;
+        return lines / (elapsed / 1e3);
+    }
+
+    // what ClientHandler used to do with a line before any handler ran
+    private static int legacyParse(String line) {
+        line = line.trim();
+        String[] parts = line.split(" ", 2);
+        String cmd = parts[0].toUpperCase();
+        String args = parts.length > 1 ? parts[1] : "";
+        switch (cmd) {
+            case "NICK":
+                String nickname = args.trim();
+                return nickname.matches("[a-zA-Z0-9_]+") ? nickname.length() : 0;
+            case "JOIN":
+            case "PART":
+            case "USERS":
+                return args.trim().length();
+            case "MSG":
+            case "CHAN":
+                String[] msg = args.split(" ", 2);
+                return msg[0].trim().length() + msg[1].length();
+            case "FILE":
+                String[] file = args.split(" ", 4);
+                return file[0].trim().length() + file[1].trim().length() + Integer.parseInt(file[2].trim())
+                        + file[3].trim().length();
+            case "GAME":
+                String[] game = args.split(" ", 2);
+                String[] place = game[1].split(" ");
+                return game[0].toUpperCase().length() + place[0].length() + place[1].length();
+            case "STATS":
+                return 1;
+            default:
+                return -1;
+        }
+    }
+
+    // the same work the way ClientHandler does it now
+    private static int tableParse(CommandLine args) {
+        ClientHandler.Command cmd = args.nextVerb(ClientHandler.Command.TABLE);
+        if (cmd == null) {
+            return -1;
+        }
+        switch (cmd) {
+            case NICK:
+                String nickname = args.rest();
+                return ClientHandler.isValidNickname(nickname) ? nickname.length() : 0;
+            case JOIN:
+            case PART:
+            case USERS:
+                return args.next().length();
+            case MSG:
+            case CHAN:
+                return args.next().length() + args.rest().length();
+            case FILE:
+                return args.next().length() + args.next().length() + (int) args.nextLong() + args.rest().length();
+            case GAME:
+                return args.nextVerb(ClientHandler.GameAction.TABLE).ordinal() + args.next().length()
+                        + args.next().length();
+            case STATS:
+                return 1;
+            default:
+                return -1;
+        }
+    }
+
+    // start a server in the background on a free port and wait until it answers
+    static int startServer(ServerConfig.Mode mode) throws Exception {
+        return startServer(new ServerConfig().setMode(mode).unlimited()).getPort();
+    }
+
+    static ChatServer startServer(ServerConfig config) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        // nothing sent in a benchmark is worth keeping
+        config.setJournalDir(null).setMailboxDir(null);
+        ChatServer server = new ChatServer(port, null, config);
+        Thread serverThread = new Thread(server::start, "bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return server;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("server did not start");
+    }
+
+    // the same trust setup ChatClient uses
+    static SSLSocketFactory clientFactory() throws IOException, GeneralSecurityException {
+        return Tls.clientContext().getSocketFactory();
+    }
+
+    static String readUntil(BufferedReader in, String prefix) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        throw new EOFException("connection closed while waiting for " + prefix);
+    }
+
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -2,7 +2,15 @@ import javax.net.ssl.*;
 import java.security.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class ChatClient {
     /**
@@ -12,18 +20,32 @@ public class ChatClient {
      * Battleship.
      */
 
+    private static final int CHUNK_SIZE = 64 * 1024; // the most the server takes in one FILECHUNK
+    private static final int MAX_RESENDS = 16; // damaged chunks we ask for again before giving up on a file
+    private static final long SAVE_EVERY = 4 * 1024 * 1024; // how often a download's progress is saved
+    private static final int MAX_INFLATED = 16 * 1024 * 1024; // the most text one DEFLATE frame may hold
+
     private String host;
     private int port;
     private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private LineInput reader; // lines, and raw file bytes in between them
+    private OutputStream writer;
+    private final Object writeLock = new Object(); // chat and file chunks share the socket
+    private boolean framed; // the server took PROTO BINARY, set before any other thread starts
+    private Compression compression; // and DEFLATE too, same. sending uses it under writeLock
     private BufferedReader consoleReader;
-    private boolean running;
+    private volatile boolean running;
     private String nickname;
-    private final Object fileTransferLock = new Object();
-    private volatile boolean fileTransferReady = false;
     private boolean bannerShown = false;
 
+    // multiplexed transfers: the ones we send are numbered by us, the ones we
+    // receive by the server, so they're kept apart
+    private final AtomicInteger nextTransferId = new AtomicInteger();
+    private final Map<Integer, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<Integer, Download> downloads = new HashMap<>(); // only the receiver thread uses this
+    private final byte[] receiveBuffer = new byte[CHUNK_SIZE]; // same, incoming file data passes through it
+    private final byte[] chunkHeader = new byte[Frames.CHUNK_HEADER_LENGTH]; // same, for CHUNK frames
+
     public ChatClient(String host, int port) {
         // constructor to initialize variables
         this.host = host;
@@ -33,33 +55,26 @@ public class ChatClient {
 
     public void start() {
         try {
-            // load the keystore
-            KeyStore ks = KeyStore.getInstance("JKS");
-            try (FileInputStream fis = new FileInputStream("chat.jks")) {
-                ks.load(fis, "password".toCharArray()); // unlock the keystore
-            }
-
-            // initialize TrustManagerFactory with the KeyStore
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-            tmf.init(ks);
-
-            // initialize SSLContext with our trust managers
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, tmf.getTrustManagers(), null);
+            // the SSLContext trusts the certificate in chat.jks. it's built once per
+            // process, so connecting again from here resumes the TLS session
+            SSLContext sslContext = Tls.clientContext();
 
             // create a secure SSLSocket instead of a plain Socket
             SSLSocketFactory ssf = sslContext.getSocketFactory();
             socket = ssf.createSocket(host, port);
+            socket.setTcpNoDelay(true); // writes are already batched, see send()
 
             // set up our streams for talking to the server
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true); // 'true' for auto-flush!
+            reader = new LineInput(socket.getInputStream(), Integer.MAX_VALUE);
+            writer = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 64);
             consoleReader = new BufferedReader(new InputStreamReader(System.in));
 
             running = true;
 
             System.out.println("Connected to " + host + ":" + port);
 
+            negotiateFraming();
+
             // create a thread to receive messages from the server
             Thread receiverThread = new Thread(new MessageReceiver());
             receiverThread.setDaemon(true); // daemon means this thread dies if the main program ends.
@@ -84,26 +99,44 @@ public class ChatClient {
         }
     }
 
+    // function to ask the server for binary frames instead of lines, compressed if it
+    // can. an older server doesn't know PROTO and says so, then we just keep using
+    // lines, and one that only names BINARY in its answer doesn't compress. the
+    // greeting arrives before the answer and is shown as usual
+    private void negotiateFraming() throws IOException {
+        send("PROTO BINARY DEFLATE");
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("OK PROTO")) {
+                framed = true;
+                if (line.endsWith(" DEFLATE")) {
+                    compression = new Compression(Deflater.DEFAULT_COMPRESSION, Compression.DEFAULT_THRESHOLD);
+                }
+                return;
+            }
+            if (line.startsWith("ERROR")) {
+                return;
+            }
+            handleServerMessage(line);
+        }
+    }
+
     // inner class to handle incoming messages from the server
     private class MessageReceiver implements Runnable {
         @Override
         public void run() {
             try {
-                String line;
-                // keep reading lines from the server until the connection closes
-                while (running && (line = reader.readLine()) != null) {
-                    // check the trimmed version for logic, but keep the original for formatting
-                    String trimmedCheck = line.trim();
-
-                    // special handling for Battleship game messages
-                    if (trimmedCheck.startsWith("GAME_START ") || trimmedCheck.startsWith("GAME_UPDATE ")
-                            || trimmedCheck.startsWith("GAME_SETUP ")) {
-                        handleGameMessage(line); // pass original line to preserve whitespace/art
-                    } else if (trimmedCheck.startsWith("GAME_OVER ")) {
-                        handleGameMessage(line);
-                    } else {
-                        // normal chat messages
-                        handleServerMessage(line);
+                if (framed) {
+                    // keep reading frames until the connection closes
+                    byte[] header = new byte[Frames.HEADER_LENGTH];
+                    while (running && Frames.readHeader(reader, header)) {
+                        receiveFrame(header[0], Frames.getInt(header, 1));
+                    }
+                } else {
+                    String line;
+                    // keep reading lines from the server until the connection closes
+                    while (running && (line = reader.readLine()) != null) {
+                        handleLine(line);
                     }
                 }
             } catch (IOException e) {
@@ -115,6 +148,69 @@ public class ChatClient {
         }
     }
 
+    // one line from the server, whether it came on its own or inside a frame
+    private void handleLine(String line) {
+        // check the trimmed version for logic, but keep the original for formatting
+        String trimmedCheck = line.trim();
+
+        // special handling for Battleship game messages
+        if (trimmedCheck.startsWith("GAME_START ") || trimmedCheck.startsWith("GAME_UPDATE ")
+                || trimmedCheck.startsWith("GAME_SETUP ")) {
+            handleGameMessage(line); // pass original line to preserve whitespace/art
+        } else if (trimmedCheck.startsWith("GAME_OVER ")) {
+            handleGameMessage(line);
+        } else {
+            // normal chat messages
+            handleServerMessage(line);
+        }
+    }
+
+    // one binary frame from the server. a TEXT frame holds what would have been sent as
+    // lines (a game board is several), a DEFLATE frame the same compressed, a CHUNK frame
+    // one chunk of a file we're receiving
+    private void receiveFrame(byte type, int length) throws IOException {
+        if (type == Frames.CHUNK && length >= Frames.CHUNK_HEADER_LENGTH) {
+            reader.readFully(chunkHeader, 0, Frames.CHUNK_HEADER_LENGTH);
+            int n = length - Frames.CHUNK_HEADER_LENGTH;
+            byte[] chunk = n <= receiveBuffer.length ? receiveBuffer : new byte[n];
+            reader.readFully(chunk, 0, n);
+            receiveChunk(Frames.getInt(chunkHeader, 0), Frames.getLong(chunkHeader, 4), chunk, n,
+                    Frames.getInt(chunkHeader, 12) & 0xffffffffL);
+            return;
+        }
+        byte[] data = length <= receiveBuffer.length ? receiveBuffer : new byte[length];
+        reader.readFully(data, 0, length);
+        if (type == Frames.DEFLATE && compression != null) {
+            int n = compression.inflate(data, length, MAX_INFLATED);
+            handleLines(compression.inflated(), n);
+        } else if (type == Frames.TEXT) {
+            handleLines(data, length);
+        }
+        // anything else is nothing we know, skip it
+    }
+
+    // the lines in the text of a frame, the last one doesn't need its newline
+    private void handleLines(byte[] data, int length) {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n') {
+                handleLine(new String(data, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        if (start < length) {
+            handleLine(new String(data, start, length - start, StandardCharsets.UTF_8));
+        }
+    }
+
+    // a chunk of a file we're receiving arrived, pass it to its download
+    private void receiveChunk(int id, long offset, byte[] data, int length, long crc) {
+        Download download = downloads.get(id);
+        if (download != null && !download.write(offset, data, length, crc)) {
+            downloads.remove(id);
+        }
+    }
+
     // function that decides what to do with a message from the server
     private void handleServerMessage(String message) {
         if (message.isEmpty())
@@ -131,13 +227,34 @@ public class ChatClient {
                 System.out.println("\n" + args);
                 break;
 
+            case "PING":
+                // the server checking we're still here, answered quietly
+                send("PONG " + args);
+                break;
+
+            case "PONG":
+                break;
+
             case "OK":
-                // for file transfer, if we get ok then we can start sending bytes
-                if (args.startsWith("FILE")) {
-                    synchronized (fileTransferLock) {
-                        fileTransferReady = true;
-                        fileTransferLock.notifyAll();
+                // the server took one of our transfers, or finished delivering it
+                if (args.startsWith("FILESTART ")) {
+                    String[] okParts = args.split(" ", 3);
+                    Upload upload = uploads.get(Integer.parseInt(okParts[1]));
+                    if (upload != null) {
+                        upload.accepted(Long.parseLong(okParts[2]));
                     }
+                    break;
+                }
+                if (args.startsWith("FILEEND ")) {
+                    // the receiver has all of it and checked it
+                    String[] endParts = args.split(" ", 3);
+                    Upload upload = uploads.remove(Integer.parseInt(endParts[1]));
+                    if (upload != null) {
+                        upload.finished();
+                    }
+                    System.out.println("[OK] " + (endParts.length > 2 ? endParts[2] : "File sent")
+                            + (upload != null ? " (" + upload.progress.summary() + ")" : ""));
+                    break;
                 }
                 System.out.println("[OK] " + args);
                 break;
@@ -162,6 +279,27 @@ public class ChatClient {
                 }
                 break;
 
+            case "HISTORY":
+                // the CHAN lines after this were said before we asked
+                String[] historyParts = args.split(" ", 2);
+                if (historyParts.length == 2) {
+                    System.out.println("\n--- Last " + historyParts[1] + " messages in " + historyParts[0] + " ---");
+                }
+                break;
+
+            case "SEARCH":
+                // the CHAN lines after this are what a search found
+                String[] searchParts = args.split(" ", 2);
+                if (searchParts.length == 2) {
+                    System.out.println("\n--- " + searchParts[1] + " results in " + searchParts[0] + " ---");
+                }
+                break;
+
+            case "MAILBOX":
+                // the MSG lines after this were sent while we were away
+                System.out.println("\n--- " + args + " messages while you were away ---");
+                break;
+
             case "JOIN":
                 // someone joined a channel
                 String[] joinParts = args.split(" ", 2);
@@ -199,13 +337,114 @@ public class ChatClient {
                 System.out.println("\n[Channels] " + args);
                 break;
 
+            case "FILEACK": {
+                // the receiver got more of a file we're sending, we may send that much more
+                String[] ackParts = args.split(" ", 2);
+                Upload upload = uploads.get(Integer.parseInt(ackParts[0]));
+                if (upload != null) {
+                    upload.acked(Long.parseLong(ackParts[1]));
+                }
+                break;
+            }
+
+            case "FILERESUME": {
+                // the receiver says where to start, it may have part of the file from before
+                String[] resumeParts = args.split(" ", 2);
+                Upload upload = uploads.get(Integer.parseInt(resumeParts[0]));
+                if (upload != null) {
+                    upload.resumeAt(Long.parseLong(resumeParts[1]));
+                }
+                break;
+            }
+
+            case "FILERESEND": {
+                // one of our chunks arrived damaged, send it again
+                String[] resendParts = args.split(" ", 3);
+                Upload upload = uploads.get(Integer.parseInt(resendParts[0]));
+                if (upload != null) {
+                    upload.resend(Long.parseLong(resendParts[1]), Integer.parseInt(resendParts[2]));
+                }
+                break;
+            }
+
+            case "FILEFAIL": {
+                // a file we're sending didn't make it
+                String[] failParts = args.split(" ", 2);
+                Upload upload = uploads.remove(Integer.parseInt(failParts[0]));
+                if (upload != null) {
+                    upload.failed(failParts.length > 1 ? failParts[1] : "Transfer failed");
+                }
+                break;
+            }
+
+            case "FILESTART": {
+                // a file is coming our way, in chunks between the other messages. we answer
+                // with how much of it we already have (0 unless an earlier try was cut off)
+                String[] startParts = args.split(" ", 5);
+                if (startParts.length >= 4) {
+                    int id = Integer.parseInt(startParts[0]);
+                    String hash = startParts.length > 4 ? startParts[4] : null;
+                    try {
+                        Download download = new Download(id, startParts[1], startParts[2],
+                                Long.parseLong(startParts[3]), hash);
+                        downloads.put(id, download);
+                        System.out.println("\n[FILE] " + download.sender + " is sending you '" + download.filename
+                                + "' (" + download.size + " bytes)");
+                        if (download.good > 0) {
+                            System.out.println("[FILE] Resuming, " + download.good + " bytes are already here");
+                        }
+                        send("FILERESUME " + id + " " + download.good);
+                    } catch (IOException e) {
+                        System.out.println("[ERROR] Can't save '" + startParts[2] + "': " + e.getMessage());
+                        send("FILEREJECT " + id + " Receiver can't save the file");
+                    }
+                }
+                break;
+            }
+
+            case "FILECHUNK": {
+                // FILECHUNK <id> <offset> <length> <crc32>. the data follows the line straight
+                // away, it has to be read even if we don't want it
+                String[] chunkParts = args.split(" ", 4);
+                int length = Integer.parseInt(chunkParts[2]);
+                byte[] data = length <= receiveBuffer.length ? receiveBuffer : new byte[length];
+                try {
+                    reader.readFully(data, 0, length);
+                } catch (IOException e) {
+                    System.out.println("[ERROR] File receive failed: " + e.getMessage());
+                    break;
+                }
+                receiveChunk(Integer.parseInt(chunkParts[0]), Long.parseLong(chunkParts[1]), data, length,
+                        Long.parseLong(chunkParts[3], 16));
+                break;
+            }
+
+            case "FILEEND": {
+                // the sender has sent everything once, we may still be waiting for resent chunks
+                int id = Integer.parseInt(args.trim());
+                Download download = downloads.get(id);
+                if (download != null && !download.end()) {
+                    downloads.remove(id);
+                }
+                break;
+            }
+
+            case "FILEABORT": {
+                String[] abortParts = args.split(" ", 2);
+                Download download = downloads.remove(Integer.parseInt(abortParts[0]));
+                if (download != null) {
+                    download.interrupted(abortParts.length > 1 ? abortParts[1] : "aborted");
+                }
+                break;
+            }
+
             case "FILEOFFER":
                 // someone wants to send us a file
                 String[] fileParts = args.split(" ", 4);
                 if (fileParts.length >= 3) {
                     String sender = fileParts[0];
                     String filename = fileParts[1];
-                    int size = Integer.parseInt(fileParts[2]);
+                    long size = Long.parseLong(fileParts[2]);
                     String hash = fileParts.length > 3 ? fileParts[3] : null;
 
                     System.out.println("\n[FILE] " + sender + " wants to send you '" + filename +
@@ -225,52 +464,71 @@ public class ChatClient {
         }
     }
 
-    // function to receive a file from the server from another client
-    private void receiveFile(String filename, int size, String expectedHash) {
+    // function to receive a file from the server from another client (the old FILE
+    // way, where nothing else can come through until the whole file is in). it goes
+    // straight to disk a buffer at a time, so the file never has to fit in memory
+    private void receiveFile(String filename, long size, String expectedHash) {
+        Path savePath = Paths.get("received_" + filename);
         try {
-            // expect a specific header first: FILEDATA
-            InputStream in = socket.getInputStream();
-            BufferedReader headerReader = new BufferedReader(new InputStreamReader(in));
-            String header = headerReader.readLine();
+            // expect a specific header first: FILEDATA. it comes from the same buffered
+            // input as the chat lines, a second reader would lose bytes the first one read ahead
+            String header = reader.readLine();
             if (header == null || !header.startsWith("FILEDATA")) {
                 System.out.println("[ERROR] Invalid file transfer header");
                 return;
             }
 
-            // read the exact number of bytes for the file
-            byte[] fileData = new byte[size];
-            int totalRead = 0;
-
-            while (totalRead < size) {
-                int bytesRead = in.read(fileData, totalRead, size - totalRead);
-                if (bytesRead == -1)
-                    break;
-                totalRead += bytesRead;
+            // read the exact number of bytes for the file, hashing them on the way
+            MessageDigest digest = sha256();
+            Progress progress = new Progress("Receiving '" + filename + "'", size);
+            try (FileChannel out = FileChannel.open(savePath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long left = size;
+                while (left > 0) {
+                    int bytesRead = reader.read(receiveBuffer, 0, (int) Math.min(receiveBuffer.length, left));
+                    if (bytesRead == -1) {
+                        throw new EOFException("Connection closed before the whole file arrived");
+                    }
+                    digest.update(receiveBuffer, 0, bytesRead);
+                    writeFully(out, receiveBuffer, bytesRead);
+                    progress.add(bytesRead);
+                    left -= bytesRead;
+                }
             }
 
             // verify integrity using SHA-256
-            if (expectedHash != null) {
-                String calculatedHash = calculateChecksum(fileData);
-                if (!calculatedHash.equalsIgnoreCase(expectedHash)) {
-                    System.out.println("[ERROR] File integrity check failed!");
-                    System.out.println("Expected: " + expectedHash);
-                    System.out.println("Actual:   " + calculatedHash);
-                    return;
-                }
-                System.out.println("[SUCCESS] File integrity verified.");
+            if (!checkHash(expectedHash, digest, savePath)) {
+                return;
             }
-
-            // save the file to disk with a prefix so we don't overwrite existing files
-            String savePath = "received_" + filename;
-            Files.write(Paths.get(savePath), fileData);
-
-            System.out.println("[FILE] Received '" + filename + "' -> " + savePath);
+            System.out.println("[FILE] Received '" + filename + "' -> " + savePath + " (" + progress.summary() + ")");
 
         } catch (IOException e) {
             System.out.println("[ERROR] File receive failed: " + e.getMessage());
+            try {
+                Files.deleteIfExists(savePath);
+            } catch (IOException ignored) {
+            }
         }
     }
 
+    // compare the hash of what arrived with the one the sender gave us. a file that
+    // doesn't match is deleted, it's already on disk since we write as we go
+    private boolean checkHash(String expectedHash, MessageDigest digest, Path savePath) throws IOException {
+        if (expectedHash == null) {
+            return true;
+        }
+        String calculatedHash = toHex(digest.digest());
+        if (!calculatedHash.equalsIgnoreCase(expectedHash)) {
+            System.out.println("[ERROR] File integrity check failed!");
+            System.out.println("Expected: " + expectedHash);
+            System.out.println("Actual:   " + calculatedHash);
+            Files.deleteIfExists(savePath);
+            return false;
+        }
+        System.out.println("[SUCCESS] File integrity verified.");
+        return true;
+    }
+
     // function to process commands typed by the user in the console
     private void processInput(String input) {
         if (input.startsWith("/")) {
@@ -353,6 +611,34 @@ public class ChatClient {
                 send("CHAN " + channel + " " + chanParts[1]);
                 break;
 
+            // show what was said in a channel before
+            case "history":
+                String[] historyParts = args.trim().split(" ", 2);
+                if (historyParts[0].isEmpty()) {
+                    System.out.println("Usage: /history <#channel> [count]");
+                    return;
+                }
+                String historyChannel = historyParts[0];
+                if (!historyChannel.startsWith("#")) {
+                    historyChannel = "#" + historyChannel;
+                }
+                send("HISTORY " + historyChannel + (historyParts.length > 1 ? " " + historyParts[1].trim() : ""));
+                break;
+
+            // find old messages in a channel (or * for all of yours)
+            case "search":
+                String[] searchParts = args.trim().split(" ", 2);
+                if (searchParts.length < 2) {
+                    System.out.println("Usage: /search <#channel|*> <words>");
+                    return;
+                }
+                String searchScope = searchParts[0];
+                if (!searchScope.equals("*") && !searchScope.startsWith("#")) {
+                    searchScope = "#" + searchScope;
+                }
+                send("SEARCH " + searchScope + " " + searchParts[1]);
+                break;
+
             // list all channels
             case "list":
                 send("LIST");
@@ -371,6 +657,11 @@ public class ChatClient {
                 }
                 break;
 
+            // show the server's counters
+            case "stats":
+                send("STATS");
+                break;
+
             // send a file to another client
             case "file":
                 String[] fileParts = args.split(" ", 2);
@@ -425,7 +716,8 @@ public class ChatClient {
         }
     }
 
-    // function to send a file to another client
+    // function to send a file to another client. it goes out in the background, so
+    // chatting (and more /file commands) carry on while it's sending
     private void sendFile(String user, String filepath) {
         File file = new File(filepath);
 
@@ -434,43 +726,408 @@ public class ChatClient {
             return;
         }
 
-        try {
-            // read the whole file into memory
-            byte[] fileData = Files.readAllBytes(file.toPath());
-            String filename = file.getName();
+        Upload upload = new Upload(nextTransferId.incrementAndGet(), user, file);
+        uploads.put(upload.id, upload);
+        Thread sender = new Thread(upload, "file-send-" + upload.id);
+        sender.setDaemon(true);
+        sender.start();
+        System.out.println("[FILE] Sending '" + file.getName() + "' to " + user + " in the background");
+    }
 
-            // calculate SHA-256 checksum so the receiver can verify it
-            String hash = calculateChecksum(fileData);
-            System.out.println("[FILE] Calculated SHA-256: " + hash);
+    // a file we're sending: FILESTART, then FILECHUNKs from wherever the receiver
+    // says (FILERESUME) as far as the server's window allows, more as FILEACKs come
+    // back. chunks the receiver asks for again (FILERESEND) go out as soon as possible,
+    // and the file stays open for those until the receiver confirms it (OK FILEEND)
+    private class Upload implements Runnable {
+        final int id;
+        final String user;
+        final File file;
+        final Progress progress;
+        private final ArrayDeque<long[]> resends = new ArrayDeque<>(); // {offset, length}
+        private long credit;
+        private long start = -1; // where the receiver wants us to begin, -1 until it says
+        private boolean finished;
+        private String failure;
+
+        Upload(int id, String user, File file) {
+            this.id = id;
+            this.user = user;
+            this.file = file;
+            this.progress = new Progress("Sending '" + file.getName() + "'", file.length());
+        }
 
-            // send FILE command to server: FILE <target> <filename> <size> <hash>
-            synchronized (fileTransferLock) {
-                fileTransferReady = false;
-                send("FILE " + user + " " + filename + " " + fileData.length + " " + hash);
+        synchronized void accepted(long window) {
+            credit += window;
+            notifyAll();
+        }
 
-                // wait for the server to say "OK"
-                try {
-                    fileTransferLock.wait(5000); // wait max 5 seconds
-                } catch (InterruptedException e) {
-                    System.out.println("[ERROR] Interrupted while waiting for server response");
+        synchronized void acked(long bytes) {
+            credit += bytes;
+            notifyAll();
+        }
+
+        synchronized void resumeAt(long offset) {
+            start = offset;
+            notifyAll();
+        }
+
+        synchronized void resend(long offset, int length) {
+            resends.addLast(new long[] { offset, length });
+            notifyAll();
+        }
+
+        synchronized void finished() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void failed(String reason) {
+            failure = reason;
+            notifyAll();
+        }
+
+        private synchronized boolean stopped() {
+            return failure != null || finished || !running;
+        }
+
+        // wait until the receiver says where to start, -1 if the transfer failed
+        private synchronized long awaitStart() throws InterruptedException {
+            while (!stopped() && start < 0) {
+                wait(1000);
+            }
+            return stopped() ? -1 : start;
+        }
+
+        // wait until we may send 'bytes' more, false if the transfer failed
+        private synchronized boolean awaitCredit(long bytes) throws InterruptedException {
+            while (!stopped() && credit < bytes) {
+                wait(1000);
+            }
+            if (stopped()) {
+                return false;
+            }
+            credit -= bytes;
+            return true;
+        }
+
+        // the next chunk the receiver asked for again, null if there isn't one. with
+        // wait set, waits for one until the transfer is confirmed or fails
+        private synchronized long[] nextResend(boolean wait) throws InterruptedException {
+            while (wait && !stopped() && resends.isEmpty()) {
+                wait(1000);
+            }
+            return stopped() ? null : resends.pollFirst();
+        }
+
+        @Override
+        public void run() {
+            boolean announced = false;
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = in.size();
+                byte[] chunk = new byte[CHUNK_SIZE];
+
+                // calculate SHA-256 checksum so the receiver can verify it. the file is read
+                // twice (once here, once to send it) so it never has to be in memory at once
+                String hash = calculateChecksum(in, chunk);
+                System.out.println("[FILE] Calculated SHA-256: " + hash);
+
+                // FILESTART <id> <target> <filename> <size> <hash>
+                send("FILESTART " + id + " " + user + " " + file.getName() + " " + size + " " + hash);
+                announced = true;
+                long offset = awaitStart();
+                if (offset < 0) {
+                    System.out.println("[ERROR] File send failed: " + failure);
                     return;
                 }
+                if (offset > 0) {
+                    System.out.println("[FILE] " + user + " already has " + offset + " bytes of '" + file.getName()
+                            + "', sending the rest");
+                }
 
-                if (!fileTransferReady) {
-                    System.out.println("[ERROR] Server timed out or did not accept file transfer");
-                    return;
+                // never ask for more credit than the whole window
+                int chunkSize;
+                synchronized (this) {
+                    chunkSize = (int) Math.max(1, Math.min(CHUNK_SIZE, credit));
                 }
+                progress.restart(offset);
+                long[] again;
+                while (offset < size) {
+                    while ((again = nextResend(false)) != null) {
+                        if (!sendChunk(in, chunk, again[0], (int) again[1])) {
+                            break;
+                        }
+                    }
+                    int length = (int) Math.min(chunkSize, size - offset);
+                    if (!sendChunk(in, chunk, offset, length)) {
+                        break;
+                    }
+                    offset += length;
+                    progress.add(length);
+                }
+
+                // everything went out once, stay around for chunks that need sending again
+                while ((again = nextResend(true)) != null) {
+                    sendChunk(in, chunk, again[0], (int) again[1]);
+                }
+                if (failure != null) {
+                    System.out.println("[ERROR] File send failed: " + failure);
+                }
+            } catch (IOException e) {
+                System.out.println("[ERROR] File send failed: " + e.getMessage());
+                uploads.remove(id);
+                if (announced) {
+                    send("FILEABORT " + id);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
 
-            // send the raw bytes
-            OutputStream out = socket.getOutputStream();
-            out.write(fileData);
-            out.flush();
+        // read one chunk of the file and send it with its CRC32, false if the transfer stopped
+        private boolean sendChunk(FileChannel in, byte[] chunk, long offset, int length)
+                throws IOException, InterruptedException {
+            if (!awaitCredit(length)) {
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException(file.getName() + " got shorter while it was being sent");
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(chunk, 0, length);
+            ChatClient.this.sendChunk(id, offset, crc.getValue(), chunk, length);
+            return true;
+        }
+    }
 
-            System.out.println("[FILE] Sent '" + filename + "' to " + user);
+    // a file we're receiving. chunks are checked against their CRC32 and written to
+    // received_<name>.part as they come in, and received_<name>.part.info keeps how much
+    // of it is good, so if the transfer breaks off the same file can carry on from there
+    private class Download {
+        final int id;
+        final String sender;
+        final String filename;
+        final long size;
+        final String expectedHash;
+        private final Path savePath;
+        private final Path partPath;
+        private final Path infoPath;
+        private final FileChannel out;
+        private final MessageDigest digest;
+        private final Progress progress;
+        private final TreeMap<Long, Integer> holes = new TreeMap<>(); // damaged chunks we asked for again
+        long good; // everything before this is written and checked
+        private long high; // end of the furthest chunk written
+        private long digested; // the hash has seen everything before this
+        private long saved; // what the .info file says is good
+        private int resends;
+        private boolean ended; // the sender got to the end once (FILEEND)
+
+        Download(int id, String sender, String filename, long size, String expectedHash) throws IOException {
+            this.id = id;
+            this.sender = sender;
+            this.filename = filename;
+            this.size = size;
+            this.expectedHash = expectedHash;
+            this.digest = sha256();
+            // save the file to disk with a prefix so we don't overwrite existing files
+            this.savePath = Paths.get("received_" + filename);
+            this.partPath = Paths.get("received_" + filename + ".part");
+            this.infoPath = Paths.get("received_" + filename + ".part.info");
+            this.out = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+
+            // carry on from an earlier try, if it was this same file (only a hash can tell)
+            good = Math.min(savedProgress(), out.size());
+            if (good == 0) {
+                out.truncate(0);
+            }
+            high = good;
+            saved = good;
+            this.progress = new Progress("Receiving '" + filename + "'", size);
+            progress.restart(good);
+            catchUpDigest(); // what's already on disk still has to go into the hash
+        }
 
-        } catch (IOException e) {
-            System.out.println("[ERROR] File send failed: " + e.getMessage());
+        // how much an earlier .info file says is good for this file, 0 if there's none
+        private long savedProgress() {
+            if (expectedHash == null || !Files.exists(infoPath)) {
+                return 0;
+            }
+            try {
+                String[] info = new String(Files.readAllBytes(infoPath), StandardCharsets.UTF_8).trim().split(" ");
+                if (info.length == 3 && Long.parseLong(info[0]) == size && info[1].equalsIgnoreCase(expectedHash)) {
+                    return Long.parseLong(info[2]);
+                }
+            } catch (IOException | NumberFormatException e) {
+                // unreadable, start over
+            }
+            return 0;
+        }
+
+        // one chunk arrived. false if the download had to be given up
+        boolean write(long offset, byte[] data, int length, long crc) {
+            try {
+                CRC32 check = new CRC32();
+                check.update(data, 0, length);
+                if (crc != check.getValue()) {
+                    // only this chunk is bad, ask for it again instead of failing the file
+                    if (++resends > MAX_RESENDS) {
+                        reject("Too many damaged chunks");
+                        return false;
+                    }
+                    holes.put(offset, length);
+                    send("FILERESEND " + id + " " + offset + " " + length);
+                    return true;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer, offset + buffer.position());
+                }
+                holes.remove(offset);
+                high = Math.max(high, offset + length);
+                good = holes.isEmpty() ? high : holes.firstKey();
+
+                // the usual case is the next chunk in order, it goes into the hash from memory
+                if (offset == digested && offset + length <= good) {
+                    digest.update(data, 0, length);
+                    digested += length;
+                }
+                catchUpDigest();
+                progress.add(length);
+                if (good - saved >= SAVE_EVERY) {
+                    saveProgress();
+                }
+                return !ended || good < size || finish();
+            } catch (IOException e) {
+                System.out.println("[ERROR] File receive failed: " + e.getMessage());
+                interrupted(e.getMessage());
+                send("FILEREJECT " + id + " Receiver can't save the file");
+                return false;
+            }
+        }
+
+        // the sender got to the end. false once the download is over
+        boolean end() {
+            ended = true;
+            return good < size || finish();
+        }
+
+        // everything is here: check the whole file, then tell the sender. always false,
+        // the download is over either way
+        private boolean finish() {
+            try {
+                out.close();
+                // verify integrity using SHA-256
+                if (!checkHash(expectedHash, digest, partPath)) {
+                    Files.deleteIfExists(infoPath);
+                    send("FILEREJECT " + id + " File integrity check failed");
+                    return false;
+                }
+                Files.move(partPath, savePath, StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(infoPath);
+                send("FILEDONE " + id);
+                System.out.println("[FILE] Received '" + filename + "' -> " + savePath + " (" + progress.summary()
+                        + ")");
+            } catch (IOException e) {
+                System.out.println("[ERROR] File receive failed: " + e.getMessage());
+                send("FILEREJECT " + id + " Receiver can't save the file");
+            }
+            return false;
+        }
+
+        // the transfer broke off. what we have is kept, so it can pick up from here next time
+        void interrupted(String reason) {
+            try {
+                saveProgress();
+                out.close();
+            } catch (IOException ignored) {
+            }
+            System.out.println("[ERROR] Transfer of '" + filename + "' stopped: " + reason);
+            if (expectedHash != null && good > 0) {
+                System.out.println("[FILE] Kept " + good + " of " + size + " bytes, it will carry on from there if "
+                        + sender + " sends it again");
+            }
+        }
+
+        // give up on the file and tell the sender
+        private void reject(String reason) throws IOException {
+            out.close();
+            Files.deleteIfExists(partPath);
+            Files.deleteIfExists(infoPath);
+            System.out.println("[ERROR] Transfer of '" + filename + "' failed: " + reason);
+            send("FILEREJECT " + id + " " + reason);
+        }
+
+        // feed the hash whatever is good but it hasn't seen yet, from disk. that's the part
+        // we already had when resuming, and chunks that arrived after a damaged one
+        private void catchUpDigest() throws IOException {
+            while (digested < good) {
+                ByteBuffer buffer = ByteBuffer.wrap(receiveBuffer, 0, (int) Math.min(receiveBuffer.length,
+                        good - digested));
+                int n = out.read(buffer, digested);
+                if (n <= 0) {
+                    throw new EOFException("received file is shorter than expected");
+                }
+                digest.update(receiveBuffer, 0, n);
+                digested += n;
+            }
+        }
+
+        // make sure the good part is really on disk before saying so in the .info file
+        private void saveProgress() throws IOException {
+            if (expectedHash == null || !out.isOpen()) {
+                return; // without a hash there's no telling it's the same file next time
+            }
+            out.force(false);
+            Files.write(infoPath, (size + " " + expectedHash + " " + good).getBytes(StandardCharsets.UTF_8));
+            saved = good;
+        }
+    }
+
+    // prints how far a transfer has got and how fast, at most once a second so it
+    // doesn't drown out the chat
+    private static class Progress {
+        private final String label;
+        private final long total;
+        private long start = System.nanoTime();
+        private long lastPrint = start;
+        private volatile long done; // the sender's summary is printed by the receiver thread
+        private long skipped;
+
+        Progress(String label, long total) {
+            this.label = label;
+            this.total = total;
+        }
+
+        // start the clock again, e.g. once the receiver is ready. 'already' bytes were
+        // there before (a resumed transfer), they count towards the percentage but not the speed
+        void restart(long already) {
+            start = System.nanoTime();
+            lastPrint = start;
+            skipped = already;
+        }
+
+        void add(long bytes) {
+            done += bytes;
+            long now = System.nanoTime();
+            if (now - lastPrint >= 1_000_000_000L && skipped + done < total) {
+                lastPrint = now;
+                System.out.printf("[FILE] %s: %d%% (%.1f MB/s)%n", label, (skipped + done) * 100 / total,
+                        rate(now));
+            }
+        }
+
+        String summary() {
+            long now = System.nanoTime();
+            return String.format("%.1f MB in %.1fs, %.1f MB/s", done / 1048576.0, (now - start) / 1e9, rate(now));
+        }
+
+        private double rate(long now) {
+            return done / 1048576.0 / Math.max((now - start) / 1e9, 1e-3);
         }
     }
 
@@ -532,8 +1189,42 @@ public class ChatClient {
 
     // helper function to send a line of text to the server
     private void send(String message) {
-        if (writer != null) {
-            writer.println(message);
+        if (writer == null) {
+            return;
+        }
+        try {
+            synchronized (writeLock) {
+                if (framed) {
+                    byte[] text = message.getBytes(StandardCharsets.UTF_8);
+                    byte[] packed = compression != null ? compression.compress(text, text.length) : null;
+                    if (packed != null) {
+                        writer.write(packed);
+                    } else {
+                        writer.write(Frames.header(Frames.TEXT, text.length));
+                        writer.write(text);
+                    }
+                } else {
+                    writer.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                writer.flush();
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Send failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // helper function to send one chunk of a file, its header and data can't be split up
+    private void sendChunk(int id, long offset, long crc, byte[] data, int length) throws IOException {
+        synchronized (writeLock) {
+            if (framed) {
+                writer.write(Frames.chunkHeader(id, offset, (int) crc, length));
+            } else {
+                writer.write(("FILECHUNK " + id + " " + offset + " " + length + " " + Long.toHexString(crc) + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            writer.write(data, 0, length);
             writer.flush();
         }
     }
@@ -546,11 +1237,14 @@ public class ChatClient {
         System.out.println("/part <#channel>           - Leave a channel");
         System.out.println("/msg <user> <message>      - Send direct message to user");
         System.out.println("/chan <#channel> <message> - Send message to channel");
+        System.out.println("/history <#channel> [n]    - Show the last n messages in a channel");
+        System.out.println("/search <#channel|*> <words> - Find old messages with all the words");
         System.out.println("/list                      - List all channels");
         System.out.println("/users [#channel]          - List all users or users in channel");
         System.out.println("/file <user> <filepath>    - Send file to user");
         System.out.println("/game challenge <user>     - Challenge a user to Battleship");
         System.out.println("/game accept <user>        - Accept a Battleship challenge");
+        System.out.println("/stats                     - Show server statistics");
         System.out.println("/quit [message]            - Disconnect from server");
         System.out.println("/help                      - Show this help message");
         System.out.println("===========================\n");
@@ -576,24 +1270,45 @@ public class ChatClient {
         System.out.println("Disconnected");
     }
 
-    // helper function to calculate the SHA-256 hash of a byte array
-    private String calculateChecksum(byte[] data) {
+    // helper function to calculate the SHA-256 hash of a file, a buffer at a time
+    private static String calculateChecksum(FileChannel channel, byte[] buf) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
+        long position = 0;
+        int n;
+        while ((n = channel.read(buffer.clear(), position)) > 0) {
+            digest.update(buf, 0, n);
+            position += n;
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() throws IOException {
         try {
-            // calculate the SHA-256 hash of the data
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(data);
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1)
-                    hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
-            System.err.println("[ERROR] SHA-256 algorithm not found: " + e.getMessage());
-            return "UNKNOWN";
+            throw new IOException("SHA-256 algorithm not found", e);
+        }
+    }
+
+    // helper function to write a whole buffer to a file
+    private static void writeFully(FileChannel out, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    // helper function to turn a hash into hex
+    private static String toHex(byte[] hash) {
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1)
+                hexString.append('0');
+            hexString.append(hex);
         }
+        return hexString.toString();
     }
 
     public static void main(String[] args) {
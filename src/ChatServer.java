@@ -2,8 +2,11 @@ import javax.net.ssl.*;
 import java.security.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer {
     /**
@@ -13,68 +16,150 @@ public class ChatServer {
      */
 
     private int port;
+    private ServerConfig config;
     private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private ExecutorService handlerExecutor;
+    private ExecutorService handshakeExecutor; // nio mode: the slow parts of TLS handshakes, null = on the loops
+    private ExecutorService mailboxExecutor; // nio mode: mailbox file work, null = on the caller's thread
+    private TimerWheel timer; // handshake deadlines (nio mode), idle checks and housekeeping
     private Map<String, ClientHandler> clients;
-    private Map<String, Set<String>> channels;
+    private IdTable<ClientHandler> users; // the same clients, by their numeric id
+    private ChannelRegistry channels;
+    private final ChannelShards shards; // which thread changes which channel
+    private final ChannelHistory history;
+    private volatile Journal journal; // null if it's turned off (or until start() opens it)
+    private volatile Mailbox mailbox; // same
+    private volatile SearchIndex searchIndex; // over the journal, so null without one
+    private volatile Federation federation; // the other nodes, null when we're on our own
     private Map<ClientHandler, GameSession> activeGames;
-    private boolean running;
+    private volatile boolean running;
     private String serverPassword;
+    private final ServerStats stats;
+    private final Tls.Metrics tlsMetrics;
+    private final Admission admission;
+
+    private static final int TIMER_SLOTS = 512; // one turn of the wheel is 512 ticks
 
     public ChatServer(int port, String serverPassword) {
+        this(port, serverPassword, ServerConfig.defaults());
+    }
+
+    public ChatServer(int port, String serverPassword, ServerConfig config) {
         // constructor to initialize variables
         this.port = port;
+        this.config = config;
         this.serverPassword = serverPassword;
         this.clients = new ConcurrentHashMap<>();
-        this.channels = new ConcurrentHashMap<>();
+        this.users = new IdTable<>();
+        this.channels = new ChannelRegistry();
+        this.shards = new ChannelShards(config.getChannelShards());
         this.activeGames = new ConcurrentHashMap<>();
         this.running = false;
+        this.stats = new ServerStats();
+        this.tlsMetrics = new Tls.Metrics(stats);
+        this.admission = new Admission(config, stats);
+        this.history = new ChannelHistory(config, stats);
+
+        // outbound queue depth across everyone, worked out when STATS asks for it
+        stats.gauge("outbound.depth.total", () -> {
+            long total = 0;
+            for (ClientHandler client : clients.values()) {
+                total += client.getOutbound().depth();
+            }
+            return total;
+        });
+        stats.gauge("outbound.depth.max", () -> {
+            long max = 0;
+            for (ClientHandler client : clients.values()) {
+                max = Math.max(max, client.getOutbound().depth());
+            }
+            return max;
+        });
+        stats.gauge("log.dropped", ServerLog::getDropped);
+        stats.gauge("channels.pending", shards::pending);
     }
 
     public void start() {
         // start method to start the server
         try {
-            // setup the SSL context
-            // load the keystore file
-            KeyStore ks = KeyStore.getInstance("JKS");
-            try (FileInputStream fis = new FileInputStream("chat.jks")) {
-                ks.load(fis, "password".toCharArray());
+            // setup the SSL context from the keystore file, once for every connection
+            // (sessions are cached in it, so returning clients can resume theirs)
+            SSLContext sslContext = Tls.serverContext(config);
+            SSLParameters tlsParams = Tls.serverParameters(sslContext, config);
+
+            if (config.isJournalEnabled()) {
+                journal = Journal.open(config, stats);
+            }
+            if (journal != null && config.getSearchQueue() > 0) {
+                Journal source = journal;
+                searchIndex = new SearchIndex(config.getSearchQueue(), source::firstOffset, stats);
+                searchIndex.start(source);
+            }
+            if (config.isMailboxEnabled()) {
+                mailbox = Mailbox.open(config, stats);
+            }
+            if (config.isClusterEnabled()) {
+                federation = new Federation(this, config, stats);
+                federation.start(sslContext, tlsParams);
             }
 
-            // initialize the KeyManagerFactory.
-            // this factory manages our keys and certificates.
-            KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-            kmf.init(ks, "password".toCharArray());
+            // one wheel for every connection's timeouts, most of them are cancelled or
+            // re-armed long before they're due, which costs a wheel next to nothing
+            timer = new TimerWheel(config.getTimerTickMillis(), TIMER_SLOTS);
+            timer.start("timer");
+            stats.gauge("timer.pending", timer::pending);
+            sweepAdmission();
+            if (mailbox != null) {
+                expireMail();
+            }
 
-            // initialize the SSLContext.
-            // this is the environment where the secure connection happens.
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(kmf.getKeyManagers(), null, null);
+            if (config.getMode() == ServerConfig.Mode.NIO) {
+                runEventLoops(sslContext, tlsParams);
+                return;
+            }
 
             // create the SSLServerSocket.
             // instead of a regular ServerSocket, we use an SSL one to encrypt traffic.
+            // the handshake itself happens on the client's own thread, see ClientHandler.run()
             SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
-            serverSocket = ssf.createServerSocket(port);
+            serverSocket = ssf.createServerSocket(port, config.getAcceptBacklog());
+            ((SSLServerSocket) serverSocket).setSSLParameters(tlsParams);
+
+            if (config.getMode() == ServerConfig.Mode.VIRTUAL) {
+                handlerExecutor = newVirtualThreadExecutor();
+            }
 
             running = true; // set the server to running
-            System.out.println("[SERVER] Started on port " + port + " (SSL/TLS Enabled)");
-            System.out.println("[SERVER] Waiting for connections...");
+            ServerLog.info("[SERVER] Started on port {} (SSL/TLS Enabled{})", port,
+                    handlerExecutor != null ? ", virtual threads" : "");
+            ServerLog.info("[SERVER] Waiting for connections...");
 
             // the main loop, keep accepting new connections until told to stop
             while (running) {
                 try {
                     // accept() blocks (waits) until a client connects.
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("[SERVER] New connection from " + clientSocket.getRemoteSocketAddress());
+                    if (!admission.admit(clientSocket.getInetAddress())) {
+                        // turned away before the handshake, so it costs us next to nothing
+                        ServerLog.debug("[SERVER] Refused connection from {}", clientSocket.getRemoteSocketAddress());
+                        clientSocket.close();
+                        continue;
+                    }
+                    ServerLog.info("[SERVER] New connection from {}", clientSocket.getRemoteSocketAddress());
+                    // our writers batch their own output, and Nagle would hold up each handshake flight
+                    clientSocket.setTcpNoDelay(true);
 
                     // create a new handler for this specific client.
                     // this handler will run in its own thread so it doesn't block other clients.
                     ClientHandler handler = new ClientHandler(clientSocket, this);
-                    new Thread(handler).start();
+                    runTask(handler);
 
                 } catch (IOException e) {
                     if (running) {
                         // only print error if we didn't intentionally stop the server
-                        System.err.println("[SERVER] Error accepting connection: " + e.getMessage());
+                        ServerLog.error("[SERVER] Error accepting connection: {}", e.getMessage());
                     }
                 }
             }
@@ -82,17 +167,231 @@ public class ChatServer {
         } catch (IOException | GeneralSecurityException e) {
             // if something goes wrong during startup (like missing keystore), we crash
             // gracefully.
-            System.err.println("[SERVER] Failed to start: " + e.getMessage());
-            e.printStackTrace();
+            ServerLog.error("[SERVER] Failed to start: {}", e);
+        } catch (IllegalArgumentException e) {
+            ServerLog.error("[SERVER] Bad configuration: {}", e.getMessage());
         } finally {
             shutdown();
         }
     }
 
+    // run a per-client task (handler or writer) on its own thread, virtual if enabled
+    public void runTask(Runnable task) {
+        if (handlerExecutor != null) {
+            handlerExecutor.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    // a fresh outbound queue set up with the configured slow-consumer policy
+    public OutboundQueue newOutboundQueue(Runnable onReady) {
+        return new OutboundQueue(config.getOutboundCapacity(), config.getSlowConsumerPolicy(),
+                config.getSlowConsumerTimeoutMillis(), onReady, stats.counter("outbound.dropped"));
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    // throw away old undelivered mail once an hour, that deletes files so it isn't done on the timer thread
+    private void expireMail() {
+        runTask(mailbox::expire);
+        timer.schedule(this::expireMail, TimeUnit.HOURS.toMillis(1));
+    }
+
+    // keep a copy of some traffic in the journal, if there is one. only copies the bytes
+    // into a mapped file, the disk is the journal's flusher thread's problem
+    // returns the offset it got there, -1 if it wasn't kept
+    public long record(byte[] frame) {
+        Journal journal = this.journal;
+        return journal != null ? journal.append(frame, frame.length) : -1;
+    }
+
+    // make a channel message that went into the journal at offset searchable. only queues it
+    public void index(long offset, String channel, String text) {
+        SearchIndex searchIndex = this.searchIndex;
+        if (searchIndex != null && offset >= 0) {
+            searchIndex.add(offset, channel, text);
+        }
+    }
+
+    // a CHAN frame said in channel, here or on another node: into its history, the journal
+    // and the search index
+    public void keepChannelMessage(String channel, byte[] frame, String text) {
+        history.add(channel, frame);
+        index(record(frame), channel, text);
+    }
+
+    // the other nodes of the cluster, null if we aren't in one
+    public Federation getFederation() {
+        return federation;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    // where MSGs for people who aren't connected wait, null if that's turned off
+    public Mailbox getMailbox() {
+        return mailbox;
+    }
+
+    // hand a client the private messages that waited for its nickname, in one batch after
+    // a MAILBOX line saying how many there are
+    public void deliverMail(ClientHandler client) {
+        Mailbox mailbox = this.mailbox;
+        if (mailbox == null) {
+            return;
+        }
+        String nickname = client.getNickname();
+        onMailbox(() -> {
+            List<byte[]> mail = mailbox.take(nickname);
+            if (!mail.isEmpty()) {
+                client.send("MAILBOX " + mail.size() + "\n");
+                for (byte[] line : mail) {
+                    client.sendFrame(line);
+                }
+            }
+        });
+    }
+
+    // run mailbox work (it reads, writes and deletes files) off the event loops. one thread,
+    // so mail is stored and handed out in the order it was asked for
+    public void onMailbox(Runnable task) {
+        ExecutorService executor = mailboxExecutor;
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            ServerLog.debug("[MAILBOX] Shutting down, dropped a task: {}", e.getMessage());
+        }
+    }
+
+    public ChannelHistory getHistory() {
+        return history;
+    }
+
+    public Admission getAdmission() {
+        return admission;
+    }
+
+    public Tls.Metrics getTlsMetrics() {
+        return tlsMetrics;
+    }
+
+    // where nio connections run their delegated TLS tasks, null to run them on the loop
+    public Executor getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    // run a task once after a delay, on the timer thread (it should only hand work on)
+    public TimerWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return timer.schedule(task, delayMillis);
+    }
+
+    // forget idle addresses once a minute. sweep() is quick, so it runs right on the timer thread
+    private void sweepAdmission() {
+        admission.sweep();
+        timer.schedule(this::sweepAdmission, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    // virtual threads only exist on Java 21+, so look the factory up at runtime
+    // instead of tying the whole build to a newer JDK
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ServerLog.warn("[SERVER] Virtual threads need Java 21 or newer, using one platform thread per client");
+            return null;
+        }
+    }
+
+    // threads for the nio helper pools, they shouldn't keep the JVM alive
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // non-blocking mode: accept here, then hand each connection to one of a few event loops
+    private void runEventLoops(SSLContext sslContext, SSLParameters tlsParams) throws IOException {
+        // key exchange math is slow, so a burst of handshakes runs on its own threads
+        // instead of holding up the chat traffic of everyone on the same loop
+        if (config.getHandshakeThreads() > 0) {
+            handshakeExecutor = Executors.newFixedThreadPool(config.getHandshakeThreads(),
+                    daemonThreads("tls-handshake"));
+        }
+        if (mailbox != null) {
+            mailboxExecutor = Executors.newSingleThreadExecutor(daemonThreads("mailbox"));
+        }
+        eventLoops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            // the write buffer must hold at least a couple of TLS records (~17 KB each)
+            eventLoops[i] = new EventLoop(i, Math.max(config.getFlushBytes(), 64 * 1024));
+            eventLoops[i].start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+
+        running = true;
+        ServerLog.info("[SERVER] Started on port {} (SSL/TLS Enabled, nio mode with {} event loops)", port,
+                eventLoops.length);
+        ServerLog.info("[SERVER] Waiting for connections...");
+
+        int next = 0;
+        while (running) {
+            try {
+                // accept() still blocks here, but nothing else in nio mode does
+                SocketChannel channel = serverChannel.accept();
+                InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                if (!admission.admit(address)) {
+                    ServerLog.debug("[SERVER] Refused connection from {}", address);
+                    channel.close();
+                    continue;
+                }
+                ServerLog.info("[SERVER] New connection from {}", channel.getRemoteAddress());
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setSSLParameters(tlsParams);
+
+                // spread connections round-robin across the loops
+                eventLoops[next].register(channel, address, engine, this);
+                next = (next + 1) % eventLoops.length;
+
+            } catch (IOException e) {
+                if (running) {
+                    ServerLog.error("[SERVER] Error accepting connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
     // shutdown method to stop the server
     public void shutdown() {
         running = false; // stop the loop
-        System.out.println("[SERVER] Shutting down...");
+        ServerLog.info("[SERVER] Shutting down...");
 
         // disconnect all currently connected clients politely
         for (ClientHandler client : clients.values()) {
@@ -104,31 +403,97 @@ public class ChatServer {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
         } catch (IOException e) {
-            System.err.println("[SERVER] Error closing server socket: " + e.getMessage());
+            ServerLog.warn("[SERVER] Error closing server socket: {}", e.getMessage());
+        }
+
+        // after the clients, their QUITs may still make it to the other nodes
+        if (federation != null) {
+            federation.stop();
         }
+        shards.stop();
 
-        System.out.println("[SERVER] Shutdown complete");
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdownNow();
+        }
+        if (handshakeExecutor != null) {
+            handshakeExecutor.shutdownNow();
+        }
+        if (mailboxExecutor != null) {
+            mailboxExecutor.shutdown(); // what's queued is someone's mail, let it finish
+        }
+        if (timer != null) {
+            timer.stop();
+        }
+        if (searchIndex != null) {
+            searchIndex.stop();
+        }
+        // after the clients, so their last messages are in it
+        if (journal != null) {
+            journal.close();
+        }
+
+        // stop the event loops, if we were running in nio mode
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                loop.shutdown();
+            }
+        }
+
+        ServerLog.info("[SERVER] Shutdown complete");
+        ServerLog.flush();
     }
 
     // register a new client with a nickname
-    public synchronized boolean registerClient(String nickname, ClientHandler handler) {
+    public boolean registerClient(String nickname, ClientHandler handler) {
         // check if the name is already taken (case-insensitive)
         if (clients.containsKey(nickname.toLowerCase())) {
             return false; // nickname is already taken
         }
-        clients.put(nickname, handler); // nickname is available
+        // in a cluster the name has to be free on every node, and the others hear we took it
+        Federation federation = this.federation;
+        if (federation != null && !federation.claim(nickname)) {
+            return false;
+        }
+        // putIfAbsent is atomic, so two people racing for the same name can't both win
+        if (clients.putIfAbsent(nickname, handler) != null) {
+            return false;
+        }
+        // another node may have taken it first while we were putting it in
+        if (federation != null && !federation.owns(nickname)) {
+            clients.remove(nickname, handler);
+            return false;
+        }
+        // channels store this small number instead of the name
+        handler.setUserId(users.allocate(handler));
         return true;
     }
 
     // unregister client
-    public synchronized void unregisterClient(String nickname) {
-        clients.remove(nickname);
+    public void unregisterClient(String nickname) {
+        ClientHandler handler = clients.remove(nickname);
+        if (handler != null) {
+            // the id may still be in tasks waiting on the shards (like leaving its channels),
+            // so it's only given back once they've all been run
+            int userId = handler.getUserId();
+            shards.afterAll(() -> users.release(userId));
+            if (federation != null) {
+                federation.release(nickname);
+            }
+        }
+    }
+
+    // check if a nickname is already in use, here or on another node
+    public boolean isNicknameTaken(String nickname) {
+        return clients.containsKey(nickname.toLowerCase()) || (federation != null && federation.isRemote(nickname));
     }
 
-    // check if a nickname is already in use
-    public synchronized boolean isNicknameTaken(String nickname) {
-        return clients.containsKey(nickname.toLowerCase());
+    // send a frame to a user connected to another node, false if there's nobody by that name
+    public boolean sendToRemoteUser(String nickname, byte[] frame) {
+        return federation != null && federation.sendTo(nickname, frame);
     }
 
     // get the handler for a specific user, used for dms
@@ -136,87 +501,173 @@ public class ChatServer {
         return clients.get(nickname);
     }
 
-    // add a user to a channel
-    public synchronized void joinChannel(String channel, String nickname) {
-        // if the channel doesn't exist, create it
-        channels.putIfAbsent(channel, ConcurrentHashMap.newKeySet());
-        channels.get(channel).add(nickname);
+    // run a task that changes a channel or broadcasts in it on the thread that owns the
+    // channel, in order with everything else done to it (right here if there are no shards)
+    public void onChannel(String channel, Runnable task) {
+        shards.execute(channel, task);
     }
 
-    // remove a user from a channel
-    public synchronized void partChannel(String channel, String nickname) {
-        Set<String> members = channels.get(channel);
-        if (members != null) {
-            members.remove(nickname);
-            // if channel is empty, we delete it to save memory.
-            if (members.isEmpty()) {
-                channels.remove(channel);
-            }
+    // add a user to a channel. this and the other changes below are called on the channel's
+    // shard, see onChannel
+    public void joinChannel(String channel, String nickname) {
+        ClientHandler client = clients.get(nickname);
+        if (client != null) {
+            joinChannel(channel, client.getUserId());
         }
     }
 
+    // the same by user id. a task on a shard goes by the id its client had when it was
+    // posted, the name may have changed since (ids are only reused once the shards are done)
+    public void joinChannel(String channel, int userId) {
+        channels.join(channel, userId);
+        if (federation != null) {
+            federation.channelChanged(channel);
+        }
+    }
+
+    // remove a user from a channel, the registry deletes it once it's empty
+    public void partChannel(String channel, String nickname) {
+        ClientHandler client = clients.get(nickname);
+        if (client != null) {
+            partChannel(channel, client.getUserId());
+        }
+    }
+
+    public void partChannel(String channel, int userId) {
+        channels.part(channel, userId);
+        if (federation != null) {
+            federation.channelChanged(channel);
+        }
+    }
+
+    // true while at least one local user is in the channel
+    public boolean hasChannel(String channel) {
+        return channels.get(channel) != null;
+    }
+
     // check if a user is in a specific channel.
-    public synchronized boolean isInChannel(String channel, String nickname) {
-        Set<String> members = channels.get(channel);
-        return members != null && members.contains(nickname);
+    public boolean isInChannel(String channel, String nickname) {
+        ClientHandler client = clients.get(nickname);
+        return client != null && channels.isMember(channel, client.getUserId());
+    }
+
+    public boolean isInChannel(String channel, int userId) {
+        return channels.isMember(channel, userId);
     }
 
     // send a message to everyone in a channel
     public void broadcastToChannel(String channel, String message, String exclude) {
-        Set<String> members = channels.get(channel);
-        if (members != null) {
-            for (String nickname : members) {
-                // don't send the message back to the person who sent it
-                if (!nickname.equals(exclude)) {
-                    ClientHandler client = clients.get(nickname);
-                    if (client != null) {
-                        client.send(message);
-                    }
+        // encode the line once and share the bytes, instead of once per member
+        broadcastToChannel(channel, message.getBytes(StandardCharsets.UTF_8), exclude);
+    }
+
+    // send an already encoded frame to everyone in a channel, on every node.
+    // every member's queue gets the same array, so nobody may modify it afterwards
+    public void broadcastToChannel(String channel, byte[] frame, String exclude) {
+        // don't send the message back to the person who sent it
+        ClientHandler excluded = exclude != null ? clients.get(exclude) : null;
+        broadcastToChannel(channel, frame, exclude, excluded != null ? excluded.getUserId() : -1);
+    }
+
+    // the same with the sender's user id already known (see joinChannel), -1 for none
+    public void broadcastToChannel(String channel, byte[] frame, String exclude, int excludeId) {
+        deliverToChannel(channel, frame, excludeId);
+        if (federation != null) {
+            federation.forward(channel, frame, exclude);
+        }
+    }
+
+    // the same for this node's members only
+    public void deliverToChannel(String channel, byte[] frame, int excludeId) {
+        ChannelRegistry.Channel ch = channels.get(channel);
+        if (ch == null) {
+            return;
+        }
+
+        // walk the member ids straight into the id table, no name lookups per member
+        int channelId = ch.id();
+        for (int userId : ch.members()) {
+            if (userId != excludeId) {
+                ClientHandler client = users.get(userId);
+                // ids are recycled, so double check the id still belongs to a member
+                if (client != null && channels.isMember(channelId, userId)) {
+                    client.sendFrame(frame);
                 }
             }
         }
     }
 
     // when a user disconnects, remove them from all channels they were in
-    public synchronized void removeFromAllChannels(String nickname) {
-        for (Map.Entry<String, Set<String>> entry : channels.entrySet()) {
-            String channel = entry.getKey();
-            Set<String> members = entry.getValue();
-            if (members.contains(nickname)) {
-                members.remove(nickname);
-                // broadcast user left
-                broadcastToChannel(channel, "PART " + channel + " " + nickname + "\n", nickname);
-                // clean up empty channels
-                if (members.isEmpty()) {
-                    channels.remove(channel);
+    public void removeFromAllChannels(String nickname) {
+        // broadcast user left to each channel they were actually removed from
+        ClientHandler client = clients.get(nickname);
+        if (client == null) {
+            return;
+        }
+        // each shard takes them out of its own channels, after whatever they had posted there
+        int userId = client.getUserId();
+        shards.forEachShard(shard -> {
+            for (String channel : channels.channelsOf(userId)) {
+                if (shards.shardOf(channel) == shard && channels.part(channel, userId)) {
+                    broadcastToChannel(channel, ("PART " + channel + " " + nickname + "\n")
+                            .getBytes(StandardCharsets.UTF_8), nickname, userId);
+                    if (federation != null) {
+                        federation.channelChanged(channel);
+                    }
                 }
             }
-        }
+        });
+    }
+
+    // the channels a user is in right now
+    public List<String> getChannelsOf(int userId) {
+        return channels.channelsOf(userId);
     }
 
     // function to get a list of all active channels
-    public synchronized List<String> getChannelList() {
-        return new ArrayList<>(channels.keySet());
+    public List<String> getChannelList() {
+        return channels.channelNames();
     }
 
     // function to get a list of users in a specific channel
-    public synchronized List<String> getUserList(String channel) {
-        Set<String> members = channels.get(channel);
-        return members != null ? new ArrayList<>(members) : new ArrayList<>();
+    public List<String> getUserList(String channel) {
+        List<String> names = new ArrayList<>();
+        ChannelRegistry.Channel ch = channels.get(channel);
+        if (ch != null) {
+            for (int userId : ch.members()) {
+                ClientHandler client = users.get(userId);
+                if (client != null) {
+                    names.add(client.getNickname());
+                }
+            }
+        }
+        return names;
     }
 
-    // function to get a list of all users on the server.
-    public synchronized List<String> getAllUsers() {
-        return new ArrayList<>(clients.keySet());
+    // function to get a list of all users on the server (all nodes of it)
+    public List<String> getAllUsers() {
+        List<String> names = new ArrayList<>(clients.keySet());
+        if (federation != null) {
+            names.addAll(federation.getRemoteUsers());
+        }
+        return names;
     }
 
     // function to broadcast quit message to everyone on the server
     public void broadcastQuit(String nickname, String message) {
-        String msg = "QUIT " + nickname + " " + message + "\n";
+        byte[] frame = ("QUIT " + nickname + " " + message + "\n").getBytes(StandardCharsets.UTF_8);
+        // don't send to the person who is quitting since they are already leaving
+        deliverToAll(frame, nickname);
+        if (federation != null) {
+            federation.forwardToAll(frame, nickname);
+        }
+    }
+
+    // a frame for every client on this node but exclude
+    public void deliverToAll(byte[] frame, String exclude) {
         for (ClientHandler client : clients.values()) {
-            // don't send to the person who is quitting since they are already leaving
-            if (!client.getNickname().equals(nickname)) {
-                client.send(msg);
+            if (!client.getNickname().equals(exclude)) {
+                client.sendFrame(frame);
             }
         }
     }
@@ -273,12 +724,14 @@ public class ChatServer {
             password = args[1];
         }
 
-        // create the server instance
-        ChatServer server = new ChatServer(port, password);
+        // create the server instance, extra tuning comes from -Dchat.* properties
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        ServerLog.configure(config.getLogLevel(), config.getLogFile(), config.getLogMaxBytes());
+        ChatServer server = new ChatServer(port, password, config);
 
         // add a shutdown hook to handle Ctrl+C gracefully
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("\n[SERVER] Interrupted by user");
+            ServerLog.info("[SERVER] Interrupted by user");
             server.shutdown();
         }));
 
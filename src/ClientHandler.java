@@ -1,137 +1,490 @@
+import javax.net.ssl.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class ClientHandler implements Runnable {
     /**
      * Handles individual client connections.
      * Think of this as a personal butler for each user connected to the server.
      * It runs in its own thread so it can focus entirely on one client without
-     * distraction.
+     * distraction, or (in nio mode) gets its lines from an event loop instead.
      */
 
+    private static final long WRITER_DRAIN_MILLIS = 1000; // how long disconnect waits for queued output
+
+    // every command a client can send, looked up by its verb
+    enum Command {
+        AUTH, NICK, JOIN, PART, MSG, CHAN, HISTORY, SEARCH, LIST, USERS, FILE, GAME, QUIT, STATS, PROTO, PING, PONG,
+        // multiplexed transfers, the sender's commands and then the receiver's replies
+        FILESTART, FILECHUNK, FILEABORT, FILERESUME, FILERESEND, FILEDONE, FILEREJECT;
+
+        static final VerbTable<Command> TABLE = new VerbTable<>(values());
+    }
+
+    // the sub-commands of GAME
+    enum GameAction {
+        CHALLENGE, ACCEPT, PLACE, FIRE, SURRENDER, QUIT;
+
+        static final VerbTable<GameAction> TABLE = new VerbTable<>(values());
+    }
+
     private Socket socket;
+    private NioConnection connection;
+    private SocketAddress remoteAddress;
     private ChatServer server;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private LineInput input;
+    private byte[] rawBuffer; // blocking mode: where file chunks are read into
+    private final CommandLine line = new CommandLine(); // reused for every line, lines are handled one at a time
+    private final OutboundQueue outbound; // everything we send goes through here
+    private final Admission.Limits limits; // how many commands we take from this client
+    private boolean throttled; // the last command was over the limit, the client has been told
+    private CountDownLatch writerDone;
     private String nickname;
+    private volatile int userId = -1; // handed out by the server when the nickname is registered
+    private volatile FileRelay upload; // the FILE upload this client is sending right now, if any
+    // multiplexed transfers this client is sending (by our id) and receiving (by the server's)
+    private final Map<Integer, FileTransfer> uploads = new ConcurrentHashMap<>();
+    private final Map<Integer, FileTransfer> downloads = new ConcurrentHashMap<>();
     private boolean authenticated;
-    private boolean running;
+    private volatile boolean framed; // switched to binary frames with PROTO BINARY
+    private volatile byte[] framingSwitch; // the reply to PROTO BINARY, the last frame written as a plain line
+    private boolean framedOutput; // the writer got past framingSwitch, only the writer touches this
+    private volatile Compression compression; // PROTO BINARY DEFLATE, null if not asked for
+    private volatile TimerWheel.Timeout idleCheck; // the next look at whether the client went quiet
+    private long pingSentNanos; // when our unanswered PING went out, only the timer thread touches this
+    private boolean pinged;
+    private volatile boolean running;
+    private final AtomicBoolean disconnected = new AtomicBoolean(false);
 
     public ClientHandler(Socket socket, ChatServer server) {
         // constructor to initialize variables
         this.socket = socket;
+        this.remoteAddress = socket.getRemoteSocketAddress();
+        this.server = server;
+        this.nickname = null;
+        this.authenticated = server.checkPassword(null);
+        this.running = true;
+        this.outbound = server.newOutboundQueue(null); // drained by our writer thread
+        this.limits = server.getAdmission().limits(remoteAddress);
+    }
+
+    // constructor for nio mode, the connection does all the socket work for us
+    public ClientHandler(NioConnection connection, ChatServer server) {
+        this.connection = connection;
+        this.remoteAddress = connection.getRemoteAddress();
         this.server = server;
         this.nickname = null;
         this.authenticated = server.checkPassword(null);
         this.running = true;
+        this.outbound = server.newOutboundQueue(connection::scheduleFlush); // drained by the event loop
+        this.limits = server.getAdmission().limits(remoteAddress);
     }
 
     // the main loop for this client's thread.
     @Override
     public void run() {
         try {
-            // set up input and output streams
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
+            if (!handshake()) {
+                return;
+            }
 
-            // instructions and texts
-            send("WELCOME Welcome to CLI chat app!\n");
+            // set up the input stream (lines and raw file bytes), output goes through our own writer
+            input = new LineInput(socket.getInputStream(), NioConnection.MAX_LINE_LENGTH);
+            writerDone = new CountDownLatch(1);
+            server.runTask(this::writeLoop);
 
-            if (!authenticated) {
-                send("INFO Please authenticate with /auth <password>\n");
-            } else {
-                send("INFO Please set your nickname with /nick <name>\n");
-            }
+            onConnected();
 
-            // keep listening for commands until user leaves
+            // keep listening for commands until user leaves, as lines or binary frames
             String line;
-            while (running && (line = reader.readLine()) != null) {
-                line = line.trim();
-                if (!line.isEmpty()) {
-                    processCommand(line); // execute command
+            byte[] header = new byte[Frames.HEADER_LENGTH];
+            while (running) {
+                if (framed) {
+                    if (!Frames.readHeader(input, header)) {
+                        break;
+                    }
+                    readFrame(header[0], Frames.getInt(header, 1));
+                } else {
+                    if ((line = input.readLine()) == null) {
+                        break;
+                    }
+                    onLine(line);
                 }
             }
 
         } catch (IOException e) {
             if (running) {
-                System.err.println("[CLIENT " + getIdentifier() + "] Error: " + e.getMessage());
+                ServerLog.warn("[CLIENT {}] Error: {}", this, e.getMessage());
             }
         } finally {
             disconnect(); // clean up
         }
     }
 
-    // function to process commands
-    private void processCommand(String command) {
-        // split the command from its arguments (e.g., "JOIN #general" -> "JOIN",
-        // "#general")
-        String[] parts = command.split(" ", 2);
-        String cmd = parts[0].toUpperCase();
-        String args = parts.length > 1 ? parts[1] : "";
+    // do the TLS handshake now, with a deadline, instead of letting the first read do it
+    // with none (a client that connects and says nothing would hold this thread forever).
+    // false if it didn't work out, that's counted and logged here
+    private boolean handshake() {
+        Tls.Metrics metrics = server.getTlsMetrics();
+        SSLSocket ssl = (SSLSocket) socket;
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            ssl.setSoTimeout(server.getConfig().getHandshakeTimeoutMillis());
+            ssl.startHandshake();
+            ssl.setSoTimeout(0);
+        } catch (SocketTimeoutException e) {
+            metrics.timedOut();
+            metrics.failed();
+            ServerLog.info("[CLIENT {}] TLS handshake timed out", this);
+            return false;
+        } catch (IOException e) {
+            metrics.failed();
+            ServerLog.info("[CLIENT {}] TLS handshake failed: {}", this, e.getMessage());
+            return false;
+        }
+        metrics.finished(ssl.getSession(), startMillis, System.nanoTime() - start);
+        return true;
+    }
+
+    // drains the outbound queue onto the socket, so senders never block on a slow client.
+    // messages are batched: we keep writing until the queue is empty (waiting at most
+    // flushDelay for stragglers) or flushBytes have piled up, then flush once
+    private void writeLoop() {
+        ServerConfig config = server.getConfig();
+        int flushBytes = config.getFlushBytes();
+        long flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.getFlushDelayMicros());
+        LongAdder frames = server.getStats().counter("outbound.frames");
+        LongAdder flushes = server.getStats().counter("outbound.flushes");
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), flushBytes);
+            byte[] frame;
+            while ((frame = outbound.take()) != null) {
+                writeFrame(out, frame);
+                int batched = frame.length;
+                int count = 1;
+                long deadline = System.nanoTime() + flushDelayNanos;
+
+                while (batched < flushBytes) {
+                    byte[] next = outbound.poll();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || (next = outbound.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+                            break; // nothing more coming soon, don't hold this batch any longer
+                        }
+                    }
+                    writeFrame(out, next);
+                    batched += next.length;
+                    count++;
+                }
+
+                out.flush();
+                frames.add(count);
+                flushes.increment();
+            }
+        } catch (IOException e) {
+            if (running) {
+                ServerLog.warn("[CLIENT {}] Write error: {}", this, e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writerDone.countDown();
+            closeSocket();
+        }
+    }
 
-        // log it to the server console so we can see what's happening
-        System.out.println("[CLIENT " + getIdentifier() + "] Command: " + cmd + " " +
-                (args.length() > 50 ? args.substring(0, 50) + "..." : args));
+    private void writeFrame(OutputStream out, byte[] frame) throws IOException {
+        frame = outboundFrame(frame);
+        byte[] header = outboundHeader(frame);
+        if (header != null) {
+            out.write(header);
+        }
+        out.write(frame);
+    }
 
-        // AUTH command (if password is required)
-        if (cmd.equals("AUTH")) {
-            handleAuth(args);
+    // the writer is about to send a frame: what goes on the wire in its place. a whole
+    // DEFLATE frame if this connection compresses and the frame is big enough to bother,
+    // otherwise the frame itself (shared frames are never changed, compressing copies)
+    byte[] outboundFrame(byte[] frame) {
+        Compression compression = this.compression;
+        if (compression == null || !framedOutput || frame[0] == Frames.CHUNK) {
+            return frame;
         }
-        // NICK command (setting their name)
-        else if (cmd.equals("NICK")) {
-            if (!authenticated) {
-                send("ERROR 401 You must authenticate first with /auth <password>\n");
-            } else {
-                handleNick(args);
+        byte[] packed = compression.compress(frame, frame.length);
+        return packed != null ? packed : frame;
+    }
+
+    // then the binary frame header that has to go in front of it, or null if it goes out
+    // as it is. FileTransfer and Compression build their frames whole already
+    byte[] outboundHeader(byte[] frame) {
+        if (!framedOutput) {
+            // the reply to PROTO BINARY is still a line, the client switches after reading it
+            framedOutput = frame == framingSwitch;
+            return null;
+        }
+        return frame[0] == Frames.CHUNK || frame[0] == Frames.DEFLATE ? null
+                : Frames.header(Frames.TEXT, frame.length);
+    }
+
+    // greet a freshly connected client
+    public void onConnected() {
+        // instructions and texts
+        send("WELCOME Welcome to CLI chat app!\n");
+
+        if (!authenticated) {
+            send("INFO Please authenticate with /auth <password>\n");
+        } else {
+            send("INFO Please set your nickname with /nick <name>\n");
+        }
+
+        int idleSeconds = server.getConfig().getIdleTimeoutSeconds();
+        if (idleSeconds > 0) {
+            armIdleCheck(TimeUnit.SECONDS.toMillis(idleSeconds));
+        }
+    }
+
+    // heartbeat: one timer per client, moved along once per idle period rather than on
+    // every message. when it fires we look at when the client last sent anything: not
+    // long ago means check again later, quiet for the whole period gets a PING, and still
+    // quiet when the PING times out means the peer is gone (a dead peer never closes its
+    // end, so the reader would wait for it forever). runs on the timer thread
+    private void checkIdle() {
+        if (disconnected.get()) {
+            return;
+        }
+        ServerConfig config = server.getConfig();
+        long now = System.nanoTime();
+        long heard = connection != null ? connection.getLastReadNanos() : input.getLastReadNanos();
+        if (pinged && heard - pingSentNanos < 0) {
+            // nothing at all since the PING, not even the PONG
+            reap();
+            return;
+        }
+        pinged = false;
+        long idleMillis = TimeUnit.SECONDS.toMillis(config.getIdleTimeoutSeconds());
+        long quietMillis = TimeUnit.NANOSECONDS.toMillis(now - heard);
+        if (quietMillis < idleMillis) {
+            armIdleCheck(idleMillis - quietMillis);
+            return;
+        }
+        pinged = true;
+        pingSentNanos = now;
+        server.getStats().counter("heartbeat.pings").increment();
+        send("PING " + System.currentTimeMillis() + "\n");
+        armIdleCheck(TimeUnit.SECONDS.toMillis(config.getPingTimeoutSeconds()));
+    }
+
+    private void armIdleCheck(long delayMillis) {
+        idleCheck = server.schedule(this::checkIdle, delayMillis);
+        if (disconnected.get()) {
+            idleCheck.cancel(); // disconnect() ran in between and missed this one
+        }
+    }
+
+    // drop a client that stopped answering. closing a blocking socket might wait, so
+    // that's done off the timer thread
+    private void reap() {
+        ServerLog.info("[CLIENT {}] Disconnected: no answer to PING", this);
+        server.getStats().counter("idle.reaped").increment();
+        running = false;
+        outbound.clear();
+        if (connection != null) {
+            connection.abort();
+        } else {
+            server.runTask(this::abortSocket);
+        }
+    }
+
+    // handle one line received from the client
+    public void onLine(String text) {
+        if (running && !line.reset(text).isEmpty()) {
+            processCommand(line); // execute command
+        }
+    }
+
+    // handle one binary frame. head is the start of its payload (all of it for TEXT and
+    // DEFLATE), and the rest bytes after it are the file data of a CHUNK
+    public void onFrame(byte type, byte[] head, int headLength, int rest) {
+        if (type == Frames.TEXT) {
+            onText(head, headLength);
+        } else if (type == Frames.DEFLATE) {
+            Compression compression = this.compression;
+            try {
+                if (compression == null) {
+                    throw new IOException("Compression was not negotiated");
+                }
+                int length = compression.inflate(head, headLength, NioConnection.MAX_LINE_LENGTH);
+                onText(compression.inflated(), length);
+            } catch (IOException e) {
+                // the stream is out of step now, nothing after this would inflate either
+                send("ERROR 400 " + e.getMessage() + "\n");
+                hangUp();
+            }
+        } else if (running) {
+            takeChunk(Frames.getInt(head, 0), Frames.getLong(head, 4), rest, Frames.getInt(head, 12) & 0xffffffffL);
+        }
+    }
+
+    // one command per frame, a trailing newline is allowed but not needed
+    private void onText(byte[] text, int length) {
+        if (length > 0 && text[length - 1] == '\n') {
+            length--;
+        }
+        if (length > 0 && text[length - 1] == '\r') {
+            length--;
+        }
+        // a line break inside would pass as a second line to everyone we relay it to
+        for (int i = 0; i < length; i++) {
+            if (text[i] == '\n' || text[i] == '\r') {
+                send("ERROR 400 One command per frame\n");
+                return;
             }
         }
-        // For everything else, they must be authenticated first
-        else if (!authenticated) {
+        onLine(new String(text, 0, length, StandardCharsets.UTF_8));
+    }
+
+    // blocking mode: read the start of a frame the way the event loop does, then handle it
+    private void readFrame(byte type, int length) throws IOException {
+        int headLength = Frames.headLength(type, length);
+        if (headLength < 0) {
+            // we can't trust the length, so there's no finding the next frame either
+            send("ERROR 400 Bad frame\n");
+            hangUp();
+            return;
+        }
+        byte[] head = rawBuffer(); // free until the chunk data is read, after the head is parsed
+        input.readFully(head, 0, headLength);
+        onFrame(type, head, headLength, length - headLength);
+    }
+
+    // function to process commands. the verb is looked up in a table built once at
+    // startup, then each handler takes its own arguments off the line
+    // (e.g., "JOIN #general" -> JOIN, then the handler reads "#general")
+    private void processCommand(CommandLine args) {
+        Command cmd = args.nextVerb(Command.TABLE);
+
+        // trace it so we can see what's happening (only formatted if debug is on)
+        ServerLog.debug("[CLIENT {}] Command: {}", this, args);
+
+        // a chunk's data follows its line and we'd read it as commands, so a client that
+        // sends one before AUTH is cut off instead of answered
+        if (cmd == Command.FILECHUNK && !authenticated) {
             send("ERROR 401 You must authenticate first with /auth <password>\n");
-        } else {
-            // switch statement for all other commands
-            switch (cmd) {
-                case "JOIN":
-                    handleJoin(args);
-                    break;
-                case "PART":
-                    handlePart(args);
-                    break;
-                case "MSG":
-                    handleMsg(args);
-                    break;
-                case "CHAN":
-                    handleChan(args);
-                    break;
-                case "LIST":
-                    handleList(args);
-                    break;
-                case "USERS":
-                    handleUsers(args);
-                    break;
-                case "FILE":
-                    handleFile(args);
-                    break;
-                case "GAME":
-                    handleGame(args);
-                    break;
-                case "QUIT":
-                    handleQuit(args);
-                    break;
-                default:
-                    send("ERROR 400 Unknown command\n");
+            hangUp();
+            return;
+        }
+
+        // over the rate limit: drop it. one error per run of dropped commands, so a flood
+        // doesn't get a flood of replies. FILECHUNK is paced by its transfer window instead
+        if (cmd != Command.FILECHUNK && !limits.allowCommand(args.length())) {
+            if (!throttled) {
+                throttled = true;
+                send("ERROR 429 Too many commands, slow down\n");
             }
+            return;
+        }
+        throttled = false;
+
+        // everything except AUTH (and PROTO, PING and PONG, which are about the connection)
+        // needs the password first
+        if (cmd != Command.AUTH && cmd != Command.PROTO && cmd != Command.PING && cmd != Command.PONG
+                && !authenticated) {
+            send("ERROR 401 You must authenticate first with /auth <password>\n");
+            return;
+        }
+        if (cmd == null) {
+            send("ERROR 400 Unknown command\n");
+            return;
+        }
+        // channel commands act for a user, so they wait for NICK (it hands out the user id)
+        if (nickname == null && (cmd == Command.JOIN || cmd == Command.PART || cmd == Command.CHAN
+                || cmd == Command.HISTORY || cmd == Command.SEARCH)) {
+            send("ERROR 400 Set a nickname with /nick <name> first\n");
+            return;
+        }
+
+        switch (cmd) {
+            case AUTH:
+                handleAuth(args);
+                break;
+            case NICK:
+                handleNick(args);
+                break;
+            case JOIN:
+                handleJoin(args);
+                break;
+            case PART:
+                handlePart(args);
+                break;
+            case MSG:
+                handleMsg(args);
+                break;
+            case CHAN:
+                handleChan(args);
+                break;
+            case HISTORY:
+                handleHistory(args);
+                break;
+            case SEARCH:
+                handleSearch(args);
+                break;
+            case LIST:
+                handleList(args);
+                break;
+            case USERS:
+                handleUsers(args);
+                break;
+            case FILE:
+                handleFile(args);
+                break;
+            case FILESTART:
+                handleFileStart(args);
+                break;
+            case FILECHUNK:
+                handleFileChunk(args);
+                break;
+            case FILEABORT:
+                handleFileAbort(args);
+                break;
+            case FILERESUME:
+            case FILERESEND:
+            case FILEDONE:
+            case FILEREJECT:
+                handleFileReply(cmd, args);
+                break;
+            case GAME:
+                handleGame(args);
+                break;
+            case QUIT:
+                handleQuit(args);
+                break;
+            case STATS:
+                handleStats();
+                break;
+            case PING:
+                send("PONG " + args.rest() + "\n");
+                break;
+            case PONG:
+                break; // hearing from the client at all is what counts, see checkIdle()
+            case PROTO:
+                handleProto(args);
+                break;
         }
     }
 
     // function to check the password
-    private void handleAuth(String password) {
+    private void handleAuth(CommandLine args) {
         if (authenticated) {
             send("ERROR 400 Already authenticated\n");
             return;
         }
 
-        if (server.checkPassword(password.trim())) {
+        if (server.checkPassword(args.rest())) {
             authenticated = true;
             send("OK AUTH Password accepted. Now set your nickname with /nick <name>\n");
         } else {
@@ -139,13 +492,47 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    // function to switch the connection to binary frames (PROTO BINARY [DEFLATE]). everything
+    // the client sends after this line is framed, and everything we send after the reply.
+    // it has to come before /nick so nobody has sent us a file chunk the old way yet.
+    // DEFLATE is only a wish, the reply says whether we'll compress (it's off if the
+    // level is set to 0), and options we don't know are left out of it the same way
+    private void handleProto(CommandLine args) {
+        if (!args.next().equalsIgnoreCase("BINARY")) {
+            send("ERROR 400 Usage: PROTO BINARY [DEFLATE]\n");
+            return;
+        }
+        if (framed) {
+            send("ERROR 400 Already using binary frames\n");
+            return;
+        }
+        if (nickname != null) {
+            send("ERROR 400 PROTO has to come before /nick\n");
+            return;
+        }
+        ServerConfig config = server.getConfig();
+        String reply = "OK PROTO BINARY";
+        while (!args.isEmpty()) {
+            if (args.next().equalsIgnoreCase("DEFLATE") && config.getCompressionLevel() > 0 && compression == null) {
+                compression = new Compression(config.getCompressionLevel(), config.getCompressionThreshold());
+                server.getStats().counter("protocol.deflate").increment();
+                reply += " DEFLATE";
+            }
+        }
+        byte[] switchFrame = (reply + "\n").getBytes(StandardCharsets.UTF_8);
+        framingSwitch = switchFrame;
+        outbound.keep(switchFrame); // dropped, the writer would never switch
+        framed = true;
+        server.getStats().counter("protocol.binary").increment();
+        sendFrame(switchFrame);
+    }
+
     // function to set the user's nickname
-    private void handleNick(String nickname) {
-        nickname = nickname.trim();
+    private void handleNick(CommandLine args) {
+        String nickname = args.rest();
 
         // validate nickname format (alphanumeric, 1-20 chars)
-        if (nickname.isEmpty() || nickname.length() > 20 ||
-                !nickname.matches("[a-zA-Z0-9_]+")) {
+        if (!isValidNickname(nickname)) {
             send("ERROR 400 Invalid nickname (1-20 alphanumeric characters)\n");
             return;
         }
@@ -163,21 +550,42 @@ public class ClientHandler implements Runnable {
         }
 
         // if they had an old name, remove it from the registry
+        // (channels first, they find the user through the old name)
         if (this.nickname != null) {
-            server.unregisterClient(this.nickname);
             server.removeFromAllChannels(this.nickname);
+            server.unregisterClient(this.nickname);
         }
 
-        // register the new name
+        // register the new name (in a cluster another node can take it between the check and here)
+        if (!server.registerClient(nickname, this)) {
+            this.nickname = null;
+            send("ERROR 409 Nickname already in use\n");
+            return;
+        }
         this.nickname = nickname;
-        server.registerClient(nickname, this);
 
         send("OK NICK Welcome, " + nickname + "!\n");
+        server.deliverMail(this);
+    }
+
+    // 1-20 letters, digits or underscores, checked by hand instead of with a regex
+    static boolean isValidNickname(String nickname) {
+        int length = nickname.length();
+        if (length == 0 || length > 20) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = nickname.charAt(i);
+            if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9') && c != '_') {
+                return false;
+            }
+        }
+        return true;
     }
 
     // function to join a channel
-    private void handleJoin(String channel) {
-        channel = channel.trim();
+    private void handleJoin(CommandLine args) {
+        String channel = args.next();
 
         // channels must start with #
         if (!channel.startsWith("#")) {
@@ -185,81 +593,212 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        server.joinChannel(channel, nickname);
-        send("OK JOIN You joined " + channel + "\n");
-
-        // broadcast to everyone in the channel
-        server.broadcastToChannel(channel, "JOIN " + channel + " " + nickname + "\n", nickname);
+        // the rest runs on the channel's shard, maybe after a NICK: it's still the old name's JOIN
+        String nickname = this.nickname;
+        int userId = this.userId;
+        server.onChannel(channel, () -> {
+            // taken before joining: a message sent in between is missed rather than shown twice
+            List<byte[]> recent = server.getHistory().last(channel, server.getConfig().getHistoryOnJoin());
+            server.joinChannel(channel, userId);
+            send("OK JOIN You joined " + channel + "\n");
+            replay(channel, recent);
+
+            // broadcast to everyone in the channel
+            server.broadcastToChannel(channel,
+                    ("JOIN " + channel + " " + nickname + "\n").getBytes(StandardCharsets.UTF_8), nickname, userId);
+        });
     }
 
     // function to leave a channel
-    private void handlePart(String channel) {
-        channel = channel.trim();
-
-        if (!server.isInChannel(channel, nickname)) {
-            send("ERROR 404 You are not in " + channel + "\n");
-            return;
-        }
+    private void handlePart(CommandLine args) {
+        String channel = args.next();
+        String nickname = this.nickname;
+        int userId = this.userId;
+        server.onChannel(channel, () -> {
+            if (!server.isInChannel(channel, userId)) {
+                send("ERROR 404 You are not in " + channel + "\n");
+                return;
+            }
 
-        server.partChannel(channel, nickname);
-        send("OK PART You left " + channel + "\n");
+            server.partChannel(channel, userId);
+            send("OK PART You left " + channel + "\n");
 
-        // broadcast to everyone in the channel
-        server.broadcastToChannel(channel, "PART " + channel + " " + nickname + "\n", null);
+            // broadcast to everyone in the channel
+            server.broadcastToChannel(channel, "PART " + channel + " " + nickname + "\n", null);
+        });
     }
 
     // function to send a private message to another user
-    private void handleMsg(String args) {
-        String[] parts = args.split(" ", 2);
-        if (parts.length < 2) {
+    private void handleMsg(CommandLine args) {
+        String target = args.next();
+        if (args.isEmpty()) {
             send("ERROR 400 Usage: MSG <user> <message>\n");
             return;
         }
+        String message = args.rest();
 
-        String target = parts[0].trim();
-        String message = parts[1];
-
+        // here, on another node, or nowhere (then it may wait in the mailbox)
+        byte[] frame = ("MSG " + nickname + " " + message + "\n").getBytes(StandardCharsets.UTF_8);
         ClientHandler targetClient = server.getClient(target);
-        if (targetClient == null) {
-            send("ERROR 404 User " + target + " not found\n");
+        if (targetClient != null) {
+            targetClient.sendFrame(frame);
+        } else if (!server.sendToRemoteUser(target, frame)) {
+            storeMessage(target, message);
             return;
         }
 
-        targetClient.send("MSG " + nickname + " " + message + "\n");
+        if (server.getJournal() != null) {
+            // the line the receiver got doesn't say who it was for, the journal's copy does
+            server.record(("MSG " + nickname + " " + target + " " + message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
         send("OK MSG Message sent to " + target + "\n");
     }
 
+    // the target of a MSG isn't connected: keep it for when they are, if we keep mail
+    private void storeMessage(String target, String message) {
+        Mailbox mailbox = server.getMailbox();
+        if (mailbox == null || !isValidNickname(target)) {
+            send("ERROR 404 User " + target + " not found\n");
+            return;
+        }
+        // the file is written on the mailbox thread, the reply comes from there too
+        String nickname = this.nickname;
+        server.onMailbox(() -> {
+            Mailbox.Refusal refusal = mailbox.store(target,
+                    ("MSG " + nickname + " " + message + "\n").getBytes(StandardCharsets.UTF_8));
+            if (refusal == Mailbox.Refusal.FULL) {
+                send("ERROR 507 " + target + " is offline and their mailbox is full\n");
+                return;
+            }
+            if (refusal != null) {
+                send("ERROR 503 " + target + " is offline and the message could not be kept\n");
+                return;
+            }
+            if (server.getJournal() != null) {
+                server.record(("MSG " + nickname + " " + target + " " + message + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            send("OK MSG " + target + " is offline, they will get it when they are back\n");
+
+            // they may have picked their nickname while we were storing it
+            ClientHandler targetClient = server.getClient(target);
+            if (targetClient != null) {
+                server.deliverMail(targetClient);
+            }
+        });
+    }
+
     // function to send a message to a channel
-    private void handleChan(String args) {
-        String[] parts = args.split(" ", 2);
-        if (parts.length < 2) {
+    private void handleChan(CommandLine args) {
+        String channel = args.next();
+        if (args.isEmpty()) {
             send("ERROR 400 Usage: CHAN <channel> <message>\n");
             return;
         }
+        String message = args.rest();
+        String nickname = this.nickname;
+        int userId = this.userId;
+
+        // on the channel's shard, so the check sees a JOIN sent just before
+        server.onChannel(channel, () -> {
+            // error handling for channel, check if the user is in the channel
+            if (!server.isInChannel(channel, userId)) {
+                send("ERROR 404 You are not in " + channel + "\n");
+                return;
+            }
 
-        String channel = parts[0].trim();
-        String message = parts[1];
+            // broadcast to everyone else in the channel, and keep the same bytes for its history
+            byte[] frame = ("CHAN " + channel + " " + nickname + " " + message + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            server.keepChannelMessage(channel, frame, message);
+            server.broadcastToChannel(channel, frame, nickname, userId);
+            send("OK CHAN Message sent to " + channel + "\n");
+        });
+    }
+
+    // function to show the last n messages of a channel you're in: HISTORY <channel> [n]
+    private void handleHistory(CommandLine args) {
+        String channel = args.next();
+        long n = args.isEmpty() ? server.getConfig().getHistoryOnJoin() : args.nextLong();
+        if (channel.isEmpty() || n <= 0) {
+            send("ERROR 400 Usage: HISTORY <channel> [count]\n");
+            return;
+        }
+        int userId = this.userId;
+        server.onChannel(channel, () -> {
+            if (!server.isInChannel(channel, userId)) {
+                send("ERROR 404 You are not in " + channel + "\n");
+                return;
+            }
+            replay(channel, server.getHistory().last(channel, (int) Math.min(n, Integer.MAX_VALUE)));
+        });
+    }
 
-        // error handling for channel, check if the user is in the channel
-        if (!server.isInChannel(channel, nickname)) {
-            send("ERROR 404 You are not in " + channel + "\n");
+    // function to find old channel messages with all the given words, newest first:
+    // SEARCH <channel> <words>, or SEARCH * <words> for every channel you're in
+    private void handleSearch(CommandLine args) {
+        String scope = args.next();
+        String query = args.rest();
+        if (scope.isEmpty() || query.isEmpty()) {
+            send("ERROR 400 Usage: SEARCH <channel|*> <words>\n");
+            return;
+        }
+        SearchIndex index = server.getSearchIndex();
+        if (index == null) {
+            send("ERROR 503 Search is not enabled on this server\n");
             return;
         }
+        int max = server.getConfig().getSearchMaxResults();
+        long[] hits;
+        if (scope.equals("*")) {
+            hits = index.search(null, server.getChannelsOf(userId), query, max);
+        } else if (server.isInChannel(scope, userId)) {
+            hits = index.search(scope, null, query, max);
+        } else {
+            send("ERROR 404 You are not in " + scope + "\n");
+            return;
+        }
+
+        // the index only has offsets, the messages themselves come from the journal
+        Journal journal = server.getJournal();
+        List<byte[]> found = new ArrayList<>(hits.length);
+        for (int i = hits.length - 1; i >= 0; i--) {
+            List<Journal.Entry> entries = journal.read(hits[i], 1);
+            if (!entries.isEmpty() && entries.get(0).offset == hits[i]) {
+                found.add(entries.get(0).payload);
+            }
+        }
+        replay("SEARCH", scope, found);
+    }
 
-        // broadcast to everyone else in the channel
-        server.broadcastToChannel(channel, "CHAN " + channel + " " + nickname + " " + message + "\n", nickname);
-        send("OK CHAN Message sent to " + channel + "\n");
+    // send old CHAN lines as they were, after a HISTORY line saying how many follow
+    private void replay(String channel, List<byte[]> frames) {
+        replay("HISTORY", channel, frames);
+    }
+
+    // same with another header, e.g. "SEARCH #chan 3"
+    private void replay(String header, String channel, List<byte[]> frames) {
+        if (frames.isEmpty() && header.equals("HISTORY")) {
+            return;
+        }
+        send(header + " " + channel + " " + frames.size() + "\n");
+        for (byte[] frame : frames) {
+            sendFrame(frame);
+        }
     }
 
     // function to handle battleship game commands
-    private void handleGame(String args) {
-        String[] parts = args.split(" ", 2);
-        String subCmd = parts[0].toUpperCase();
-        String param = parts.length > 1 ? parts[1] : "";
+    private void handleGame(CommandLine args) {
+        GameAction action = args.nextVerb(GameAction.TABLE);
+        if (action == null) {
+            send("ERROR Unknown game command. Usage: /game [challenge|accept|fire|quit]\n");
+            return;
+        }
 
-        switch (subCmd) {
-            case "CHALLENGE":
+        switch (action) {
+            case CHALLENGE: {
                 // challenge another user to a game
+                String param = args.next();
                 ClientHandler opponent = server.getClient(param);
                 if (opponent == null) {
                     send("ERROR User not found\n");
@@ -271,10 +810,11 @@ public class ClientHandler implements Runnable {
                     send("OK GAME Challenge sent to " + param + "\n");
                 }
                 break;
+            }
 
-            case "ACCEPT":
+            case ACCEPT:
                 // accept a challenge
-                ClientHandler challenger = server.getClient(param);
+                ClientHandler challenger = server.getClient(args.next());
                 if (challenger == null) {
                     send("ERROR User not found\n");
                 } else {
@@ -282,7 +822,7 @@ public class ClientHandler implements Runnable {
                 }
                 break;
 
-            case "PLACE":
+            case PLACE:
                 // place a ship on the board
                 GameSession setupGame = server.getGame(this);
                 if (setupGame == null) {
@@ -290,12 +830,13 @@ public class ClientHandler implements Runnable {
                     return;
                 }
                 // need correct parameters
-                String[] placeParts = param.split(" ");
-                if (placeParts.length < 2) {
+                String coord = args.next();
+                String orientation = args.next();
+                if (orientation.isEmpty()) {
                     send("ERROR Usage: /game place <coord> <H/V>\n");
                     return;
                 }
-                String result = setupGame.placeShip(this, placeParts[0], placeParts[1]);
+                String result = setupGame.placeShip(this, coord, orientation);
                 if (result.startsWith("ERROR")) {
                     send(result + "\n");
                 } else if (result.equals("READY")) {
@@ -316,13 +857,14 @@ public class ClientHandler implements Runnable {
                 }
                 break;
 
-            case "FIRE":
+            case FIRE: {
                 // fire a shot
                 GameSession game = server.getGame(this);
                 if (game == null) {
                     send("ERROR You are not in a game\n");
                     return;
                 }
+                String param = args.next();
                 String fireResult = game.processMove(this, param);
                 if (fireResult.startsWith("ERROR")) {
                     send(fireResult + "\n");
@@ -341,9 +883,10 @@ public class ClientHandler implements Runnable {
                     }
                 }
                 break;
+            }
 
-            case "SURRENDER":
-            case "QUIT":
+            case SURRENDER:
+            case QUIT:
                 // give up
                 GameSession activeGame = server.getGame(this);
                 if (activeGame != null) {
@@ -355,14 +898,11 @@ public class ClientHandler implements Runnable {
                     send("ERROR No active game to surrender\n");
                 }
                 break;
-
-            default:
-                send("ERROR Unknown game command. Usage: /game [challenge|accept|fire|quit]\n");
         }
     }
 
     // list available channels
-    private void handleList(String args) {
+    private void handleList(CommandLine args) {
         java.util.List<String> channels = server.getChannelList();
         if (channels.isEmpty()) {
             send("CHANLIST No channels available\n");
@@ -372,8 +912,8 @@ public class ClientHandler implements Runnable {
     }
 
     // function that list users in a channel or all users
-    private void handleUsers(String args) {
-        String channel = args.trim();
+    private void handleUsers(CommandLine args) {
+        String channel = args.next();
 
         if (channel.isEmpty()) {
             java.util.List<String> users = server.getAllUsers();
@@ -389,107 +929,379 @@ public class ClientHandler implements Runnable {
     }
 
     // function to handle file transfer requests
-    private void handleFile(String args) {
+    private void handleFile(CommandLine args) {
         // expected: FILE <user> <filename> <size> [checksum]
-        String[] parts = args.split(" ", 4);
-        if (parts.length < 3) {
+        String target = args.next();
+        String filename = args.next();
+        if (args.isEmpty()) {
             send("ERROR 400 Usage: FILE <user> <filename> <size> [checksum]\n");
             return;
         }
 
-        String target = parts[0].trim();
-        String filename = parts[1].trim();
-        int size;
-        String checksum = parts.length > 3 ? parts[3].trim() : null;
-
-        try {
-            size = Integer.parseInt(parts[2].trim());
-        } catch (NumberFormatException e) {
+        long size = args.nextLong();
+        if (size < 0) {
             send("ERROR 400 Invalid file size\n");
             return;
         }
+        String checksum = args.isEmpty() ? null : args.rest();
 
         ClientHandler targetClient = server.getClient(target);
         if (targetClient == null) {
             send("ERROR 404 User " + target + " not found\n");
             return;
         }
+        if (targetClient.isFramed()) {
+            // a raw stream can't go down a framed connection
+            send("ERROR 409 " + target + " only takes FILESTART transfers\n");
+            return;
+        }
 
-        // notify target that a file is coming
+        // the offer and data header are queued on the target together, then the file
+        // streams in behind them as we read it
         String offerMsg = "FILEOFFER " + nickname + " " + filename + " " + size;
         if (checksum != null) {
             offerMsg += " " + checksum;
         }
-        targetClient.send(offerMsg + "\n");
+        FileRelay relay = new FileRelay(this, targetClient, target, size, server);
+        if (!relay.open(offerMsg + "\n", size)) {
+            send("ERROR 409 " + target + " is already receiving a file\n");
+            return;
+        }
+        upload = relay;
 
         // tell sender to start sending data
         send("OK FILE Send file data now\n");
 
+        if (connection != null) {
+            // the event loop passes the bytes on as they arrive
+            connection.readRaw(relay);
+            return;
+        }
+
         try {
-            InputStream in = socket.getInputStream();
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            byte[] data = new byte[4096];
-            int remaining = size;
-            int bytesRead;
-
-            // read exactly 'size' bytes from the stream
-            while (remaining > 0) {
-                int toRead = Math.min(remaining, data.length);
-                bytesRead = in.read(data, 0, toRead);
-                if (bytesRead == -1)
+            byte[] data = rawBuffer();
+
+            // read exactly 'size' bytes, never more than a window ahead of the receiver
+            while (relay.remaining() > 0) {
+                relay.awaitRoom();
+                int bytesRead = input.read(data, 0, (int) Math.min(relay.remaining(), data.length));
+                if (bytesRead == -1) {
                     break;
-                buffer.write(data, 0, bytesRead);
-                remaining -= bytesRead;
+                }
+                relay.write(data, 0, bytesRead);
+            }
+
+            if (relay.remaining() > 0) {
+                relay.abort();
+            } else {
+                relay.finish();
+            }
+        } catch (IOException e) {
+            relay.abort();
+            send("ERROR 500 File transfer failed: " + e.getMessage() + "\n");
+        } catch (InterruptedException e) {
+            relay.abort();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // function to start a multiplexed file transfer. unlike FILE, the data comes in
+    // numbered chunks, so a client can send several files at once and keep chatting
+    private void handleFileStart(CommandLine args) {
+        // expected: FILESTART <id> <user> <filename> <size> [checksum]
+        long id = args.nextLong();
+        String target = args.next();
+        String filename = args.next();
+        long size = args.nextLong();
+        if (id < 0 || id > Integer.MAX_VALUE || filename.isEmpty() || size < 0) {
+            send("ERROR 400 Usage: FILESTART <id> <user> <filename> <size> [checksum]\n");
+            return;
+        }
+        String checksum = args.isEmpty() ? null : args.rest();
+        int uploadId = (int) id;
+
+        // the receiver is told who it's from
+        if (nickname == null) {
+            send("ERROR 400 Set a nickname with /nick <name> first\n");
+            return;
+        }
+        if (uploads.containsKey(uploadId)) {
+            send("FILEFAIL " + uploadId + " Transfer id already in use\n");
+            return;
+        }
+        ClientHandler targetClient = server.getClient(target);
+        if (targetClient == null) {
+            send("FILEFAIL " + uploadId + " User " + target + " not found\n");
+            return;
+        }
+
+        FileTransfer transfer = new FileTransfer(this, uploadId, targetClient, target, size, server);
+        uploads.put(uploadId, transfer);
+        // the window is how many bytes the client may send before it has to wait for a FILEACK
+        send("OK FILESTART " + uploadId + " " + transfer.getWindow() + "\n");
+        if (!transfer.open(filename, checksum)) {
+            transfer.abort(target + " disconnected");
+        }
+    }
+
+    // function to take one chunk of a multiplexed transfer
+    private void handleFileChunk(CommandLine args) {
+        // expected: FILECHUNK <id> <offset> <length> <crc32>, then exactly <length> bytes of file data
+        long id = args.nextLong();
+        long offset = args.nextLong();
+        long length = args.nextLong();
+        if (length < 0 || length > FileTransfer.MAX_CHUNK) {
+            // we can't tell where the chunk ends, so there's no finding the next command either
+            send("ERROR 400 Invalid chunk length (at most " + FileTransfer.MAX_CHUNK + " bytes)\n");
+            hangUp();
+            return;
+        }
+        String crcText = args.next();
+        long crc = -1;
+        if (!crcText.isEmpty() && crcText.length() <= 8) {
+            try {
+                crc = Long.parseLong(crcText, 16);
+            } catch (NumberFormatException e) {
+                // no usable checksum, same as none
+            }
+        }
+        takeChunk(id, offset, (int) length, crc);
+    }
+
+    // the next length bytes from the client are the chunk at offset of upload id, with its
+    // CRC32 (-1 if it didn't send a usable one). from a FILECHUNK line or a CHUNK frame
+    private void takeChunk(long id, long offset, int length, long crc) {
+        FileTransfer transfer = id >= 0 && id <= Integer.MAX_VALUE ? uploads.get((int) id) : null;
+        NioConnection.RawSink sink;
+        if (transfer != null && crc >= 0 && transfer.beginChunk(offset, length, (int) crc)) {
+            sink = transfer;
+        } else {
+            if (transfer != null) {
+                transfer.abort("Bad chunk (outside the file, or no checksum)");
             }
+            // a transfer that has ended (or never started): the bytes still have to be read
+            sink = FileTransfer.discard(length);
+        }
+        readRaw(sink);
+    }
 
-            byte[] fileData = buffer.toByteArray();
+    // function to cancel a multiplexed transfer we're sending
+    private void handleFileAbort(CommandLine args) {
+        long id = args.nextLong();
+        FileTransfer transfer = id >= 0 && id <= Integer.MAX_VALUE ? uploads.get((int) id) : null;
+        if (transfer != null) {
+            transfer.abort("Cancelled by " + nickname);
+        }
+    }
 
-            // forward the data to the target client
-            targetClient.sendFileData(fileData);
+    // function for the receiving end of a multiplexed transfer to answer the sender:
+    // FILERESUME <id> <offset>     where to start, the receiver may have part of the file
+    // FILERESEND <id> <offset> <length>  a chunk arrived damaged, send it again
+    // FILEDONE <id>                the whole file arrived and checked out
+    // FILEREJECT <id> <reason>     the receiver gives up on it
+    private void handleFileReply(Command cmd, CommandLine args) {
+        long id = args.nextLong();
+        FileTransfer transfer = id >= 0 && id <= Integer.MAX_VALUE ? downloads.get((int) id) : null;
+        if (transfer == null) {
+            return; // it ended already, nobody is waiting for this
+        }
 
-            send("OK FILE File sent to " + target + "\n");
+        switch (cmd) {
+            case FILERESUME: {
+                long offset = args.nextLong();
+                if (offset < 0) {
+                    send("ERROR 400 Usage: FILERESUME <id> <offset>\n");
+                    return;
+                }
+                transfer.resume(offset);
+                break;
+            }
+            case FILERESEND: {
+                long offset = args.nextLong();
+                long length = args.nextLong();
+                if (offset < 0 || length <= 0 || length > FileTransfer.MAX_CHUNK) {
+                    send("ERROR 400 Usage: FILERESEND <id> <offset> <length>\n");
+                    return;
+                }
+                transfer.resend(offset, (int) length);
+                break;
+            }
+            case FILEDONE:
+                transfer.confirm();
+                break;
+            default:
+                String reason = args.rest();
+                transfer.abort(reason.isEmpty() ? "Rejected by " + nickname : reason);
+        }
+    }
 
+    // the next sink.remaining() bytes from the client are file data, hand them over
+    private void readRaw(NioConnection.RawSink sink) {
+        if (connection != null) {
+            connection.readRaw(sink); // the event loop does it as they arrive
+            return;
+        }
+        try {
+            byte[] data = rawBuffer();
+            while (sink.remaining() > 0) {
+                int n = input.read(data, 0, (int) Math.min(sink.remaining(), data.length));
+                if (n < 0) {
+                    throw new EOFException("Connection closed in the middle of a file chunk");
+                }
+                sink.write(data, 0, n);
+            }
+            sink.finish();
         } catch (IOException e) {
-            send("ERROR 500 File transfer failed: " + e.getMessage() + "\n");
+            // the reader loop would have hit the same error, stop here instead
+            ServerLog.warn("[CLIENT {}] Error: {}", this, e.getMessage());
+            hangUp();
+        }
+    }
+
+    private byte[] rawBuffer() {
+        if (rawBuffer == null) {
+            rawBuffer = new byte[64 * 1024];
+        }
+        return rawBuffer;
+    }
+
+    void removeUpload(int id, FileTransfer transfer) {
+        uploads.remove(id, transfer);
+    }
+
+    void addDownload(FileTransfer transfer) {
+        downloads.put(transfer.getId(), transfer);
+        // the receiver may have gone between the lane opening and now
+        if (disconnected.get()) {
+            transfer.abort(nickname + " disconnected");
+        }
+    }
+
+    void removeDownload(FileTransfer transfer) {
+        downloads.remove(transfer.getId(), transfer);
+    }
+
+    // function to show the server counters, and how this connection's compression is doing
+    private void handleStats() {
+        StringBuilder sb = new StringBuilder("STATS");
+        for (java.util.Map.Entry<String, Long> entry : server.getStats().snapshot().entrySet()) {
+            sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        Compression compression = this.compression;
+        if (compression != null) {
+            sb.append(" you.deflate.plainBytes=").append(compression.getPlainOut() + compression.getPlainIn())
+                    .append(" you.deflate.wireBytes=").append(compression.getPackedOut() + compression.getPackedIn())
+                    .append(" you.deflate.cpuMicros=").append(compression.getCpuMicros());
         }
+        send(sb.append('\n').toString());
     }
 
     // function to handle user quitting
-    private void handleQuit(String message) {
+    private void handleQuit(CommandLine args) {
+        String message = args.rest();
         String quitMsg = message.isEmpty() ? "Client disconnected" : message;
         send("OK QUIT " + quitMsg + "\n");
+        hangUp();
+    }
+
+    // stop reading from the client, what's queued for them still goes out
+    private void hangUp() {
         running = false;
+        if (connection != null) {
+            connection.closeGracefully();
+        }
     }
 
-    // helper to send a message to this client
+    // helper to send a message to this client, it only queues so it never blocks
     public void send(String message) {
-        if (writer != null) {
-            writer.print(message);
-            writer.flush();
+        sendFrame(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // queue an already encoded message. broadcasts pass the same array to every
+    // member, so the writer only ever reads it
+    public void sendFrame(byte[] frame) {
+        if (outbound.offer(frame) == OutboundQueue.Result.DISCONNECT) {
+            dropSlowConsumer();
+        }
+    }
+
+    // kick a client whose queue stayed over the high-water mark for too long
+    private void dropSlowConsumer() {
+        ServerLog.warn("[CLIENT {}] Disconnected: too slow to receive messages", this);
+        server.getStats().counter("outbound.slowDisconnects").increment();
+        running = false;
+        outbound.clear();
+        // closing the socket wakes up the reader and writer, the reader then does the cleanup
+        if (connection != null) {
+            connection.abort();
+        } else {
+            abortSocket();
         }
     }
 
-    // helper to send binary file data to this client
-    public void sendFileData(byte[] fileData) throws IOException {
-        OutputStream out = socket.getOutputStream();
-        // send a header first so the client knows what's coming
-        String header = "FILEDATA " + fileData.length + "\n";
-        out.write(header.getBytes());
-        out.write(fileData);
-        out.flush();
+    // another node gave our nickname to someone else first (see Federation): say so and
+    // disconnect, on another thread since the caller is a cluster link's reader
+    public void nicknameTaken() {
+        ServerLog.info("[CLIENT {}] Disconnected: nickname taken on another node", this);
+        send("ERROR 409 Nickname already in use on another server\n");
+        server.runTask(this::disconnect);
+    }
+
+    // blocking mode: close the socket without a goodbye, see dropSlowConsumer()
+    private void abortSocket() {
+        try {
+            // linger 0 stops close() from waiting on the stuck writer to send close_notify,
+            // and we don't touch the reader here since its own thread is blocked inside it
+            socket.setSoLinger(true, 0);
+            socket.close();
+        } catch (IOException e) {
+            ServerLog.warn("Error closing client connection: {}", e.getMessage());
+        }
     }
 
     // clean up resources when the client disconnects
     public void disconnect() {
+        // shutdown and the handler's own cleanup can both end up here
+        if (!disconnected.compareAndSet(false, true)) {
+            return;
+        }
         running = false;
+        server.getAdmission().release(limits);
+        TimerWheel.Timeout check = idleCheck;
+        if (check != null) {
+            check.cancel();
+        }
+
+        // an upload that broke off halfway still owes its receiver the rest of the bytes
+        FileRelay relay = upload;
+        if (relay != null) {
+            relay.abort();
+        }
+        // same for multiplexed transfers, whichever end of them we were
+        for (FileTransfer transfer : uploads.values()) {
+            transfer.abort(nickname + " disconnected");
+        }
+        for (FileTransfer transfer : downloads.values()) {
+            transfer.abort(nickname + " disconnected");
+        }
+
+        Compression compression = this.compression;
+        if (compression != null) {
+            // the server-wide totals only take a connection's numbers once it's gone
+            ServerStats stats = server.getStats();
+            stats.counter("deflate.plainBytes").add(compression.getPlainOut() + compression.getPlainIn());
+            stats.counter("deflate.wireBytes").add(compression.getPackedOut() + compression.getPackedIn());
+            stats.counter("deflate.cpuMicros").add(compression.getCpuMicros());
+            ServerLog.info("[CLIENT {}] Compression: {}", this, compression.summary());
+        }
 
         if (nickname != null) {
-            System.out.println("[CLIENT " + nickname + "] Disconnected");
+            ServerLog.info("[CLIENT {}] Disconnected", nickname);
 
             // remove them from everything
             server.removeFromAllChannels(nickname);
-            server.unregisterClient(nickname);
             server.broadcastQuit(nickname, "Disconnected");
+            server.unregisterClient(nickname);
 
             // if they were in a game, forfeit
             GameSession activeGame = server.getGame(this);
@@ -500,23 +1312,57 @@ public class ClientHandler implements Runnable {
             }
         }
 
+        // let whatever is queued (like the OK QUIT reply) go out before we close
+        outbound.close();
+        if (connection != null) {
+            connection.closeGracefully();
+            return;
+        }
+        if (writerDone != null) {
+            try {
+                writerDone.await(WRITER_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeSocket();
+    }
+
+    // close the input and socket, safe to call more than once
+    private void closeSocket() {
         try {
-            if (reader != null)
-                reader.close();
-            if (writer != null)
-                writer.close();
+            if (input != null)
+                input.close();
             if (socket != null && !socket.isClosed())
                 socket.close();
         } catch (IOException e) {
-            System.err.println("Error closing client connection: " + e.getMessage());
+            ServerLog.warn("Error closing client connection: {}", e.getMessage());
         }
     }
 
+    public boolean isFramed() {
+        return framed;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
     public String getNickname() {
         return nickname;
     }
 
-    private String getIdentifier() {
-        return nickname != null ? nickname : socket.getRemoteSocketAddress().toString();
+    public int getUserId() {
+        return userId;
+    }
+
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
+
+    // how this client shows up in the log, only called once a message is actually logged
+    @Override
+    public String toString() {
+        return nickname != null ? nickname : String.valueOf(remoteAddress);
     }
 }
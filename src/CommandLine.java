@@ -0,0 +1,95 @@
+public class CommandLine {
+    /**
+     * A reusable cursor over one line from a client.
+     * Commands pull their arguments off it one word at a time, so parsing a line
+     * doesn't split it into arrays or run any regexes. The only strings created
+     * are the arguments a command actually keeps (a nickname, a message...).
+     */
+
+    private String line = "";
+    private int start;
+    private int pos;
+    private int end;
+
+    // start over on a new line, surrounding whitespace is ignored like trim() would
+    public CommandLine reset(String line) {
+        this.line = line;
+        this.pos = 0;
+        this.end = line.length();
+        while (end > 0 && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        while (pos < end && line.charAt(pos) <= ' ') {
+            pos++;
+        }
+        this.start = pos;
+        return this;
+    }
+
+    // how long the line is, not counting the whitespace around it
+    public int length() {
+        return end - start;
+    }
+
+    // true if there is nothing (left) on the line
+    public boolean isEmpty() {
+        return pos >= end;
+    }
+
+    // the next word, or "" if there are none left
+    public String next() {
+        int start = pos;
+        int stop = skipWord();
+        return line.substring(start, stop);
+    }
+
+    // the next word looked up in a verb table, null if it isn't in there
+    public <E extends Enum<E>> E nextVerb(VerbTable<E> table) {
+        int start = pos;
+        int stop = skipWord();
+        return table.find(line, start, stop);
+    }
+
+    // the next word as a non-negative number, -1 if it isn't one (or doesn't fit)
+    public long nextLong() {
+        int start = pos;
+        int stop = skipWord();
+        if (start == stop || stop - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < stop; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // everything that's left on the line, e.g. the text of a message
+    public String rest() {
+        String rest = line.substring(pos, end);
+        pos = end;
+        return rest;
+    }
+
+    // move past the current word and the spaces after it, returns where the word ended
+    private int skipWord() {
+        int stop = pos;
+        while (stop < end && line.charAt(stop) != ' ') {
+            stop++;
+        }
+        pos = stop;
+        while (pos < end && line.charAt(pos) == ' ') {
+            pos++;
+        }
+        return stop;
+    }
+
+    @Override
+    public String toString() {
+        return line.substring(start, end);
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.*;
+
+public class Compression {
+    /**
+     * DEFLATE for one binary-framed connection, asked for with PROTO BINARY DEFLATE.
+     * Each direction is a single compression stream that lives as long as the
+     * connection (flushed after every frame), so a message is compressed against
+     * everything that went before it, and both ends start the stream from the
+     * same preset dictionary of text the server sends all the time (game boards
+     * above all). Frames under the threshold go out as plain TEXT frames and
+     * never touch the stream, which is why the two can be mixed freely.
+     * The compressing side is used by one writer at a time and the inflating
+     * side by one reader, the counters are only read for STATS.
+     */
+
+    public static final int DEFAULT_THRESHOLD = 128; // smaller frames cost more to compress than they save
+
+    // what both ends prime their streams with. DEFLATE looks back at most 32 KB and
+    // finds the end of the dictionary cheapest, so the most common text goes last
+    static final byte[] DICTIONARY = ("OK MSG Message sent to OK CHAN Message sent to #general "
+            + "ERROR 404 You are not in #ERROR 400 Usage: JOIN # PART # QUIT USERLIST CHANLIST MSG CHAN #"
+            + "GAME_OVER YOU WON! GAME_SETUP Placed! Next: Battleship Cruiser Submarine Destroyer Carrier "
+            + "GAME_START Game Started! Your turn. Opponent's turn. "
+            + "GAME_UPDATE Opponent fired at A1: MISS! HIT! SUNK! You fired at A1: "
+            + "Status: SETUP PHASE YOUR TURN OPPONENT'S TURN COMMANDS:"
+            + "/fire <coord>   - Attack (e.g. A5)/place <coord> <H/V>  (e.g. A1 H)   - Top-Left Edge"
+            + "/surrender      - Give up TO PLACE: You 5 | Enemy 5ALIVE:    You 5 | Enemy 5\n"
+            + "\n            YOUR SHIPS                           ENEMY WATERS                  GAME INFO\n"
+            + "      1  2  3  4  5  6  7  8  9  10      1  2  3  4  5  6  7  8  9  10   --------------------------\n"
+            + "   A  ~  ~  ~  ~  ~  ~  ~  ~  ~  ~    A  ~  ~  ~  ~  ~  ~  ~  ~  ~  ~   \n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    private final int threshold;
+    private byte[] deflateBuffer = new byte[4 * 1024];
+    private byte[] inflateBuffer = new byte[4 * 1024];
+
+    // what the compressing side has done so far: bytes in, bytes out, CPU time
+    private volatile long plainOut;
+    private volatile long packedOut;
+    private volatile long deflateNanos;
+    // and the inflating side
+    private volatile long packedIn;
+    private volatile long plainIn;
+    private volatile long inflateNanos;
+
+    public Compression(int level, int threshold) {
+        this.deflater = new Deflater(level);
+        this.deflater.setDictionary(DICTIONARY);
+        this.threshold = threshold;
+    }
+
+    // a whole DEFLATE frame (header included) carrying the text, or null if the text is
+    // too short to bother and should go as a TEXT frame
+    public byte[] compress(byte[] text, int length) {
+        if (length < threshold) {
+            return null;
+        }
+        long start = System.nanoTime();
+        deflater.setInput(text, 0, length);
+        int n = Frames.HEADER_LENGTH;
+        while (true) {
+            n += deflater.deflate(deflateBuffer, n, deflateBuffer.length - n, Deflater.SYNC_FLUSH);
+            if (n < deflateBuffer.length) {
+                break; // a full buffer means there may be more output waiting
+            }
+            deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+        }
+        // a copy, the frame can sit in a write queue while we compress the next one
+        byte[] frame = Arrays.copyOf(deflateBuffer, n);
+        frame[0] = Frames.DEFLATE;
+        Frames.putInt(frame, 1, n - Frames.HEADER_LENGTH);
+
+        deflateNanos += System.nanoTime() - start;
+        plainOut += length;
+        packedOut += n - Frames.HEADER_LENGTH;
+        return frame;
+    }
+
+    // inflate the payload of a DEFLATE frame into inflated(), returns how many bytes that is.
+    // the other end decides the frame sizes, so anything over maxLength is refused
+    public int inflate(byte[] data, int length, int maxLength) throws IOException {
+        long start = System.nanoTime();
+        inflater.setInput(data, 0, length);
+        int n = 0;
+        try {
+            while (true) {
+                int k = inflater.inflate(inflateBuffer, n, inflateBuffer.length - n);
+                if (k == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                    continue;
+                }
+                n += k;
+                if (n == inflateBuffer.length) {
+                    if (n >= maxLength) {
+                        throw new IOException("Compressed frame too large");
+                    }
+                    inflateBuffer = Arrays.copyOf(inflateBuffer, Math.min(n * 2, maxLength));
+                    continue;
+                }
+                if (k == 0 || inflater.needsInput()) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame: " + e.getMessage());
+        }
+        if (inflater.getRemaining() > 0 || inflater.finished()) {
+            throw new IOException("Bad compressed frame");
+        }
+
+        inflateNanos += System.nanoTime() - start;
+        packedIn += length;
+        plainIn += n;
+        return n;
+    }
+
+    // where inflate() put the text, valid until the next call
+    public byte[] inflated() {
+        return inflateBuffer;
+    }
+
+    public long getPlainOut() {
+        return plainOut;
+    }
+
+    public long getPackedOut() {
+        return packedOut;
+    }
+
+    public long getPlainIn() {
+        return plainIn;
+    }
+
+    public long getPackedIn() {
+        return packedIn;
+    }
+
+    // CPU spent compressing and inflating, in microseconds
+    public long getCpuMicros() {
+        return (deflateNanos + inflateNanos) / 1000;
+    }
+
+    // e.g. "12345 -> 2345 bytes (5.3x), 4 ms", for the log
+    public String summary() {
+        long plain = plainOut + plainIn;
+        long packed = packedOut + packedIn;
+        return plain + " -> " + packed + " bytes ("
+                + (packed > 0 ? String.format("%.1fx", (double) plain / packed) : "-") + "), "
+                + getCpuMicros() / 1000 + " ms";
+    }
+}
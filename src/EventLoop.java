@@ -0,0 +1,140 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class EventLoop implements Runnable {
+    /**
+     * A single selector thread for the non-blocking server mode.
+     * Each loop owns a group of connections: their reads, TLS work and command
+     * dispatch all happen on this one thread, so a handful of loops can serve
+     * thousands of clients without a thread each.
+     */
+
+    private final int id;
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final AtomicBoolean wakeupPending;
+    private final ByteBuffer writeBuffer; // shared by this loop's connections while they flush
+    private volatile boolean running;
+    private Thread thread;
+
+    public EventLoop(int id, int writeBufferSize) throws IOException {
+        this.id = id;
+        this.writeBuffer = ByteBuffer.allocate(writeBufferSize);
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.wakeupPending = new AtomicBoolean(false);
+        this.running = false;
+    }
+
+    // start the loop on its own thread
+    public void start() {
+        running = true;
+        thread = new Thread(this, "event-loop-" + id);
+        thread.start();
+    }
+
+    // stop the loop, it closes its connections on the way out
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    // true if the caller is already running on this loop
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // scratch space for encrypted output, only touched from this loop's thread
+    public ByteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    // hand a task to this loop, waking the selector only if nobody else has yet
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // take over a freshly accepted (and admitted) channel, the TLS handshake starts from here
+    public void register(SocketChannel channel, InetAddress address, SSLEngine engine, ChatServer server) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(channel, engine, this, server);
+                connection.start(selector);
+            } catch (IOException e) {
+                ServerLog.error("[SERVER] Error registering connection: {}", e.getMessage());
+                server.getAdmission().release(address); // admitted, but it'll never get a handler
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+
+                // handle every connection that has something for us
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // one broken client shouldn't take the whole loop down
+                        connection.close();
+                    }
+                }
+
+                // then run whatever other threads handed us (mostly flushes)
+                runTasks();
+            } catch (IOException e) {
+                ServerLog.error("[SERVER] Event loop {} error: {}", id, e.getMessage());
+            }
+        }
+
+        // close everything this loop still owns
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            ServerLog.warn("[SERVER] Error closing selector: {}", e.getMessage());
+        }
+    }
+
+    // run queued tasks, including ones queued by the tasks themselves
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ServerLog.error("[SERVER] Event loop task failed: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,691 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Federation {
+    /**
+     * Several ChatServer processes acting as one server. Every node keeps a
+     * TLS link to each of the other nodes it was given, and only sends the
+     * others what they need to know: the nicknames it has handed out, which
+     * channels it has members in (not who they are), and the traffic for
+     * those. A channel message goes once to each node with members in the
+     * channel and that node passes it on to its own members, so a channel with
+     * a thousand people on another node still costs one frame. A private
+     * message goes to the node that has the nickname. Links carry data in one
+     * direction only: what a node knows about a peer came in on the link the
+     * peer opened to it, and it forgets all of it when that link goes down, so
+     * after a reconnect the peer simply sends everything again. When two nodes
+     * give out the same nickname at the same moment, both sides settle it the
+     * same way: the earlier claim (then the lower node name) keeps it and the
+     * other user is disconnected. The link protocol is one command per line,
+     * and a frame passed on for users (CHAN, ALL, MSG) follows its command
+     * line as that many raw bytes, so nothing a user typed is ever read as a
+     * command.
+     */
+
+    private static final long RETRY_MIN_MILLIS = 500;
+    private static final long RETRY_MAX_MILLIS = 30_000;
+    private static final long HEARTBEAT_MILLIS = 10_000; // an idle link sends PING this often
+    private static final int LINK_TIMEOUT_MILLIS = 30_000; // and is given up on after this much silence
+    private static final int STRIPES = 64;
+    private static final long MAX_CLOCK_SKEW_MILLIS = 5_000; // how far ahead another node's claims may be
+    private static final int MAX_PENDING_LINKS = 16; // incoming links that haven't passed HELLO yet
+
+    private final ChatServer server;
+    private final ServerConfig config;
+    private final String name;
+    private final long incarnation = ThreadLocalRandom.current().nextLong(1_000_000_000_000_000L); // new every start
+    private final byte[] secret;
+    private final List<Link> peers = new ArrayList<>();
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>(); // the ones that are up, by node
+    private final ConcurrentHashMap<String, Socket> incoming = new ConcurrentHashMap<>(); // by node
+    private final ConcurrentHashMap<String, Claim> localNicks = new ConcurrentHashMap<>(); // by lowercase nickname
+    private final ConcurrentHashMap<String, Claim> remoteNicks = new ConcurrentHashMap<>(); // same
+    private final Set<String> subscribed = ConcurrentHashMap.newKeySet(); // channels we've told the others we're in
+    private final ConcurrentHashMap<String, Set<String>> interest = new ConcurrentHashMap<>(); // channel -> nodes in it
+    // a nickname's claim or a channel's SUB/UNSUB is decided and sent under its stripe, so
+    // the order the others hear about it in is the order it happened in
+    private final Object[] stripes = new Object[STRIPES];
+    private SSLServerSocket listener;
+    private volatile boolean running;
+    private final AtomicInteger pending = new AtomicInteger(); // see MAX_PENDING_LINKS
+
+    private final LongAdder forwarded;
+    private final LongAdder received;
+    private final LongAdder dropped;
+    private final LongAdder collisions;
+
+    // who has a nickname: claimed at time on node
+    private static final class Claim {
+        final String nickname;
+        final long time;
+        final String node;
+
+        Claim(String nickname, long time, String node) {
+            this.nickname = nickname;
+            this.time = time;
+            this.node = node;
+        }
+
+        boolean beats(Claim other) {
+            return time != other.time ? time < other.time : node.compareTo(other.node) < 0;
+        }
+    }
+
+    // our link to one other node, with its own thread that connects, sends our state and
+    // then drains the queue onto the socket. reconnects (and starts over) when it breaks
+    private final class Link implements Runnable {
+        final String host;
+        final int port;
+        volatile String node; // the name it told us, null while it's down
+        volatile long incarnation; // and which run of it we're talking to
+        volatile OutboundQueue queue;
+        volatile Socket socket;
+        volatile boolean up;
+        Thread thread;
+
+        Link(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // queue a frame for the node, never waits. a node that can't keep up gets the
+        // same treatment as a slow client, the reconnect then brings it up to date
+        void send(byte[] frame) {
+            OutboundQueue queue = this.queue;
+            if (queue == null) {
+                return;
+            }
+            OutboundQueue.Result result = queue.offer(frame);
+            if (result == OutboundQueue.Result.DISCONNECT) {
+                ServerLog.warn("[CLUSTER] {} is too slow, reconnecting", node);
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            long retry = RETRY_MIN_MILLIS;
+            while (running) {
+                try {
+                    connect();
+                    retry = RETRY_MIN_MILLIS;
+                    writeLoop();
+                } catch (IOException | GeneralSecurityException e) {
+                    if (running) {
+                        ServerLog.debug("[CLUSTER] Link to {} failed: {}", this, e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    down();
+                }
+                try {
+                    Thread.sleep(retry);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                retry = Math.min(retry * 2, RETRY_MAX_MILLIS);
+            }
+        }
+
+        private void connect() throws IOException, GeneralSecurityException {
+            SSLSocket socket = (SSLSocket) Tls.clientContext().getSocketFactory().createSocket();
+            this.socket = socket;
+            socket.connect(new InetSocketAddress(host, port), config.getHandshakeTimeoutMillis());
+            socket.setSoTimeout(config.getHandshakeTimeoutMillis());
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            // HELLO <node> <incarnation> <secret>
+            out.write(frame("HELLO " + name + " " + Federation.this.incarnation + " "
+                    + new String(secret, StandardCharsets.UTF_8)));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String reply = in.readLine();
+            if (reply == null || !reply.startsWith("WELCOME ")) {
+                throw new IOException(reply == null ? "closed during HELLO" : reply);
+            }
+            CommandLine welcome = new CommandLine().reset(reply);
+            welcome.next();
+            node = welcome.next();
+            incarnation = welcome.nextLong();
+            queue = new OutboundQueue(config.getClusterQueue(), OutboundQueue.Policy.DISCONNECT,
+                    config.getSlowConsumerTimeoutMillis(), null, dropped);
+            up = true;
+            Link previous = links.put(node, this);
+            if (previous != null && previous != this) {
+                previous.close(); // the same node under two addresses, keep one link
+            }
+            ServerLog.info("[CLUSTER] Linked to {} at {}", node, this);
+            sendState(this);
+        }
+
+        // the peer never writes back after WELCOME, so this thread only writes
+        private void writeLoop() throws IOException, InterruptedException {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            byte[] ping = "PING\n".getBytes(StandardCharsets.UTF_8);
+            OutboundQueue queue = this.queue;
+            while (up) {
+                byte[] frame = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    out.write(ping);
+                } else {
+                    // everything that's waiting goes out in one flush
+                    do {
+                        out.write(frame);
+                    } while ((frame = queue.poll()) != null);
+                }
+                out.flush();
+            }
+        }
+
+        void close() {
+            up = false;
+            OutboundQueue queue = this.queue;
+            if (queue != null) {
+                queue.close();
+            }
+            abort(socket);
+        }
+
+        private void down() {
+            String node = this.node;
+            if (node != null && links.remove(node, this)) {
+                ServerLog.info("[CLUSTER] Link to {} is down", node);
+            }
+            close();
+            this.queue = null;
+            this.node = null;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    public Federation(ChatServer server, ServerConfig config, ServerStats stats) {
+        this.server = server;
+        this.config = config;
+        this.name = config.getNodeName() != null ? config.getNodeName() : "node-" + server.getPort();
+        this.secret = config.getClusterSecret().getBytes(StandardCharsets.UTF_8);
+        if (secret.length == 0) {
+            // anyone who can reach the cluster port would be taken for one of us
+            throw new IllegalArgumentException("chat.clusterSecret has to be set to run a cluster");
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        for (String peer : config.getClusterPeers().split(",")) {
+            peer = peer.trim();
+            int colon = peer.lastIndexOf(':');
+            if (peer.isEmpty()) {
+                continue;
+            }
+            try {
+                peers.add(new Link(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Bad cluster peer " + peer + ", expected host:port");
+            }
+        }
+        this.forwarded = stats.counter("cluster.forwarded");
+        this.received = stats.counter("cluster.received");
+        this.dropped = stats.counter("cluster.dropped");
+        this.collisions = stats.counter("cluster.collisions");
+        stats.gauge("cluster.nodes", links::size);
+        stats.gauge("cluster.remoteUsers", remoteNicks::size);
+    }
+
+    // listen for the other nodes and start connecting to them
+    public void start(SSLContext sslContext, SSLParameters tlsParams) throws IOException {
+        listener = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(config.getClusterPort());
+        listener.setSSLParameters(tlsParams);
+        running = true;
+        Thread acceptor = new Thread(this::acceptLoop, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Link link : peers) {
+            link.thread = new Thread(link, "cluster-link-" + link);
+            link.thread.setDaemon(true);
+            link.thread.start();
+        }
+        ServerLog.info("[CLUSTER] Node {} listening on port {}", name, config.getClusterPort());
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            ServerLog.warn("[CLUSTER] Error closing the cluster port: {}", e.getMessage());
+        }
+        for (Link link : peers) {
+            link.close();
+            if (link.thread != null) {
+                link.thread.interrupt();
+            }
+        }
+        for (Socket socket : incoming.values()) {
+            abort(socket);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // take a nickname for one of our users, false if it's already taken here or elsewhere
+    public boolean claim(String nickname) {
+        String key = nickname.toLowerCase();
+        synchronized (stripe(key)) {
+            if (localNicks.containsKey(key) || remoteNicks.containsKey(key)) {
+                return false;
+            }
+            Claim claim = new Claim(nickname, System.currentTimeMillis(), name);
+            localNicks.put(key, claim);
+            sendAll(nickFrame(claim));
+        }
+        return true;
+    }
+
+    // true while one of our users has this nickname (it may have lost it to another node)
+    public boolean owns(String nickname) {
+        Claim claim = localNicks.get(nickname.toLowerCase());
+        return claim != null && claim.nickname.equals(nickname);
+    }
+
+    public void release(String nickname) {
+        String key = nickname.toLowerCase();
+        synchronized (stripe(key)) {
+            Claim claim = localNicks.get(key);
+            if (claim != null && claim.nickname.equals(nickname)) {
+                localNicks.remove(key);
+                sendAll(frame("UNNICK " + nickname));
+            }
+        }
+    }
+
+    // someone on another node has this nickname
+    public boolean isRemote(String nickname) {
+        return remoteNicks.containsKey(nickname.toLowerCase());
+    }
+
+    public List<String> getRemoteUsers() {
+        List<String> names = new ArrayList<>();
+        for (Claim claim : remoteNicks.values()) {
+            names.add(claim.nickname);
+        }
+        return names;
+    }
+
+    // call after a local JOIN or PART: tells the others when we get our first member in
+    // a channel or lose our last one, nothing happens for the ones in between
+    public void channelChanged(String channel) {
+        synchronized (stripe(channel)) {
+            boolean members = server.hasChannel(channel);
+            if (members ? subscribed.add(channel) : subscribed.remove(channel)) {
+                sendAll(frame((members ? "SUB " : "UNSUB ") + channel));
+            }
+        }
+    }
+
+    // pass a frame broadcast in a channel on to every node that has members in it, one
+    // copy each. a user who lost their nickname to another node leaves quietly
+    public void forward(String channel, byte[] frame, String exclude) {
+        Set<String> nodes = interest.get(channel);
+        if (nodes == null || (exclude != null && isRemote(exclude))) {
+            return;
+        }
+        byte[] wire = null;
+        for (String node : nodes) {
+            Link link = links.get(node);
+            if (link != null) {
+                if (wire == null) {
+                    wire = frame("CHAN " + channel + " " + (exclude != null ? exclude : "-"), frame);
+                }
+                link.send(wire);
+                forwarded.increment();
+            }
+        }
+    }
+
+    // same for a frame that goes to everyone, like QUIT
+    public void forwardToAll(byte[] frame, String exclude) {
+        if (exclude != null && isRemote(exclude)) {
+            return;
+        }
+        sendAll(frame("ALL " + (exclude != null ? exclude : "-"), frame));
+    }
+
+    // hand a frame to a user on another node, false if nobody there has the nickname
+    public boolean sendTo(String nickname, byte[] frame) {
+        Claim claim = remoteNicks.get(nickname.toLowerCase());
+        Link link = claim != null ? links.get(claim.node) : null;
+        if (link == null) {
+            return false;
+        }
+        link.send(frame("MSG " + claim.nickname, frame));
+        forwarded.increment();
+        return true;
+    }
+
+    // what a new link needs to hear first: our nicknames and channels. the link is already
+    // up, so anything that changes meanwhile reaches it too, in the right order per stripe
+    private void sendState(Link link) {
+        for (Map.Entry<String, Claim> entry : localNicks.entrySet()) {
+            synchronized (stripe(entry.getKey())) {
+                if (localNicks.get(entry.getKey()) == entry.getValue()) {
+                    link.send(nickFrame(entry.getValue()));
+                }
+            }
+        }
+        for (String channel : subscribed) {
+            synchronized (stripe(channel)) {
+                if (subscribed.contains(channel)) {
+                    link.send(frame("SUB " + channel));
+                }
+            }
+        }
+    }
+
+    private void sendAll(byte[] frame) {
+        for (Link link : links.values()) {
+            link.send(frame);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                // each one gets a thread until it has said HELLO, so only a few may be waiting
+                // at once: anyone can reach this port, the secret is only checked after that
+                if (pending.incrementAndGet() > MAX_PENDING_LINKS) {
+                    pending.decrementAndGet();
+                    dropped.increment();
+                    ServerLog.warn("[CLUSTER] Too many links waiting for HELLO, refused {}",
+                            socket.getRemoteSocketAddress());
+                    abort(socket);
+                    continue;
+                }
+                Thread reader = new Thread(() -> receive(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    ServerLog.error("[CLUSTER] Error accepting a link: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // read what another node tells us, for as long as its link stays up
+    private void receive(Socket socket) {
+        String node = null;
+        boolean waiting = true; // still counted in pending
+        try {
+            socket.setSoTimeout(config.getHandshakeTimeoutMillis());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            CommandLine args = new CommandLine();
+            String hello = readLine(in);
+            if (hello == null || !args.reset(hello).next().equals("HELLO")) {
+                return;
+            }
+            String peer = args.next();
+            long peerIncarnation = args.nextLong();
+            if (peer.isEmpty() || peer.equals(name)
+                    || !MessageDigest.isEqual(secret, args.rest().getBytes(StandardCharsets.UTF_8))) {
+                ServerLog.warn("[CLUSTER] Refused a link from {}: bad name or secret", socket.getRemoteSocketAddress());
+                return;
+            }
+            pending.decrementAndGet();
+            waiting = false;
+            OutputStream out = socket.getOutputStream();
+            out.write(frame("WELCOME " + name + " " + incarnation));
+            out.flush();
+            socket.setSoTimeout(LINK_TIMEOUT_MILLIS);
+
+            // a node that reconnects starts over, whatever it sent before is stale
+            node = peer;
+            Socket previous = incoming.put(node, socket);
+            if (previous != null) {
+                abort(previous);
+            }
+            forget(node, false);
+            ServerLog.info("[CLUSTER] {} joined from {}", node, socket.getRemoteSocketAddress());
+            // it restarted: our link still goes to the old process (or is about to find out it's
+            // dead), and the new one hasn't heard our state. start that link over right away
+            Link link = links.get(node);
+            if (link != null && link.incarnation != peerIncarnation) {
+                link.close();
+            }
+
+            String line;
+            while ((line = readLine(in)) != null) {
+                apply(node, args.reset(line), in);
+            }
+        } catch (IOException e) {
+            if (running) {
+                ServerLog.info("[CLUSTER] Link from {} closed: {}", node != null ? node : socket.getRemoteSocketAddress(),
+                        e.getMessage());
+            }
+        } finally {
+            if (waiting) {
+                pending.decrementAndGet();
+            }
+            abort(socket);
+            if (node != null && incoming.remove(node, socket)) {
+                ServerLog.info("[CLUSTER] {} left", node);
+                forget(node, true);
+            }
+        }
+    }
+
+    // one command from node, in reads the frame that follows CHAN, ALL and MSG
+    private void apply(String node, CommandLine args, DataInputStream in) throws IOException {
+        received.increment();
+        String verb = args.next();
+        switch (verb) {
+            case "PING":
+                break;
+            case "NICK": {
+                String nickname = args.next();
+                long time = args.nextLong();
+                // only a name one of its users could have picked, and not claimed later than
+                // now (an early time would win every collision, a late one is a broken clock)
+                if (!ClientHandler.isValidNickname(nickname) || time < 0
+                        || time > System.currentTimeMillis() + MAX_CLOCK_SKEW_MILLIS) {
+                    ServerLog.warn("[CLUSTER] Ignored a bad claim for {} from {}", nickname, node);
+                    break;
+                }
+                remoteClaim(new Claim(nickname, time, node));
+                break;
+            }
+            case "UNNICK":
+                remoteNicks.computeIfPresent(args.next().toLowerCase(),
+                        (key, claim) -> claim.node.equals(node) ? null : claim);
+                break;
+            case "SUB":
+                interest.compute(args.next(), (channel, nodes) -> {
+                    if (nodes == null) {
+                        nodes = ConcurrentHashMap.newKeySet();
+                    }
+                    nodes.add(node);
+                    return nodes;
+                });
+                break;
+            case "UNSUB":
+                unsubscribe(args.next(), node);
+                break;
+            case "CHAN": {
+                String channel = args.next();
+                args.next(); // the exclude is someone on the sending node, never one of ours
+                byte[] frame = readFrame(node, args, in);
+                if (frame == null) {
+                    break;
+                }
+                String line = new String(frame, 0, frame.length - 1, StandardCharsets.UTF_8);
+                server.onChannel(channel, () -> {
+                    if (line.startsWith("CHAN ")) {
+                        // so history, the journal and search have the whole conversation
+                        CommandLine message = new CommandLine().reset(line);
+                        message.next();
+                        message.next();
+                        message.next();
+                        server.keepChannelMessage(channel, frame, message.rest());
+                    }
+                    server.deliverToChannel(channel, frame, -1);
+                });
+                break;
+            }
+            case "MSG": {
+                ClientHandler client = server.getClient(args.next());
+                byte[] frame = readFrame(node, args, in);
+                if (client != null && frame != null) {
+                    client.sendFrame(frame);
+                }
+                break;
+            }
+            case "ALL": {
+                String exclude = args.next();
+                byte[] frame = readFrame(node, args, in);
+                if (frame != null) {
+                    server.deliverToAll(frame, exclude.equals("-") ? null : exclude);
+                }
+                break;
+            }
+            default:
+                ServerLog.warn("[CLUSTER] Unknown command from {}: {}", node, verb);
+        }
+    }
+
+    // another node gave out a nickname. if one of ours has it too, whoever claimed it
+    // first keeps it: the other node comes to the same answer when our claim reaches it
+    private void remoteClaim(Claim claim) {
+        String key = claim.nickname.toLowerCase();
+        Claim lost = null;
+        synchronized (stripe(key)) {
+            Claim local = localNicks.get(key);
+            if (local != null) {
+                if (local.beats(claim)) {
+                    return;
+                }
+                localNicks.remove(key);
+                lost = local;
+            }
+            Claim other = remoteNicks.get(key);
+            if (other == null || other.node.equals(claim.node) || claim.beats(other)) {
+                remoteNicks.put(key, claim);
+            }
+        }
+        if (lost != null) {
+            collisions.increment();
+            ServerLog.warn("[CLUSTER] {} was taken on {} first", lost.nickname, claim.node);
+            ClientHandler client = server.getClient(lost.nickname);
+            if (client != null) {
+                client.nicknameTaken();
+            }
+        }
+    }
+
+    // drop what we knew about a node, and if it's gone (not just reconnecting) tell our
+    // users its people have left
+    private void forget(String node, boolean announce) {
+        for (Map.Entry<String, Claim> entry : remoteNicks.entrySet()) {
+            Claim claim = entry.getValue();
+            if (claim.node.equals(node) && remoteNicks.remove(entry.getKey(), claim) && announce) {
+                server.deliverToAll(frame("QUIT " + claim.nickname + " " + node + " went away"), null);
+            }
+        }
+        for (String channel : interest.keySet()) {
+            unsubscribe(channel, node);
+        }
+    }
+
+    private void unsubscribe(String channel, String node) {
+        interest.computeIfPresent(channel, (key, nodes) -> {
+            nodes.remove(node);
+            return nodes.isEmpty() ? null : nodes;
+        });
+    }
+
+    private Object stripe(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private static byte[] nickFrame(Claim claim) {
+        return frame("NICK " + claim.nickname + " " + claim.time);
+    }
+
+    private static byte[] frame(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // a command line followed by a frame we already have as bytes, with its length so
+    // the frame is never taken for commands: "CHAN #c nick 23\n" then the 23 bytes
+    private static byte[] frame(String command, byte[] frame) {
+        byte[] head = (command + " " + frame.length + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] wire = Arrays.copyOf(head, head.length + frame.length);
+        System.arraycopy(frame, 0, wire, head.length, frame.length);
+        return wire;
+    }
+
+    // read the frame after a CHAN, ALL or MSG line, whose length is the last word on it.
+    // null if it isn't one line of text, which the node's clients could never have sent
+    private byte[] readFrame(String node, CommandLine args, DataInputStream in) throws IOException {
+        long length = args.nextLong();
+        if (length < 1 || length > NioConnection.MAX_LINE_LENGTH * 2) {
+            // no telling where the next command starts
+            throw new IOException("bad frame length from " + node);
+        }
+        byte[] frame = new byte[(int) length];
+        in.readFully(frame);
+        for (int i = 0; i < frame.length - 1; i++) {
+            if (frame[i] == '\n' || frame[i] == '\r') {
+                dropped.increment();
+                ServerLog.warn("[CLUSTER] Dropped a frame with line breaks from {}", node);
+                return null;
+            }
+        }
+        return frame[frame.length - 1] == '\n' ? frame : null;
+    }
+
+    // one command line, null at the end of the stream. no longer than a client's line (a
+    // channel name can be about that long)
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+            }
+            if (line.size() >= NioConnection.MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // close without a goodbye, like a stuck client (see ClientHandler.abortSocket)
+    private static void abort(Socket socket) {
+        if (socket == null || socket.isClosed()) {
+            return;
+        }
+        try {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        } catch (IOException e) {
+            ServerLog.debug("[CLUSTER] Error closing a link: {}", e.getMessage());
+        }
+    }
+}
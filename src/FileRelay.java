@@ -0,0 +1,107 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.*;
+
+public class FileRelay implements NioConnection.RawSink {
+    /**
+     * One file upload being piped from the sender to the receiver.
+     * Bytes are copied into the receiver's outbound stream as they arrive
+     * instead of being collected first, so the server only ever holds about
+     * one window of the file per transfer, whatever its size. When the window
+     * is full the sender is held back (its thread waits, or in nio mode its
+     * connection stops reading) until the receiver catches up.
+     */
+
+    private final ClientHandler sender;
+    private final ClientHandler receiver;
+    private final String receiverName;
+    private final OutboundQueue target;
+    private final long window;
+    private final AtomicBoolean done = new AtomicBoolean(false);
+    private final LongAdder bytesCounter;
+    private final ServerStats stats;
+    private long remaining;
+    private boolean receiverGone;
+
+    public FileRelay(ClientHandler sender, ClientHandler receiver, String receiverName, long size,
+            ChatServer server) {
+        this.sender = sender;
+        this.receiver = receiver;
+        this.receiverName = receiverName;
+        this.target = receiver.getOutbound();
+        this.window = server.getConfig().getFileWindowBytes();
+        this.remaining = size;
+        this.stats = server.getStats();
+        this.bytesCounter = stats.counter("files.bytes");
+    }
+
+    // queue the offer and data header on the receiver, false if they're busy with another file
+    public boolean open(String offer, long size) {
+        byte[] header = ("FILEDATA " + size + "\n").getBytes(StandardCharsets.UTF_8);
+        if (!target.openStream(window, offer.getBytes(StandardCharsets.UTF_8), header)) {
+            return false;
+        }
+        stats.counter("files.started").increment();
+        return true;
+    }
+
+    @Override
+    public long remaining() {
+        return remaining;
+    }
+
+    // pass on the next bytes of the upload. returns false when the receiver is a full
+    // window behind, then the caller should stop reading until there's room again
+    @Override
+    public boolean write(byte[] data, int offset, int length) {
+        remaining -= length;
+        if (!receiverGone) {
+            // the receiver's writer reads this later, so it needs its own copy
+            byte[] chunk = new byte[length];
+            System.arraycopy(data, offset, chunk, 0, length);
+            if (target.offerStream(chunk)) {
+                bytesCounter.add(length);
+            } else {
+                receiverGone = true; // keep reading the upload, just throw it away
+            }
+        }
+        return receiverGone || target.streamHasRoom();
+    }
+
+    // blocking senders: wait until the receiver has room for more
+    public void awaitRoom() throws InterruptedException {
+        target.awaitStreamRoom();
+    }
+
+    // non-blocking senders: run the callback once the receiver has room for more
+    @Override
+    public void whenRoom(Runnable callback) {
+        target.whenStreamHasRoom(callback);
+    }
+
+    // every byte arrived
+    @Override
+    public void finish() {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        target.endStream(0);
+        if (receiverGone) {
+            stats.counter("files.aborted").increment();
+            sender.send("ERROR 500 File transfer failed: " + receiverName + " disconnected\n");
+        } else {
+            stats.counter("files.completed").increment();
+            sender.send("OK FILE File sent to " + receiverName + "\n");
+        }
+    }
+
+    // the upload broke off, the receiver gets zeros for the rest (so their checksum fails)
+    // and an error right after
+    public void abort() {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        stats.counter("files.aborted").increment();
+        target.endStream(remaining);
+        receiver.send("ERROR 500 File transfer from " + sender.getNickname() + " was interrupted\n");
+    }
+}
@@ -0,0 +1,269 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.*;
+
+public class FileTransfer implements NioConnection.RawSink {
+    /**
+     * One multiplexed file transfer (FILESTART / FILECHUNK / FILEEND).
+     * The file moves as tagged chunks on its own lane of the receiver's
+     * outbound queue, so chat and any other transfers keep going alongside it
+     * on both connections. The sender may only have a window of bytes in
+     * flight; FILEACK lines give it credit back as the receiver's writer takes
+     * chunks, which is what keeps the server's share of a transfer small.
+     * Every chunk carries its offset and a CRC32 that the receiver checks. A
+     * damaged chunk is asked for again (FILERESEND), a receiver that already
+     * has the start of the file says where to carry on from (FILERESUME), and
+     * the transfer only counts as done once the receiver confirms the whole
+     * file (FILEDONE).
+     */
+
+    public static final int MAX_CHUNK = 64 * 1024;
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private final ClientHandler sender;
+    private final ClientHandler receiver;
+    private final String receiverName;
+    private final int uploadId; // the sender's number for this transfer
+    private final int id; // the receiver's number for it, unique on the server
+    private final long size;
+    private final long window;
+    private final boolean framed; // the receiver asked for binary frames, chunks go out as CHUNK frames
+    private final OutboundQueue.Lane lane;
+    private final AtomicBoolean done = new AtomicBoolean(false);
+    private final AtomicLong queued = new AtomicLong(); // chunk bytes waiting in the lane
+    private final ServerStats stats;
+    private final LongAdder bytesCounter;
+
+    // sender side, only touched by whoever reads the sender's connection
+    private long nextOffset; // end of the furthest chunk so far
+    private long accepted; // chunk bytes taken from the sender, resent ones included
+    private boolean sentAll;
+    private byte[] chunk; // the chunk being read right now, header included
+    private int chunkPos;
+    private long chunkOffset;
+
+    // receiver side, only touched by whoever writes the receiver's connection
+    private volatile long delivered;
+    private long unacked;
+
+    public FileTransfer(ClientHandler sender, int uploadId, ClientHandler receiver, String receiverName, long size,
+            ChatServer server) {
+        this.sender = sender;
+        this.uploadId = uploadId;
+        this.receiver = receiver;
+        this.receiverName = receiverName;
+        this.size = size;
+        this.id = nextId.incrementAndGet();
+        this.window = server.getConfig().getFileWindowBytes();
+        this.stats = server.getStats();
+        this.bytesCounter = stats.counter("files.bytes");
+        this.framed = receiver.isFramed(); // settled before they could be sent anything
+        this.lane = receiver.getOutbound().openLane(this::onSent);
+    }
+
+    // tell the receiver what's coming, false if they're already gone
+    public boolean open(String filename, String checksum) {
+        String start = "FILESTART " + id + " " + sender.getNickname() + " " + filename + " " + size
+                + (checksum != null ? " " + checksum : "") + "\n";
+        if (lane == null || !receiver.getOutbound().offerLane(lane, start.getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        stats.counter("files.started").increment();
+        receiver.addDownload(this);
+        if (size == 0) {
+            endOfData();
+        }
+        return true;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    // the next 'length' bytes from the sender are the chunk at 'offset', with the CRC32
+    // the receiver should check it against. false if it's outside the file
+    public boolean beginChunk(long offset, int length, int crc) {
+        if (offset < 0 || offset + length > size) {
+            return false;
+        }
+        byte[] header = framed ? Frames.chunkHeader(id, offset, crc, length)
+                : ("FILECHUNK " + id + " " + offset + " " + length + " " + Integer.toHexString(crc) + "\n")
+                        .getBytes(StandardCharsets.UTF_8);
+        // header and data in one frame, so nothing can get between them on the way out
+        chunk = new byte[header.length + length];
+        System.arraycopy(header, 0, chunk, 0, header.length);
+        chunkPos = header.length;
+        chunkOffset = offset;
+        return true;
+    }
+
+    @Override
+    public long remaining() {
+        return chunk == null ? 0 : chunk.length - chunkPos;
+    }
+
+    @Override
+    public boolean write(byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, chunk, chunkPos, length);
+        chunkPos += length;
+        return true; // the sender's window already keeps this bounded
+    }
+
+    @Override
+    public void whenRoom(Runnable callback) {
+        callback.run();
+    }
+
+    // a whole chunk arrived, pass it on
+    @Override
+    public void finish() {
+        byte[] frame = chunk;
+        chunk = null;
+        if (frame == null || done.get()) {
+            return; // aborted while the chunk was on its way, drop it
+        }
+        int payload = chunkPayload(frame);
+        accepted += payload;
+
+        // a well-behaved sender never gets near this, its window is enforced by FILEACK
+        if (accepted - delivered > 2 * window) {
+            abort("Sender ignored the transfer window");
+            return;
+        }
+        queued.addAndGet(payload);
+        if (!receiver.getOutbound().offerLane(lane, frame)) {
+            abort(receiverName + " disconnected");
+            return;
+        }
+        nextOffset = Math.max(nextOffset, chunkOffset + payload);
+        if (nextOffset == size) {
+            endOfData();
+        }
+    }
+
+    // the sender got to the end of the file, the receiver may still ask for chunks again
+    private void endOfData() {
+        if (sentAll) {
+            return;
+        }
+        sentAll = true;
+        if (!receiver.getOutbound().offerLane(lane, ("FILEEND " + id + "\n").getBytes(StandardCharsets.UTF_8))) {
+            abort(receiverName + " disconnected");
+        }
+    }
+
+    // the receiver says where the sender should start, it may have part of the file already
+    public void resume(long offset) {
+        if (offset > size) {
+            abort(receiverName + " asked to resume past the end of the file");
+            return;
+        }
+        if (!done.get()) {
+            sender.send("FILERESUME " + uploadId + " " + offset + "\n");
+        }
+    }
+
+    // a chunk failed the receiver's check, pass the request for it on to the sender
+    public void resend(long offset, int length) {
+        if (offset + length > size) {
+            abort(receiverName + " asked for a chunk past the end of the file");
+            return;
+        }
+        if (!done.get()) {
+            stats.counter("files.resent").increment();
+            sender.send("FILERESEND " + uploadId + " " + offset + " " + length + "\n");
+        }
+    }
+
+    // the receiver has the whole file and it checked out
+    public void confirm() {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        sender.removeUpload(uploadId, this);
+        receiver.removeDownload(this);
+        stats.counter("files.completed").increment();
+        sender.send("OK FILEEND " + uploadId + " File sent to " + receiverName + "\n");
+    }
+
+    // stop the transfer, and tell both sides why (whoever is still connected). the
+    // sender gets FILEFAIL rather than FILEABORT, its ids and the receiver's are separate
+    public void abort(String reason) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        stats.counter("files.aborted").increment();
+        sender.removeUpload(uploadId, this);
+        receiver.removeDownload(this);
+        if (lane != null) {
+            receiver.getOutbound().offerLane(lane,
+                    ("FILEABORT " + id + " " + reason + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        sender.send("FILEFAIL " + uploadId + " " + reason + "\n");
+    }
+
+    // the receiver's writer took one of our frames: give the sender credit for chunks
+    private void onSent(byte[] frame) {
+        int payload = chunkPayload(frame);
+        if (payload < 0) {
+            return; // FILESTART, FILEEND or FILEABORT, no data in those
+        }
+        bytesCounter.add(payload);
+        delivered += payload;
+        unacked += payload;
+        long waiting = queued.addAndGet(-payload);
+        // ack in batches, a line per chunk would double the sender's inbound chatter. but if
+        // the lane ran dry while the sender may be a chunk short of credit, ack now or it
+        // would wait forever
+        if (!done.get() && (unacked >= window / 4 || (waiting == 0 && unacked > window - MAX_CHUNK))) {
+            sender.send("FILEACK " + uploadId + " " + unacked + "\n");
+            unacked = 0;
+        }
+    }
+
+    // how much file data a frame from our lane carries, -1 if it isn't a chunk
+    private int chunkPayload(byte[] frame) {
+        if (framed) {
+            return frame[0] == Frames.CHUNK ? frame.length - Frames.HEADER_LENGTH - Frames.CHUNK_HEADER_LENGTH : -1;
+        }
+        if (frame[4] != 'C') {
+            return -1;
+        }
+        int i = 0;
+        while (frame[i] != '\n') {
+            i++;
+        }
+        return frame.length - i - 1;
+    }
+
+    // a sink that reads a chunk and throws it away, for chunks of transfers that
+    // already ended (or never existed), so the connection stays in step
+    public static NioConnection.RawSink discard(long length) {
+        return new NioConnection.RawSink() {
+            private long left = length;
+
+            @Override
+            public long remaining() {
+                return left;
+            }
+
+            @Override
+            public boolean write(byte[] data, int offset, int n) {
+                left -= n;
+                return true;
+            }
+
+            @Override
+            public void whenRoom(Runnable callback) {
+                callback.run();
+            }
+
+            @Override
+            public void finish() {
+            }
+        };
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.*;
+
+public final class Frames {
+    /**
+     * The binary framing a connection can switch to with PROTO BINARY.
+     * Every frame is a type byte and a 4-byte big-endian payload length, then
+     * the payload, so neither end has to scan for line endings to find where a
+     * message stops. TEXT frames carry the same commands and replies as the
+     * text protocol (a command per frame going up, the usual lines coming
+     * down). CHUNK frames carry one file chunk behind a fixed binary header
+     * (transfer id, offset, CRC32) instead of a FILECHUNK line. DEFLATE frames
+     * are TEXT frames squeezed through the connection's Compression, if it
+     * asked for PROTO BINARY DEFLATE.
+     */
+
+    public static final byte TEXT = 1;
+    public static final byte CHUNK = 2;
+    public static final byte DEFLATE = 3;
+    public static final int HEADER_LENGTH = 5; // type + length
+    public static final int CHUNK_HEADER_LENGTH = 16; // id (4), offset (8), crc32 (4) at the start of a CHUNK
+
+    private Frames() {
+    }
+
+    public static byte[] header(byte type, int length) {
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = type;
+        putInt(header, 1, length);
+        return header;
+    }
+
+    // the frame header and chunk header for a chunk of dataLength bytes, the data goes right after
+    public static byte[] chunkHeader(int id, long offset, int crc, int dataLength) {
+        byte[] header = new byte[HEADER_LENGTH + CHUNK_HEADER_LENGTH];
+        header[0] = CHUNK;
+        putInt(header, 1, CHUNK_HEADER_LENGTH + dataLength);
+        putInt(header, 5, id);
+        putLong(header, 9, offset);
+        putInt(header, 17, crc);
+        return header;
+    }
+
+    // how much of an incoming frame's payload the server reads before handling it: all of
+    // a TEXT or DEFLATE frame, just the chunk header of a CHUNK (the data is streamed on
+    // like any file chunk). -1 for frames the server doesn't take
+    public static int headLength(byte type, int length) {
+        if ((type == TEXT || type == DEFLATE) && length >= 0 && length <= NioConnection.MAX_LINE_LENGTH) {
+            return length;
+        }
+        if (type == CHUNK && length >= CHUNK_HEADER_LENGTH && length <= CHUNK_HEADER_LENGTH + FileTransfer.MAX_CHUNK) {
+            return CHUNK_HEADER_LENGTH;
+        }
+        return -1;
+    }
+
+    // read the next frame header, false if the stream ended cleanly before it
+    public static boolean readHeader(LineInput in, byte[] header) throws IOException {
+        if (in.read(header, 0, 1) < 0) {
+            return false;
+        }
+        in.readFully(header, 1, HEADER_LENGTH - 1);
+        return true;
+    }
+
+    public static int getInt(byte[] b, int at) {
+        return (b[at] & 0xff) << 24 | (b[at + 1] & 0xff) << 16 | (b[at + 2] & 0xff) << 8 | (b[at + 3] & 0xff);
+    }
+
+    public static long getLong(byte[] b, int at) {
+        return (long) getInt(b, at) << 32 | (getInt(b, at + 4) & 0xffffffffL);
+    }
+
+    public static void putInt(byte[] b, int at, int value) {
+        b[at] = (byte) (value >>> 24);
+        b[at + 1] = (byte) (value >>> 16);
+        b[at + 2] = (byte) (value >>> 8);
+        b[at + 3] = (byte) value;
+    }
+
+    public static void putLong(byte[] b, int at, long value) {
+        putInt(b, at, (int) (value >>> 32));
+        putInt(b, at + 4, (int) value);
+    }
+}
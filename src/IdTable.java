@@ -0,0 +1,124 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+public class IdTable<T> {
+    /**
+     * Hands out small integer ids and maps them back to objects.
+     * Ids are reused after release so the table stays compact, lookups are a
+     * plain array read with no hashing or locking, and only the rare writes
+     * (allocate, release, growing the array) take the lock.
+     */
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile AtomicReferenceArray<T> slots;
+    private int[] freeIds;
+    private int freeCount;
+    private int nextId;
+    private int size;
+
+    public IdTable() {
+        this.slots = new AtomicReferenceArray<>(64);
+        this.freeIds = new int[16];
+    }
+
+    // store a value under a fresh (or recycled) id
+    public int allocate(T value) {
+        lock.lock();
+        try {
+            int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            ensureCapacity(id);
+            slots.set(id, value);
+            size++;
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // like allocate, for values that need to know their own id
+    public T allocateWith(IntFunction<T> factory) {
+        lock.lock();
+        try {
+            int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            ensureCapacity(id);
+            T value = factory.apply(id);
+            slots.set(id, value);
+            size++;
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // give an id back so it can be reused
+    public void release(int id) {
+        lock.lock();
+        try {
+            if (get(id) == null) {
+                return;
+            }
+            slots.set(id, null);
+            size--;
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+            }
+            freeIds[freeCount++] = id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the value for an id, or null
+    public T get(int id) {
+        AtomicReferenceArray<T> current = slots;
+        return id >= 0 && id < current.length() ? current.get(id) : null;
+    }
+
+    // the value for an id someone else handed out, created on first use
+    public T getOrCreate(int id, Supplier<T> factory) {
+        T value = get(id);
+        if (value != null) {
+            return value;
+        }
+        lock.lock();
+        try {
+            ensureCapacity(id);
+            value = slots.get(id);
+            if (value == null) {
+                value = factory.get();
+                slots.set(id, value);
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // grow the slot array, called with the lock held so no write can be lost in the copy
+    private void ensureCapacity(int id) {
+        AtomicReferenceArray<T> current = slots;
+        if (id < current.length()) {
+            return;
+        }
+        int length = current.length();
+        while (length <= id) {
+            length *= 2;
+        }
+        AtomicReferenceArray<T> bigger = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < current.length(); i++) {
+            bigger.set(i, current.get(i));
+        }
+        slots = bigger;
+    }
+}
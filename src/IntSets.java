@@ -0,0 +1,48 @@
+import java.util.*;
+
+public final class IntSets {
+    /**
+     * Helpers for sets of ints stored as sorted int[] arrays.
+     * The arrays are never changed in place: add and remove return a new copy,
+     * so readers can iterate a set they grabbed earlier without any locking.
+     * That costs 4 bytes per member instead of a boxed, hashed entry.
+     */
+
+    public static final int[] EMPTY = new int[0];
+
+    private IntSets() {
+    }
+
+    public static boolean contains(int[] set, int value) {
+        return Arrays.binarySearch(set, value) >= 0;
+    }
+
+    // a copy with the value added, or the same array if it was already there
+    public static int[] add(int[] set, int value) {
+        int pos = Arrays.binarySearch(set, value);
+        if (pos >= 0) {
+            return set;
+        }
+        pos = -pos - 1;
+        int[] result = new int[set.length + 1];
+        System.arraycopy(set, 0, result, 0, pos);
+        result[pos] = value;
+        System.arraycopy(set, pos, result, pos + 1, set.length - pos);
+        return result;
+    }
+
+    // a copy with the value removed, or the same array if it wasn't there
+    public static int[] remove(int[] set, int value) {
+        int pos = Arrays.binarySearch(set, value);
+        if (pos < 0) {
+            return set;
+        }
+        if (set.length == 1) {
+            return EMPTY;
+        }
+        int[] result = new int[set.length - 1];
+        System.arraycopy(set, 0, result, 0, pos);
+        System.arraycopy(set, pos + 1, result, pos, set.length - pos - 1);
+        return result;
+    }
+}
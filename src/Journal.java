@@ -0,0 +1,598 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+public class Journal {
+    /**
+     * An append-only record of the chat traffic, kept on disk.
+     * Records get consecutive offsets and go into segment files of a fixed
+     * size, each memory-mapped, so an append is a copy into memory under a
+     * short lock and never a system call. Getting them onto the disk is the
+     * flusher thread's job: it forces the active segment every so often
+     * (INTERVAL), as soon as there's anything new (COMMIT, every force covers
+     * all the appends that came in during the one before, a group commit), or
+     * leaves it to the OS. Nobody on the send path ever waits for it.
+     * A full segment is sealed and the next one, which the flusher has
+     * already created and mapped, takes over. Forcing the sealed one, saving
+     * its index and deleting old segments (past the retention time or over
+     * the size cap) happen on the flusher too, so a roll costs the sender a
+     * rename.
+     * Every segment has a sparse index (an entry every few KB: offset,
+     * position, time), so a read seeks close to the record it wants instead
+     * of scanning the segment from the start. The index of a sealed segment
+     * is saved next to it, the active one's is rebuilt by scanning it when
+     * the server starts again, which also finds where the last good record
+     * ends after a crash.
+     */
+
+    // when appended records are forced to disk
+    public enum Fsync {
+        OS, // never by us, the OS writes the pages back when it likes
+        INTERVAL, // every fsyncMillis
+        COMMIT // right away, back to back
+    }
+
+    // one record as read back
+    public static final class Entry {
+        public final long offset;
+        public final long time;
+        public final byte[] payload;
+
+        Entry(long offset, long time, byte[] payload) {
+            this.offset = offset;
+            this.time = time;
+            this.payload = payload;
+        }
+
+        public String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    static final int RECORD_HEADER = 24; // length, crc, offset, time
+    private static final int INDEX_INTERVAL = 4096; // bytes of log between index entries
+    private static final int INDEX_HEADER = 28; // next offset, end, first time, last time
+    private static final int INDEX_ENTRY = 16; // offset - base, position, time
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String SPARE_NAME = "next.spare"; // the next segment, before it has a base offset
+
+    private final File dir;
+    private final int segmentBytes;
+    private final Fsync fsync;
+    private final long fsyncMillis;
+    private final long retentionMillis;
+    private final long maxBytes;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>(); // oldest first, the last one is active
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[16]; // offset and time, what the CRC covers besides the payload
+    private volatile Segment active; // the flusher reads it without the lock
+    private final Queue<Segment> sealed = new ConcurrentLinkedQueue<>(); // rolled, not yet forced and indexed
+    private volatile MappedByteBuffer spare; // mapped ahead by the flusher, null until it has
+    private long nextOffset;
+    private long lastTime;
+
+    private final Object durable = new Object(); // sync() waits on this
+    private volatile long writtenOffset; // everything before this has been appended
+    private volatile long durableOffset; // and everything before this is on the disk
+    private volatile boolean closed;
+    private Thread flusher;
+
+    private final LongAdder appends;
+    private final LongAdder appendedBytes;
+    private final LongAdder fsyncs;
+    private final LongAdder fsyncMicros;
+    private final LongAdder deleted;
+
+    // one segment file: the records from baseOffset on, mapped whole
+    private static final class Segment {
+        final long baseOffset;
+        final File file;
+        final MappedByteBuffer buffer;
+        volatile int end; // where the next record goes
+        volatile long nextOffset;
+        long firstTime;
+        volatile long lastTime;
+        // the sparse index, only touched under the journal's lock
+        int[] indexOffsets = new int[16];
+        int[] indexPositions = new int[16];
+        long[] indexTimes = new long[16];
+        int indexCount;
+        int indexedUpTo = -INDEX_INTERVAL;
+
+        Segment(long baseOffset, File file, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.file = file;
+            this.buffer = buffer;
+            this.nextOffset = baseOffset;
+        }
+
+        void index(long offset, int position, long time) {
+            if (position - indexedUpTo >= INDEX_INTERVAL) {
+                addIndex(offset, position, time);
+            }
+        }
+
+        void addIndex(long offset, int position, long time) {
+            if (indexCount == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+                indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+            }
+            indexOffsets[indexCount] = (int) (offset - baseOffset);
+            indexPositions[indexCount] = position;
+            indexTimes[indexCount] = time;
+            indexCount++;
+            indexedUpTo = position;
+        }
+
+        // position of the last indexed record at or before offset
+        int seek(long offset) {
+            int lo = 0;
+            int hi = indexCount - 1;
+            int found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (baseOffset + indexOffsets[mid] <= offset) {
+                    found = indexPositions[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        // position of the last indexed record older than time, the records from time on come after it
+        int seekTime(long time) {
+            int lo = 0;
+            int hi = indexCount - 1;
+            int found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexTimes[mid] < time) {
+                    found = indexPositions[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        File indexFile() {
+            String name = file.getName();
+            return new File(file.getParentFile(), name.substring(0, name.length() - LOG_SUFFIX.length()) + INDEX_SUFFIX);
+        }
+    }
+
+    private Journal(ServerConfig config, ServerStats stats) {
+        this.dir = new File(config.getJournalDir());
+        this.segmentBytes = config.getJournalSegmentBytes();
+        this.fsync = config.getJournalFsync();
+        this.fsyncMillis = config.getJournalFsyncMillis();
+        this.retentionMillis = TimeUnit.HOURS.toMillis(config.getJournalRetentionHours());
+        this.maxBytes = config.getJournalMaxBytes();
+        this.appends = stats.counter("journal.appends");
+        this.appendedBytes = stats.counter("journal.bytes");
+        this.fsyncs = stats.counter("journal.fsyncs");
+        this.fsyncMicros = stats.counter("journal.fsyncMicros");
+        this.deleted = stats.counter("journal.segmentsDeleted");
+        stats.gauge("journal.segments", segments::size);
+        stats.gauge("journal.unsynced", () -> writtenOffset - durableOffset);
+    }
+
+    // open the journal in config's directory, picking up where the last run left off
+    public static Journal open(ServerConfig config, ServerStats stats) throws IOException {
+        Journal journal = new Journal(config, stats);
+        journal.recover();
+        journal.flusher = new Thread(journal::flushLoop, "journal-flush");
+        journal.flusher.setDaemon(true);
+        journal.flusher.start();
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        File leftover = new File(dir, SPARE_NAME);
+        if (leftover.exists() && !leftover.delete()) {
+            ServerLog.warn("[JOURNAL] Could not delete {}", leftover);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(LOG_SUFFIX));
+        Arrays.sort(files); // the names are zero padded base offsets
+        for (int i = 0; i < files.length; i++) {
+            boolean last = i == files.length - 1;
+            long base = Long.parseLong(files[i].getName().replace(LOG_SUFFIX, ""));
+            Segment segment = new Segment(base, files[i], map(files[i], last ? segmentBytes : 0));
+            if (last || !loadIndex(segment)) {
+                scan(segment);
+            }
+            if (segment.nextOffset < nextOffset) {
+                ServerLog.warn("[JOURNAL] {} overlaps the segment before it, skipped", files[i]);
+                continue;
+            }
+            segments.add(segment);
+            nextOffset = segment.nextOffset;
+            lastTime = Math.max(lastTime, segment.lastTime);
+        }
+        if (segments.isEmpty()) {
+            segments.add(newSegment(0));
+        }
+        active = segments.get(segments.size() - 1);
+        writtenOffset = durableOffset = nextOffset;
+        ServerLog.info("[JOURNAL] Opened {}, next offset {}", dir, nextOffset);
+        retain();
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    private Segment newSegment(long baseOffset) throws IOException {
+        File file = new File(dir, String.format("%020d%s", baseOffset, LOG_SUFFIX));
+        return new Segment(baseOffset, file, map(file, segmentBytes));
+    }
+
+    // walk the records from the start, stopping at the first one that isn't whole and in
+    // sequence: the end of what was written, or where a crash cut a record short
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int pos = 0;
+        long expected = segment.baseOffset;
+        byte[] payload = new byte[256];
+        CRC32 check = new CRC32();
+        while (pos + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(pos);
+            if (length <= 0 || pos + RECORD_HEADER + length > buffer.capacity()
+                    || buffer.getLong(pos + 8) != expected) {
+                break;
+            }
+            if (payload.length < length + 16) {
+                payload = new byte[length + 16];
+            }
+            buffer.position(pos + 8);
+            buffer.get(payload, 0, 16 + length);
+            check.reset();
+            check.update(payload, 0, 16 + length);
+            if ((int) check.getValue() != buffer.getInt(pos + 4)) {
+                ServerLog.warn("[JOURNAL] Damaged record at offset {} in {}, the rest is ignored", expected,
+                        segment.file);
+                break;
+            }
+            long time = buffer.getLong(pos + 16);
+            if (expected == segment.baseOffset) {
+                segment.firstTime = time;
+            }
+            segment.index(expected, pos, time);
+            segment.lastTime = time;
+            pos += RECORD_HEADER + length;
+            expected++;
+        }
+        segment.end = pos;
+        segment.nextOffset = expected;
+    }
+
+    // a sealed segment's saved index, false if there isn't a usable one
+    private boolean loadIndex(Segment segment) {
+        File file = segment.indexFile();
+        if (!file.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            segment.nextOffset = in.readLong();
+            segment.end = in.readInt();
+            segment.firstTime = in.readLong();
+            segment.lastTime = in.readLong();
+            int count = (int) ((file.length() - INDEX_HEADER) / INDEX_ENTRY);
+            for (int i = 0; i < count; i++) {
+                int offset = in.readInt();
+                int position = in.readInt();
+                long time = in.readLong();
+                segment.addIndex(segment.baseOffset + offset, position, time);
+            }
+            return segment.end <= segment.buffer.capacity();
+        } catch (IOException e) {
+            ServerLog.warn("[JOURNAL] Bad index {}, rebuilding it: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    private static void saveIndex(Segment segment) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(segment.indexFile())))) {
+            out.writeLong(segment.nextOffset);
+            out.writeInt(segment.end);
+            out.writeLong(segment.firstTime);
+            out.writeLong(segment.lastTime);
+            for (int i = 0; i < segment.indexCount; i++) {
+                out.writeInt(segment.indexOffsets[i]);
+                out.writeInt(segment.indexPositions[i]);
+                out.writeLong(segment.indexTimes[i]);
+            }
+        }
+    }
+
+    // add a record, returns its offset (or -1 if it couldn't be written). never waits for the disk
+    public synchronized long append(byte[] payload, int length) {
+        int size = RECORD_HEADER + length;
+        if (closed || size > segmentBytes) {
+            return -1;
+        }
+        try {
+            if (active.end + size > active.buffer.capacity()) {
+                roll();
+            }
+        } catch (IOException e) {
+            ServerLog.error("[JOURNAL] Cannot start a new segment: {}", e.getMessage());
+            return -1;
+        }
+
+        long offset = nextOffset;
+        // the clock may step back, times in the log never do (the time index relies on it)
+        long time = lastTime = Math.max(lastTime, System.currentTimeMillis());
+        Frames.putLong(header, 0, offset);
+        Frames.putLong(header, 8, time);
+        crc.reset();
+        crc.update(header, 0, header.length);
+        crc.update(payload, 0, length);
+
+        Segment segment = active;
+        MappedByteBuffer buffer = segment.buffer; // only appends move its position
+        int pos = segment.end;
+        buffer.position(pos);
+        buffer.putInt(length).putInt((int) crc.getValue()).put(header).put(payload, 0, length);
+        if (segment.end == 0) {
+            segment.firstTime = time;
+        }
+        segment.index(offset, pos, time);
+        segment.lastTime = time;
+        segment.nextOffset = offset + 1;
+        segment.end = pos + size; // readers look this far, so it's set last
+        nextOffset = offset + 1;
+        writtenOffset = nextOffset;
+
+        appends.increment();
+        appendedBytes.add(size);
+        if (fsync == Fsync.COMMIT) {
+            LockSupport.unpark(flusher);
+        }
+        return offset;
+    }
+
+    // seal the active segment and start the next one. the flusher has the next file mapped
+    // already (unless it fell behind), and forces and indexes the sealed one later
+    private void roll() throws IOException {
+        Segment next = null;
+        MappedByteBuffer buffer = spare;
+        if (buffer != null) {
+            File file = new File(dir, String.format("%020d%s", nextOffset, LOG_SUFFIX));
+            if (new File(dir, SPARE_NAME).renameTo(file)) {
+                // renamed before it's cleared, so the flusher's next spare is a new file
+                spare = null;
+                next = new Segment(nextOffset, file, buffer); // the mapping stays valid after a rename
+            }
+        }
+        if (next == null) {
+            next = newSegment(nextOffset);
+        }
+        sealed.add(active);
+        active = next;
+        segments.add(next);
+        LockSupport.unpark(flusher);
+    }
+
+    // flusher: get the segments sealed since last time onto the disk with their index
+    private void seal() {
+        Segment segment;
+        while ((segment = sealed.poll()) != null) {
+            if (fsync != Fsync.OS) {
+                force(segment);
+            }
+            try {
+                saveIndex(segment);
+            } catch (IOException e) {
+                // the next start scans the segment instead
+                ServerLog.warn("[JOURNAL] Could not save the index of {}: {}", segment.file, e.getMessage());
+            }
+            retain();
+        }
+    }
+
+    // flusher: map the file the next roll will use
+    private void prepareSpare() {
+        if (spare != null || closed) {
+            return;
+        }
+        try {
+            spare = map(new File(dir, SPARE_NAME), segmentBytes);
+        } catch (IOException e) {
+            ServerLog.warn("[JOURNAL] Could not create the next segment ahead: {}", e.getMessage());
+        }
+    }
+
+    // drop sealed segments that are too old, or too many for the size cap. only the flusher
+    // (or recover(), before it starts) calls this, appends just add segments at the end
+    private void retain() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.buffer.capacity();
+        }
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (oldest.lastTime >= cutoff && (maxBytes <= 0 || total <= maxBytes)) {
+                break;
+            }
+            segments.remove(oldest);
+            total -= oldest.buffer.capacity();
+            deleted.increment();
+            // readers holding the mapping can still finish, the file is gone once they let go
+            if (!oldest.file.delete() || oldest.indexFile().exists() && !oldest.indexFile().delete()) {
+                ServerLog.warn("[JOURNAL] Could not delete {}", oldest.file);
+            }
+            ServerLog.info("[JOURNAL] Deleted segment {}", oldest.file.getName());
+        }
+    }
+
+    // wait until the record at offset is on the disk
+    public void sync(long offset) throws InterruptedException {
+        if (fsync == Fsync.OS) {
+            Segment segment = active;
+            long written = writtenOffset;
+            force(segment);
+            markDurable(written);
+            return;
+        }
+        LockSupport.unpark(flusher);
+        synchronized (durable) {
+            while (durableOffset <= offset && !closed) {
+                durable.wait();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        long lastRetain = System.currentTimeMillis();
+        prepareSpare();
+        while (!closed) {
+            if (fsync == Fsync.COMMIT) {
+                if (writtenOffset == durableOffset && sealed.isEmpty()) {
+                    LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+                }
+            } else {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(
+                        fsync == Fsync.INTERVAL ? fsyncMillis : TimeUnit.SECONDS.toMillis(1)));
+            }
+            // read both before forcing: whatever is appended meanwhile waits for the next round.
+            // a segment sealed before we read active is in the queue, one sealed after is this one
+            long written = writtenOffset;
+            Segment segment = active;
+            seal();
+            if (fsync != Fsync.OS && written != durableOffset) {
+                force(segment);
+                markDurable(written);
+            }
+            prepareSpare();
+            if (System.currentTimeMillis() - lastRetain > TimeUnit.MINUTES.toMillis(1)) {
+                lastRetain = System.currentTimeMillis();
+                retain(); // time based retention shouldn't have to wait for a segment to fill
+            }
+        }
+    }
+
+    private void force(Segment segment) {
+        long start = System.nanoTime();
+        segment.buffer.force();
+        fsyncs.increment();
+        fsyncMicros.add((System.nanoTime() - start) / 1000);
+    }
+
+    private void markDurable(long offset) {
+        synchronized (durable) {
+            if (offset > durableOffset) {
+                durableOffset = offset;
+            }
+            durable.notifyAll();
+        }
+    }
+
+    // up to max records from offset on, oldest first. an offset that has been deleted
+    // starts at the oldest record still kept
+    public List<Entry> read(long offset, int max) {
+        List<Entry> entries = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (entries.size() >= max) {
+                break;
+            }
+            if (segment.nextOffset <= offset) {
+                continue;
+            }
+            int pos;
+            synchronized (this) {
+                pos = offset <= segment.baseOffset ? 0 : segment.seek(offset);
+            }
+            readFrom(segment, pos, offset, max, entries);
+        }
+        return entries;
+    }
+
+    // the offset of the first record written at or after time (millis), the next offset
+    // to be written if there's none
+    public long offsetAt(long time) {
+        for (Segment segment : segments) {
+            if (segment.lastTime < time || segment.nextOffset == segment.baseOffset) {
+                continue;
+            }
+            int pos;
+            synchronized (this) {
+                pos = segment.seekTime(time);
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int end = segment.end;
+            while (pos < end) {
+                if (buffer.getLong(pos + 16) >= time) {
+                    return buffer.getLong(pos + 8);
+                }
+                pos += RECORD_HEADER + buffer.getInt(pos);
+            }
+        }
+        return writtenOffset;
+    }
+
+    private static void readFrom(Segment segment, int pos, long offset, int max, List<Entry> entries) {
+        ByteBuffer buffer = segment.buffer.duplicate(); // our own position, appends keep going
+        int end = segment.end;
+        while (pos < end && entries.size() < max) {
+            int length = buffer.getInt(pos);
+            long recordOffset = buffer.getLong(pos + 8);
+            if (recordOffset >= offset) {
+                byte[] payload = new byte[length];
+                buffer.position(pos + RECORD_HEADER);
+                buffer.get(payload);
+                entries.add(new Entry(recordOffset, buffer.getLong(pos + 16), payload));
+            }
+            pos += RECORD_HEADER + length;
+        }
+    }
+
+    // the offset the next record will get
+    public long nextOffset() {
+        return writtenOffset;
+    }
+
+    // the oldest offset still kept
+    public long firstOffset() {
+        return segments.get(0).baseOffset;
+    }
+
+    // stop the flusher and get everything onto the disk
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        flusher.interrupt();
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(1)); // so we don't seal the same segments alongside it
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        seal();
+        force(active);
+        markDurable(writtenOffset);
+    }
+}
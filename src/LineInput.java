@@ -0,0 +1,106 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class LineInput {
+    /**
+     * Buffered input that can switch between text lines and raw bytes.
+     * A BufferedReader reads ahead and decodes everything as text, which eats
+     * the bytes of a file chunk that follows a command line. This keeps one
+     * byte buffer instead, so after readLine() the next bytes are still there
+     * for readFully().
+     */
+
+    private final InputStream in;
+    private final int maxLineLength;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private byte[] lineBuffer = new byte[256];
+    private volatile long lastReadNanos = System.nanoTime(); // when the other end last sent anything
+
+    public LineInput(InputStream in, int maxLineLength) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+        this.buffer = new byte[16 * 1024];
+    }
+
+    // the next line without its line ending, or null at the end of the stream
+    public String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                return length > 0 ? decode(length) : null;
+            }
+            byte b = buffer[pos++];
+            if (b == '\n') {
+                if (length > 0 && lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+                return decode(length);
+            }
+            if (length == lineBuffer.length) {
+                if (length >= maxLineLength) {
+                    throw new IOException("Line too long");
+                }
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.min(length * 2, maxLineLength));
+            }
+            lineBuffer[length++] = b;
+        }
+    }
+
+    // up to length raw bytes, whatever is buffered first. -1 at the end of the stream
+    public int read(byte[] dest, int offset, int length) throws IOException {
+        if (pos == limit) {
+            // nothing buffered, big reads can skip our buffer
+            if (length >= buffer.length) {
+                int n = in.read(dest, offset, length);
+                lastReadNanos = System.nanoTime();
+                return n;
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int n = Math.min(length, limit - pos);
+        System.arraycopy(buffer, pos, dest, offset, n);
+        pos += n;
+        return n;
+    }
+
+    // exactly length raw bytes
+    public void readFully(byte[] dest, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = read(dest, offset, length);
+            if (n < 0) {
+                throw new EOFException("Connection closed in the middle of a transfer");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // System.nanoTime() of the last read that got any bytes, safe from any thread
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        lastReadNanos = System.nanoTime();
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private String decode(int length) {
+        return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+}
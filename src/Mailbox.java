@@ -0,0 +1,188 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Mailbox {
+    /**
+     * Private messages for people who aren't connected right now.
+     * Each nickname with mail waiting has a small file of its own (records of
+     * time and the MSG line, appended as they come in) and an entry in a map,
+     * so checking for mail when someone picks a nickname is one map lookup and
+     * touches the disk only if there is something to deliver. Delivery reads
+     * the whole file in one go and deletes it. Each box is capped in messages
+     * and bytes, the number of boxes is capped too (anyone can write to any
+     * name, taken or not), and mail nobody came for expires.
+     */
+
+    private static final String SUFFIX = ".mbox";
+
+    private final File dir;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final int maxBoxes;
+    private final long retentionMillis;
+    private final ConcurrentHashMap<String, Box> boxes = new ConcurrentHashMap<>();
+    private final LongAdder stored;
+    private final LongAdder delivered;
+    private final LongAdder rejected;
+    private final LongAdder expired;
+
+    // why store() said no, null if it didn't
+    public enum Refusal {
+        FULL, TOO_MANY_BOXES, FAILED
+    }
+
+    // one nickname's waiting mail, the file is only touched while holding the box's lock
+    private static final class Box {
+        final File file;
+        int messages;
+        long bytes;
+        long newest; // when the last message came in
+        boolean gone; // delivered or expired, whoever wants it again makes a new box
+
+        Box(File file) {
+            this.file = file;
+        }
+    }
+
+    private Mailbox(ServerConfig config, ServerStats stats) {
+        this.dir = new File(config.getMailboxDir());
+        this.maxMessages = config.getMailboxMessages();
+        this.maxBytes = config.getMailboxBytes();
+        this.maxBoxes = config.getMailboxMaxUsers();
+        this.retentionMillis = TimeUnit.HOURS.toMillis(config.getMailboxRetentionHours());
+        this.stored = stats.counter("mailbox.stored");
+        this.delivered = stats.counter("mailbox.delivered");
+        this.rejected = stats.counter("mailbox.rejected");
+        this.expired = stats.counter("mailbox.expired");
+        stats.gauge("mailbox.users", boxes::size);
+    }
+
+    // open the mailboxes in config's directory, with whatever was left from the last run
+    public static Mailbox open(ServerConfig config, ServerStats stats) throws IOException {
+        Mailbox mailbox = new Mailbox(config, stats);
+        mailbox.load();
+        return mailbox;
+    }
+
+    private void load() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create mailbox directory " + dir);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        for (File file : files) {
+            Box box = new Box(file);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    long time = in.readLong();
+                    int length = in.readInt();
+                    in.skipBytes(length);
+                    box.messages++;
+                    box.bytes += length;
+                    box.newest = time;
+                }
+            } catch (EOFException e) {
+                // the end, or a record cut short by a crash, which take() stops at too
+            }
+            if (box.messages > 0) {
+                String name = file.getName();
+                boxes.put(name.substring(0, name.length() - SUFFIX.length()), box);
+            } else if (!file.delete()) {
+                ServerLog.warn("[MAILBOX] Could not delete {}", file);
+            }
+        }
+        ServerLog.info("[MAILBOX] {} users have mail waiting", boxes.size());
+    }
+
+    // keep a MSG line for nickname, null if it was stored or why it wasn't
+    public Refusal store(String nickname, byte[] line) {
+        String key = nickname.toLowerCase();
+        while (true) {
+            Box box = boxes.get(key);
+            if (box == null) {
+                if (boxes.size() >= maxBoxes) {
+                    rejected.increment();
+                    return Refusal.TOO_MANY_BOXES;
+                }
+                box = boxes.computeIfAbsent(key, k -> new Box(new File(dir, k + SUFFIX)));
+            }
+            synchronized (box) {
+                if (box.gone) {
+                    continue; // delivered under us, start a new one
+                }
+                if (box.messages >= maxMessages || box.bytes + line.length > maxBytes) {
+                    rejected.increment();
+                    return Refusal.FULL;
+                }
+                long now = System.currentTimeMillis();
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(box.file, true)))) {
+                    out.writeLong(now);
+                    out.writeInt(line.length);
+                    out.write(line);
+                } catch (IOException e) {
+                    ServerLog.error("[MAILBOX] Cannot write {}: {}", box.file, e.getMessage());
+                    return Refusal.FAILED;
+                }
+                box.messages++;
+                box.bytes += line.length;
+                box.newest = now;
+                stored.increment();
+                return null;
+            }
+        }
+    }
+
+    // everything waiting for nickname, oldest first, and forget it. empty if there's
+    // nothing, which is only a map lookup (so it's fine to ask on every NICK)
+    public List<byte[]> take(String nickname) {
+        Box box = boxes.get(nickname.toLowerCase());
+        if (box == null) {
+            return Collections.emptyList();
+        }
+        List<byte[]> lines = new ArrayList<>();
+        synchronized (box) {
+            if (box.gone) {
+                return Collections.emptyList();
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(box.file)))) {
+                for (int i = 0; i < box.messages; i++) {
+                    in.readLong();
+                    byte[] line = new byte[in.readInt()];
+                    in.readFully(line);
+                    lines.add(line);
+                }
+            } catch (IOException e) {
+                ServerLog.warn("[MAILBOX] Could not read all of {}: {}", box.file, e.getMessage());
+            }
+            drop(nickname.toLowerCase(), box);
+        }
+        delivered.add(lines.size());
+        return lines;
+    }
+
+    // throw away mail that has waited longer than the retention time. run now and then
+    public void expire() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        for (Map.Entry<String, Box> entry : boxes.entrySet()) {
+            Box box = entry.getValue();
+            synchronized (box) {
+                if (!box.gone && box.newest < cutoff) {
+                    expired.add(box.messages);
+                    drop(entry.getKey(), box);
+                }
+            }
+        }
+    }
+
+    // called holding the box's lock
+    private void drop(String key, Box box) {
+        box.gone = true;
+        boxes.remove(key, box);
+        if (!box.file.delete() && box.file.exists()) {
+            ServerLog.warn("[MAILBOX] Could not delete {}", box.file);
+        }
+    }
+}
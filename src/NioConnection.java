@@ -0,0 +1,596 @@
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class NioConnection {
+    /**
+     * One TLS client connection in the non-blocking server mode.
+     * It sits between a SocketChannel and a ClientHandler: encrypted bytes come
+     * in, get unwrapped by the SSLEngine and split into lines (or binary frames,
+     * once the client asks for them) for the handler,
+     * and whatever the handler sends is queued and wrapped back out by the
+     * EventLoop that owns this connection.
+     */
+
+    static final int MAX_LINE_LENGTH = 64 * 1024; // nobody types this much
+    private static final int MAX_BATCH = 64; // frames handed to one wrap() call
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // where raw bytes go while they're coming in instead of command lines
+    public interface RawSink {
+        // bytes still expected
+        long remaining();
+
+        // the next bytes, returns false if reading should pause until whenRoom() calls back
+        boolean write(byte[] data, int offset, int length);
+
+        void whenRoom(Runnable callback);
+
+        // everything expected has arrived
+        void finish();
+    }
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final EventLoop loop;
+    private final ClientHandler handler;
+    private final ChatServer server;
+    private final SocketAddress remoteAddress;
+
+    // frames taken from the handler's outbound queue that are being encrypted right now
+    private final ArrayDeque<ByteBuffer> writing;
+    private final AtomicBoolean flushScheduled;
+    private final AtomicBoolean closed;
+    private final LongAdder frameCounter;
+    private final LongAdder flushCounter;
+
+    private SelectionKey key;
+    private ByteBuffer netIn; // encrypted bytes from the socket
+    private ByteBuffer appIn; // decrypted bytes waiting to be split into lines
+    private ByteBuffer pendingOut; // encrypted bytes the socket wouldn't take yet, usually null
+    private byte[] lineBuffer; // the line so far, or the start of a binary frame's payload
+    private int lineLength;
+    private final byte[] frameHeader = new byte[Frames.HEADER_LENGTH];
+    private int frameHeaderLength;
+    private int frameLength;
+    private int frameHead = -1; // how much of the frame's payload to collect, -1 while reading its header
+    private boolean handshakeDone;
+    private boolean closeAfterFlush;
+    private boolean wantWrite;
+    private boolean readPaused; // a file receiver is behind, leave the upload in the socket for now
+    private boolean tasksRunning; // the handshake is waiting for its delegated tasks on the handshake pool
+    private long handshakeStartMillis;
+    private long handshakeStartNanos;
+    private TimerWheel.Timeout handshakeDeadline;
+    private volatile long lastReadNanos = System.nanoTime(); // when the client last sent anything
+
+    // raw mode, used while file data is coming in after a FILE or FILECHUNK command
+    private RawSink upload;
+
+    public NioConnection(SocketChannel channel, SSLEngine engine, EventLoop loop, ChatServer server)
+            throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+        this.server = server;
+        this.remoteAddress = channel.getRemoteAddress();
+        this.writing = new ArrayDeque<>();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.closed = new AtomicBoolean(false);
+        this.frameCounter = server.getStats().counter("outbound.frames");
+        this.flushCounter = server.getStats().counter("outbound.flushes");
+
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        this.lineBuffer = new byte[256];
+        this.lineLength = 0;
+        this.handshakeDone = false;
+        this.closeAfterFlush = false;
+
+        this.handler = new ClientHandler(this, server);
+    }
+
+    // register with the selector and wait for the client's hello
+    public void start(Selector selector) throws IOException {
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        handshakeStartMillis = System.currentTimeMillis();
+        handshakeStartNanos = System.nanoTime();
+        handshakeDeadline = server.schedule(() -> loop.execute(this::handshakeTimedOut),
+                server.getConfig().getHandshakeTimeoutMillis());
+        engine.beginHandshake();
+    }
+
+    // a client that connects and never finishes the handshake doesn't get to keep the socket
+    private void handshakeTimedOut() {
+        if (!handshakeDone && !closed.get()) {
+            server.getTlsMetrics().timedOut();
+            ServerLog.info("[CLIENT {}] TLS handshake timed out", remoteAddress);
+            close();
+        }
+    }
+
+    // called by the loop when the socket has data for us
+    public void onReadable() throws IOException {
+        if (readPaused || tasksRunning) {
+            return;
+        }
+        int n = channel.read(netIn);
+        if (n < 0) {
+            close();
+            return;
+        }
+        if (n > 0) {
+            lastReadNanos = System.nanoTime();
+        }
+        unwrap();
+        if (!closed.get()) {
+            flush(); // anything produced while handling this read goes out now
+        }
+    }
+
+    // called by the loop when a previously full socket can take more
+    public void onWritable() throws IOException {
+        flush();
+    }
+
+    // the next sink.remaining() bytes are file data, not commands: pass them to the sink
+    // as they come in. called on this connection's loop (from a command)
+    public void readRaw(RawSink sink) {
+        if (sink.remaining() <= 0) {
+            sink.finish();
+            return;
+        }
+        upload = sink;
+    }
+
+    // the file receiver caught up, start reading the upload again
+    private void resumeReading() {
+        if (!readPaused || closed.get()) {
+            return;
+        }
+        readPaused = false;
+        updateInterest();
+        try {
+            // bytes we already pulled off the socket won't trigger another select
+            if (netIn.position() > 0) {
+                unwrap();
+                if (!closed.get()) {
+                    flush();
+                }
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // close once everything queued so far has been sent (used by QUIT)
+    public void closeGracefully() {
+        if (closed.get()) {
+            return;
+        }
+        loop.execute(() -> {
+            closeAfterFlush = true;
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    // close from any thread without waiting for queued data (slow consumers)
+    public void abort() {
+        loop.execute(this::close);
+    }
+
+    // close the connection right away, safe to call more than once from any thread
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (!handshakeDone) {
+            server.getTlsMetrics().failed();
+            if (handshakeDeadline != null) {
+                handshakeDeadline.cancel();
+            }
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        engine.closeOutbound();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.warn("Error closing client connection: {}", e.getMessage());
+        }
+        handler.disconnect();
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // System.nanoTime() of the last read that got any bytes, safe from any thread
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    // make sure the loop flushes soon, without piling up duplicate flush tasks.
+    // the handler's outbound queue calls this whenever something is queued
+    public void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                if (closed.get()) {
+                    return;
+                }
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+    }
+
+    // decrypt everything in netIn and pass the plaintext on
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining() && !closed.get()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                if (appIn.position() > 0) {
+                    appIn.flip();
+                    deliver(appIn);
+                    appIn.clear();
+                }
+
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        // the session wants a bigger plaintext buffer
+                        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case BUFFER_UNDERFLOW:
+                        if (netIn.capacity() < engine.getSession().getPacketBufferSize()) {
+                            ByteBuffer bigger = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                            bigger.put(netIn);
+                            bigger.flip();
+                            netIn = bigger;
+                        }
+                        return; // wait for the rest of the record
+                    case CLOSED:
+                        close();
+                        return;
+                    default:
+                        break;
+                }
+
+                HandshakeStatus status = result.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    if (!runDelegatedTasks()) {
+                        return; // picked up again in tasksDone()
+                    }
+                    status = engine.getHandshakeStatus();
+                }
+                if (status == HandshakeStatus.FINISHED) {
+                    handshakeFinished();
+                }
+                if (status == HandshakeStatus.NEED_WRAP) {
+                    flush();
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && status != HandshakeStatus.NEED_TASK) {
+                    return; // no progress possible until the socket moves
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    // split decrypted bytes into lines (or raw file data) for the handler
+    private void deliver(ByteBuffer data) {
+        while (data.hasRemaining() && !closed.get()) {
+            if (upload != null) {
+                RawSink relay = upload;
+                int n = (int) Math.min(relay.remaining(), data.remaining());
+                boolean room = relay.write(data.array(), data.arrayOffset() + data.position(), n);
+                data.position(data.position() + n);
+                if (relay.remaining() == 0) {
+                    upload = null;
+                    relay.finish();
+                } else if (!room && !readPaused) {
+                    // what's already decrypted still goes through, but no more socket reads for now
+                    readPaused = true;
+                    updateInterest();
+                    relay.whenRoom(() -> loop.execute(this::resumeReading));
+                }
+                continue;
+            }
+            if (handler.isFramed()) {
+                if (!deliverFrame(data)) {
+                    return;
+                }
+                continue;
+            }
+
+            byte b = data.get();
+            if (b == '\n') {
+                int length = lineLength;
+                if (length > 0 && lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+                String line = new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+                lineLength = 0;
+                handler.onLine(line);
+            } else {
+                if (lineLength == lineBuffer.length) {
+                    if (lineBuffer.length >= MAX_LINE_LENGTH) {
+                        handler.send("ERROR 400 Line too long\n");
+                        closeGracefully();
+                        return;
+                    }
+                    lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+                }
+                lineBuffer[lineLength++] = b;
+            }
+        }
+    }
+
+    // binary frames: collect the header, then the start of the payload, then hand it to the
+    // handler (which reads any file data after that through readRaw). false if the client
+    // sent something we can't follow
+    private boolean deliverFrame(ByteBuffer data) {
+        if (frameHead < 0) {
+            frameHeader[frameHeaderLength++] = data.get();
+            if (frameHeaderLength < Frames.HEADER_LENGTH) {
+                return true;
+            }
+            frameHeaderLength = 0;
+            frameLength = Frames.getInt(frameHeader, 1);
+            frameHead = Frames.headLength(frameHeader[0], frameLength);
+            if (frameHead < 0) {
+                handler.send("ERROR 400 Bad frame\n");
+                closeGracefully();
+                return false;
+            }
+            if (lineBuffer.length < frameHead) {
+                lineBuffer = new byte[Math.max(frameHead, lineBuffer.length * 2)];
+            }
+            lineLength = 0;
+        } else {
+            int n = Math.min(frameHead - lineLength, data.remaining());
+            data.get(lineBuffer, lineLength, n);
+            lineLength += n;
+        }
+
+        if (lineLength == frameHead) {
+            int head = frameHead;
+            frameHead = -1;
+            lineLength = 0;
+            handler.onFrame(frameHeader[0], lineBuffer, head, frameLength - head);
+        }
+        return true;
+    }
+
+    // encrypt and write as much queued data as the socket will take.
+    // records are packed into the loop's shared write buffer and written together,
+    // so a burst of messages costs a few large writes instead of one per message
+    private void flush() throws IOException {
+        if (!writePending()) {
+            return; // still stuck on data from last time
+        }
+
+        ByteBuffer out = loop.getWriteBuffer();
+        out.clear();
+        int packetSize = engine.getSession().getPacketBufferSize();
+
+        while (!closed.get()) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                if (!runDelegatedTasks()) {
+                    break; // nothing to wrap until they're done
+                }
+                continue;
+            }
+            if (status == HandshakeStatus.NEED_UNWRAP) {
+                break; // waiting for the client to say something
+            }
+
+            ByteBuffer[] batch;
+            if (status == HandshakeStatus.NEED_WRAP) {
+                batch = new ByteBuffer[] { EMPTY };
+            } else {
+                batch = nextBatch();
+                if (batch == null) {
+                    break; // all caught up
+                }
+            }
+
+            // write out what we have once there's no room for another full record
+            if (out.remaining() < packetSize) {
+                if (!writeBuffer(out)) {
+                    return;
+                }
+                out.clear();
+            }
+
+            SSLEngineResult result = engine.wrap(batch, out);
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (out.position() == 0) {
+                    throw new SSLException("TLS record larger than the write buffer");
+                }
+                if (!writeBuffer(out)) {
+                    return;
+                }
+                out.clear();
+                continue;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                close();
+                return;
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                handshakeFinished();
+            }
+
+            // forget frames that are now fully encrypted
+            while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) {
+                writing.pollFirst();
+            }
+        }
+
+        if (!writeBuffer(out)) {
+            return;
+        }
+
+        setWriteInterest(false);
+        if (closeAfterFlush && writing.isEmpty() && handler.getOutbound().depth() == 0) {
+            close();
+        }
+    }
+
+    // collect queued frames for one wrap() call, or null if there is nothing to send
+    private ByteBuffer[] nextBatch() {
+        if (!handshakeDone) {
+            return null;
+        }
+        // only pull a batch at a time, the rest stays in the queue where the
+        // slow-consumer policy can see it
+        byte[] frame;
+        while (writing.size() < MAX_BATCH && (frame = handler.getOutbound().poll()) != null) {
+            // frames can be shared with other connections, so each gets its own view
+            frame = handler.outboundFrame(frame);
+            byte[] header = handler.outboundHeader(frame);
+            if (header != null) {
+                writing.add(ByteBuffer.wrap(header));
+            }
+            writing.add(ByteBuffer.wrap(frame));
+            frameCounter.increment();
+        }
+        if (writing.isEmpty()) {
+            return null;
+        }
+        int n = Math.min(writing.size(), MAX_BATCH);
+        ByteBuffer[] batch = new ByteBuffer[n];
+        Iterator<ByteBuffer> it = writing.iterator();
+        for (int i = 0; i < n; i++) {
+            batch[i] = it.next();
+        }
+        return batch;
+    }
+
+    // write the shared buffer, anything the socket won't take is kept in pendingOut
+    private boolean writeBuffer(ByteBuffer out) throws IOException {
+        out.flip();
+        if (!out.hasRemaining()) {
+            return true;
+        }
+        flushCounter.increment();
+        while (out.hasRemaining()) {
+            if (channel.write(out) == 0) {
+                // copy the rest out, the shared buffer belongs to the next connection now
+                pendingOut = ByteBuffer.allocate(out.remaining());
+                pendingOut.put(out);
+                pendingOut.flip();
+                setWriteInterest(true);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // retry data left over from a full socket, returns false if it's still full
+    private boolean writePending() throws IOException {
+        if (pendingOut == null) {
+            return true;
+        }
+        while (pendingOut.hasRemaining()) {
+            if (channel.write(pendingOut) == 0) {
+                setWriteInterest(true);
+                return false;
+            }
+        }
+        pendingOut = null;
+        return true;
+    }
+
+    private void setWriteInterest(boolean enabled) {
+        wantWrite = enabled;
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = (readPaused || tasksRunning ? 0 : SelectionKey.OP_READ) | (wantWrite ? SelectionKey.OP_WRITE : 0);
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    // the TLS engine hands out slow jobs (like key exchange math) as tasks. with a
+    // handshake pool they run there and this returns false, the handshake carries on in
+    // tasksDone() (reads are off until then). without one they run right here
+    private boolean runDelegatedTasks() {
+        Executor pool = server.getHandshakeExecutor();
+        if (pool == null) {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            return true;
+        }
+        if (!tasksRunning) {
+            tasksRunning = true;
+            updateInterest();
+            pool.execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                loop.execute(this::tasksDone);
+            });
+        }
+        return false;
+    }
+
+    // back on the loop after the delegated tasks: carry on where unwrap or flush stopped
+    private void tasksDone() {
+        tasksRunning = false;
+        if (closed.get()) {
+            return;
+        }
+        updateInterest();
+        try {
+            unwrap();
+            if (!closed.get()) {
+                flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+        }
+    }
+
+    // the secure channel is up, now the handler can greet the client
+    private void handshakeFinished() {
+        if (!handshakeDone) {
+            handshakeDone = true;
+            handshakeDeadline.cancel();
+            server.getTlsMetrics().finished(engine.getSession(), handshakeStartMillis,
+                    System.nanoTime() - handshakeStartNanos);
+            handler.onConnected();
+        }
+    }
+}
@@ -0,0 +1,536 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.*;
+
+public class OutboundQueue {
+    /**
+     * Bounded queue of encoded messages waiting to go out to one client.
+     * Senders only ever add to it, so a client with a full TCP window slows down
+     * nobody but itself. A writer thread (or the client's event loop) drains it,
+     * and the slow-consumer policy decides what happens when it backs up.
+     * A file being relayed to the client goes through a separate stream lane
+     * with its own byte window, so the upload can never run far ahead of the
+     * receiver and no chat line lands in the middle of the file.
+     * Multiplexed transfers get a lane each instead: their frames are taken in
+     * turn with chat frames and with each other, so one big file can't hold
+     * up the rest.
+     */
+
+    private static final byte[] ZEROS = new byte[16 * 1024]; // padding for interrupted streams, never written to
+
+    // what to do when a client can't keep up
+    public enum Policy {
+        DROP_OLDEST, // throw away the oldest queued message to make room
+        DROP_NEW, // throw away the message being sent
+        DISCONNECT // keep queueing for a grace period, then kick the client
+    }
+
+    // result of trying to queue a message
+    public enum Result {
+        QUEUED, DROPPED, DISCONNECT
+    }
+
+    // one transfer's frames, see openLane()
+    public static final class Lane {
+        private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+        private final Consumer<byte[]> onSent;
+        private boolean scheduled; // true while it's waiting in the round-robin list
+
+        private Lane(Consumer<byte[]> onSent) {
+            this.onSent = onSent;
+        }
+    }
+
+    private final ArrayDeque<byte[]> frames;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition streamRoom;
+    private final int capacity;
+    private final Policy policy;
+    private final long disconnectAfterNanos;
+    private final Runnable onReady;
+    private final LongAdder droppedTotal;
+
+    private boolean closed;
+    private long overSince; // when we went over the high-water mark, 0 if we're under it
+    private long enqueued;
+    private long dropped;
+    private int maxDepth;
+    private byte[] keep; // never dropped, see keep()
+
+    // the file stream, null when there isn't one (see openStream)
+    private ArrayDeque<byte[]> stream;
+    private int framesBeforeStream; // frames that were queued before the stream and go out first
+    private long streamBytes; // stream bytes waiting to be taken
+    private long streamWindow;
+    private boolean streamEnded;
+    private long streamPadding; // zero bytes still owed by an upload that broke off
+    private Runnable streamRoomCallback;
+
+    // lanes with frames waiting, in the order they get their next turn
+    private final ArrayDeque<Lane> readyLanes = new ArrayDeque<>();
+    private int laneFrames;
+    private boolean laneTurn; // chat and lanes take turns
+    private Lane takenFrom; // lane of the frame next() just returned, if any
+
+    // onReady is called after every successful offer, droppedTotal is a server-wide
+    // drop counter; either may be null
+    public OutboundQueue(int capacity, Policy policy, long disconnectAfterMillis, Runnable onReady,
+            LongAdder droppedTotal) {
+        this.frames = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.streamRoom = lock.newCondition();
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.disconnectAfterNanos = TimeUnit.MILLISECONDS.toNanos(disconnectAfterMillis);
+        this.onReady = onReady;
+        this.droppedTotal = droppedTotal;
+    }
+
+    // queue a chat message, applying the slow-consumer policy if we're full
+    public Result offer(byte[] frame) {
+        Result result;
+        lock.lock();
+        try {
+            if (closed) {
+                return Result.DROPPED;
+            }
+            result = admit(frame);
+        } finally {
+            lock.unlock();
+        }
+        if (result == Result.QUEUED && onReady != null) {
+            onReady.run();
+        }
+        return result;
+    }
+
+    // never drop this frame, whatever the policy. for one the connection can't do without,
+    // like the reply after which the writer switches to binary frames
+    public void keep(byte[] frame) {
+        lock.lock();
+        try {
+            keep = frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the policy decision, called with the lock held
+    private Result admit(byte[] frame) {
+        if (frames.size() < capacity || frame == keep) {
+            overSince = 0;
+            add(frame);
+            return Result.QUEUED;
+        }
+
+        switch (policy) {
+            case DROP_OLDEST:
+                // the one after a kept frame goes instead of it
+                boolean kept = frames.peekFirst() == keep;
+                byte[] oldest = frames.pollFirst();
+                if (kept) {
+                    oldest = frames.pollFirst();
+                    frames.addFirst(keep);
+                    if (oldest == null) {
+                        countDrop();
+                        return Result.DROPPED;
+                    }
+                }
+                if (framesBeforeStream > (kept ? 1 : 0)) {
+                    framesBeforeStream--;
+                }
+                countDrop();
+                add(frame);
+                return Result.QUEUED;
+            case DROP_NEW:
+                countDrop();
+                return Result.DROPPED;
+            default:
+                long now = System.nanoTime();
+                if (overSince == 0) {
+                    overSince = now;
+                } else if (now - overSince >= disconnectAfterNanos) {
+                    return Result.DISCONNECT;
+                }
+                // still in the grace period, keep queueing up to a hard limit
+                if (frames.size() >= capacity * 4) {
+                    countDrop();
+                    return Result.DROPPED;
+                }
+                add(frame);
+                return Result.QUEUED;
+        }
+    }
+
+    private void countDrop() {
+        dropped++;
+        if (droppedTotal != null) {
+            droppedTotal.increment();
+        }
+    }
+
+    private void add(byte[] frame) {
+        frames.addLast(frame);
+        enqueued++;
+        maxDepth = Math.max(maxDepth, frames.size());
+        notEmpty.signal();
+    }
+
+    // wait for the next frame, returns null once the queue is closed and empty
+    public byte[] take() throws InterruptedException {
+        byte[] frame;
+        Runnable roomCallback;
+        Lane lane;
+        lock.lock();
+        try {
+            while ((frame = next()) == null) {
+                if (closed && isDrained()) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            roomCallback = streamRoomDue();
+            lane = takenFrom;
+            takenFrom = null;
+        } finally {
+            lock.unlock();
+        }
+        afterTake(frame, lane, roomCallback);
+        return frame;
+    }
+
+    // wait up to the timeout for the next frame, null if none arrived (or we're closed)
+    public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        byte[] frame;
+        Runnable roomCallback;
+        Lane lane;
+        lock.lock();
+        try {
+            while ((frame = next()) == null) {
+                if ((closed && isDrained()) || nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            roomCallback = streamRoomDue();
+            lane = takenFrom;
+            takenFrom = null;
+        } finally {
+            lock.unlock();
+        }
+        afterTake(frame, lane, roomCallback);
+        return frame;
+    }
+
+    // next frame without waiting, or null
+    public byte[] poll() {
+        byte[] frame;
+        Runnable roomCallback = null;
+        Lane lane = null;
+        lock.lock();
+        try {
+            frame = next();
+            if (frame != null) {
+                roomCallback = streamRoomDue();
+                lane = takenFrom;
+                takenFrom = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        afterTake(frame, lane, roomCallback);
+        return frame;
+    }
+
+    // callbacks for a frame that was just taken, run without the lock held
+    private static void afterTake(byte[] frame, Lane lane, Runnable roomCallback) {
+        runCallback(roomCallback);
+        if (lane != null && lane.onSent != null) {
+            lane.onSent.accept(frame);
+        }
+    }
+
+    // the frame that should go out next, called with the lock held. once the frames
+    // queued before a stream are gone, only the stream is sent until it has ended.
+    // otherwise chat frames and lane frames take turns, and lanes take turns among themselves
+    private byte[] next() {
+        if (stream != null && framesBeforeStream == 0) {
+            byte[] chunk = stream.pollFirst();
+            if (chunk != null) {
+                streamBytes -= chunk.length;
+                return chunk;
+            }
+            if (streamPadding > 0) {
+                int n = (int) Math.min(streamPadding, ZEROS.length);
+                streamPadding -= n;
+                return n == ZEROS.length ? ZEROS : new byte[n];
+            }
+            if (!streamEnded) {
+                return null; // the rest of the file hasn't arrived yet, everything else waits
+            }
+            stream = null;
+        }
+        if (!readyLanes.isEmpty() && (laneTurn || frames.isEmpty())) {
+            laneTurn = false;
+            Lane lane = readyLanes.pollFirst();
+            byte[] frame = lane.frames.pollFirst();
+            laneFrames--;
+            if (lane.frames.isEmpty()) {
+                lane.scheduled = false;
+            } else {
+                readyLanes.addLast(lane); // back of the line
+            }
+            takenFrom = lane;
+            return frame;
+        }
+        laneTurn = true;
+        byte[] frame = frames.pollFirst();
+        if (frame != null && framesBeforeStream > 0) {
+            framesBeforeStream--;
+        }
+        return frame;
+    }
+
+    private boolean isDrained() {
+        return frames.isEmpty() && readyLanes.isEmpty() && (stream == null || (stream.isEmpty() && streamPadding == 0));
+    }
+
+    // a new lane for one transfer's frames. onSent (may be null) is told about each of
+    // its frames once it has been taken for writing. null if the client is gone
+    public Lane openLane(Consumer<byte[]> onSent) {
+        lock.lock();
+        try {
+            return closed ? null : new Lane(onSent);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // queue a frame on a lane, the frame must not be changed afterwards. lanes aren't
+    // subject to the slow-consumer policy, transfers limit themselves. false if the client is gone
+    public boolean offerLane(Lane lane, byte[] frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            lane.frames.addLast(frame);
+            laneFrames++;
+            enqueued++;
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                readyLanes.addLast(lane);
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (onReady != null) {
+            onReady.run();
+        }
+        return true;
+    }
+
+    // start streaming a file to this client. 'first' goes out ahead of the stream's chunks
+    // (e.g. the offer and header), after whatever was already queued. 'window' is how many
+    // stream bytes may wait here before senders are told to hold off. false if the client is
+    // gone or already receiving a stream
+    public boolean openStream(long window, byte[]... first) {
+        lock.lock();
+        try {
+            if (closed || stream != null) {
+                return false;
+            }
+            stream = new ArrayDeque<>();
+            framesBeforeStream = frames.size();
+            streamWindow = Math.max(1, window);
+            streamBytes = 0;
+            streamEnded = false;
+            streamPadding = 0;
+            for (byte[] chunk : first) {
+                stream.addLast(chunk);
+                streamBytes += chunk.length;
+                enqueued++;
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (onReady != null) {
+            onReady.run();
+        }
+        return true;
+    }
+
+    // queue the next piece of the stream, the array must not be changed afterwards.
+    // false if the client is gone
+    public boolean offerStream(byte[] chunk) {
+        lock.lock();
+        try {
+            if (closed || stream == null || streamEnded) {
+                return false;
+            }
+            stream.addLast(chunk);
+            streamBytes += chunk.length;
+            enqueued++;
+            maxDepth = Math.max(maxDepth, frames.size() + stream.size());
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (onReady != null) {
+            onReady.run();
+        }
+        return true;
+    }
+
+    // the stream is complete. if the upload broke off, missingBytes of zeros are sent in its
+    // place so the receiver still gets the size it was promised
+    public void endStream(long missingBytes) {
+        lock.lock();
+        try {
+            if (stream == null || streamEnded) {
+                return;
+            }
+            streamEnded = true;
+            streamPadding = closed ? 0 : Math.max(0, missingBytes);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (onReady != null) {
+            onReady.run();
+        }
+    }
+
+    // true while less than a window of stream data is waiting (or nobody will ever take it)
+    public boolean streamHasRoom() {
+        lock.lock();
+        try {
+            return hasRoom();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasRoom() {
+        return closed || stream == null || streamBytes < streamWindow;
+    }
+
+    // block until the stream has room, for senders on their own thread
+    public void awaitStreamRoom() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!hasRoom()) {
+                streamRoom.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // run the callback once the stream has drained to half a window (right away if it already
+    // has room), for senders that can't block. only one callback is remembered
+    public void whenStreamHasRoom(Runnable callback) {
+        lock.lock();
+        try {
+            if (!hasRoom()) {
+                streamRoomCallback = callback;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        callback.run();
+    }
+
+    // called with the lock held after taking a frame, wakes up a sender that's waiting for room
+    private Runnable streamRoomDue() {
+        if (stream == null || streamBytes > streamWindow / 2) {
+            return null;
+        }
+        streamRoom.signalAll();
+        Runnable callback = streamRoomCallback;
+        streamRoomCallback = null;
+        return callback;
+    }
+
+    private static void runCallback(Runnable callback) {
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    // stop accepting frames, what's already queued can still be drained
+    public void close() {
+        Runnable roomCallback;
+        lock.lock();
+        try {
+            closed = true;
+            streamEnded = true; // nobody is going to finish it now
+            streamPadding = 0;
+            notEmpty.signalAll();
+            streamRoom.signalAll();
+            roomCallback = streamRoomCallback;
+            streamRoomCallback = null;
+        } finally {
+            lock.unlock();
+        }
+        runCallback(roomCallback);
+    }
+
+    // close and throw away anything still queued
+    public void clear() {
+        lock.lock();
+        try {
+            frames.clear();
+            stream = null;
+            readyLanes.clear();
+            laneFrames = 0;
+        } finally {
+            lock.unlock();
+        }
+        close();
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return frames.size() + laneFrames + (stream != null ? stream.size() : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEnqueued() {
+        lock.lock();
+        try {
+            return enqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,499 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+
+public class SearchIndex {
+    /**
+     * Full-text search over channel messages, by the journal offsets they were
+     * stored at. Messages are only queued on the send path, one background
+     * thread does everything else: splitting them into terms, adding them to
+     * an in-memory segment (term -> list of doc numbers), and once that holds
+     * enough messages, freezing it into a compact segment where each posting
+     * list is delta and varint encoded (a few bits per entry for common words).
+     * Frozen segments are merged in the background like a binary counter, so
+     * there are only ever a logarithmic number of them, and a merge is mostly
+     * array copies: a merged posting list is the older list's bytes followed
+     * by the newer one's, only the first delta of the newer part changes.
+     * The channel is indexed as a term of its own, so a channel search is one
+     * more list in the intersection. Queries intersect the lists (rarest
+     * first) segment by segment, newest segment first, and stop once they have
+     * enough hits, so they return the most recent matches.
+     */
+
+    private static final int SEGMENT_DOCS = 64 * 1024; // messages per in-memory segment before it's frozen
+    private static final int MIN_TERM = 2;
+    private static final int MAX_TERM = 32;
+
+    private final BlockingQueue<Doc> queue;
+    private final LongSupplier oldestOffset; // what the journal still has, older docs are dropped at merges
+    private final ConcurrentHashMap<String, Integer> channelIds = new ConcurrentHashMap<>();
+    private volatile List<Frozen> frozen = Collections.emptyList(); // oldest first, replaced whole
+    private final Active active = new Active();
+    private Thread indexer;
+    private volatile boolean running;
+
+    private final LongAdder indexed;
+    private final LongAdder dropped;
+    private final LongAdder merges;
+    private final LongAdder queries;
+    private final LongAdder queryMicros;
+
+    // a message waiting to be indexed
+    private static final class Doc {
+        final long offset;
+        final String channel;
+        final String text;
+
+        Doc(long offset, String channel, String text) {
+            this.offset = offset;
+            this.channel = channel;
+            this.text = text;
+        }
+    }
+
+    // a growable list of doc numbers, in increasing order
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    // one term's docs in a frozen segment: the gaps between them as varints
+    static final class Postings {
+        final byte[] data;
+        final int count;
+        final int last; // the last doc, so the next list can be appended
+
+        Postings(byte[] data, int count, int last) {
+            this.data = data;
+            this.count = count;
+            this.last = last;
+        }
+
+        int[] decode() {
+            int[] docs = new int[count];
+            int doc = 0;
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    gap |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                doc += gap;
+                docs[i] = doc;
+            }
+            return docs;
+        }
+
+        static Postings encode(int[] docs, int count) {
+            byte[] data = new byte[count * 5];
+            int pos = 0;
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                pos = putVarint(data, pos, docs[i] - previous);
+                previous = docs[i];
+            }
+            return new Postings(Arrays.copyOf(data, pos), count, previous);
+        }
+
+        // older's docs, then newer's shifted up by shift (the number of docs in older)
+        static Postings append(Postings older, Postings newer, int shift) {
+            if (older == null || newer == null) {
+                Postings only = older != null ? older : newer;
+                if (older != null || shift == 0) {
+                    return only;
+                }
+                // the newer list on its own, its first doc moves up by shift
+                return join(new byte[0], 0, 0, newer, shift);
+            }
+            return join(older.data, older.count, older.last, newer, shift);
+        }
+
+        private static Postings join(byte[] head, int headCount, int headLast, Postings newer, int shift) {
+            // the newer list's first gap is its first doc, skip over it
+            int pos = 0;
+            int first = 0;
+            int bits = 0;
+            byte b;
+            do {
+                b = newer.data[pos++];
+                first |= (b & 0x7f) << bits;
+                bits += 7;
+            } while (b < 0);
+            byte[] data = new byte[head.length + 5 + newer.data.length - pos];
+            System.arraycopy(head, 0, data, 0, head.length);
+            int at = putVarint(data, head.length, first + shift - headLast);
+            System.arraycopy(newer.data, pos, data, at, newer.data.length - pos);
+            at += newer.data.length - pos;
+            return new Postings(Arrays.copyOf(data, at), headCount + newer.count, newer.last + shift);
+        }
+
+        private static int putVarint(byte[] data, int pos, int value) {
+            while ((value & ~0x7f) != 0) {
+                data[pos++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[pos++] = (byte) value;
+            return pos;
+        }
+    }
+
+    // a segment that doesn't change any more
+    private static final class Frozen {
+        final Map<String, Postings> terms;
+        final long[] offsets; // by doc number
+        final int[] channels;
+        final long bytes;
+
+        Frozen(Map<String, Postings> terms, long[] offsets, int[] channels) {
+            this.terms = terms;
+            this.offsets = offsets;
+            this.channels = channels;
+            long total = offsets.length * 12L;
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                total += entry.getValue().data.length + entry.getKey().length() * 2 + 48;
+            }
+            this.bytes = total;
+        }
+    }
+
+    // the segment being added to, only the indexer thread writes it, queries lock it to read
+    private static final class Active {
+        final Map<String, IntList> terms = new HashMap<>();
+        long[] offsets = new long[1024];
+        int[] channels = new int[1024];
+        int size;
+    }
+
+    public SearchIndex(int queueSize, LongSupplier oldestOffset, ServerStats stats) {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.oldestOffset = oldestOffset;
+        this.indexed = stats.counter("search.indexed");
+        this.dropped = stats.counter("search.dropped");
+        this.merges = stats.counter("search.merges");
+        this.queries = stats.counter("search.queries");
+        this.queryMicros = stats.counter("search.queryMicros");
+        stats.gauge("search.segments", () -> frozen.size() + 1);
+        stats.gauge("search.bytes", () -> {
+            long total = 0;
+            for (Frozen segment : frozen) {
+                total += segment.bytes;
+            }
+            return total;
+        });
+    }
+
+    // start the indexer, after it has gone through what's already in the journal (if any)
+    public void start(Journal journal) {
+        running = true;
+        indexer = new Thread(() -> {
+            if (journal != null) {
+                reindex(journal);
+            }
+            indexLoop();
+        }, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (indexer != null) {
+            indexer.interrupt();
+        }
+    }
+
+    // queue a channel message for indexing. never waits: if the indexer is that far
+    // behind the message is left out of the index (and counted)
+    public void add(long offset, String channel, String text) {
+        if (!queue.offer(new Doc(offset, channel, text))) {
+            dropped.increment();
+        }
+    }
+
+    private void indexLoop() {
+        List<Doc> batch = new ArrayList<>();
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, 1024);
+            for (Doc doc : batch) {
+                index(doc.offset, doc.channel, doc.text);
+            }
+            batch.clear();
+        }
+    }
+
+    // the journal outlives the server, the index doesn't: rebuild it from the CHAN records
+    private void reindex(Journal journal) {
+        long offset = journal.firstOffset();
+        long end = journal.nextOffset();
+        long start = System.nanoTime();
+        while (offset < end && running) {
+            List<Journal.Entry> entries = journal.read(offset, 1024);
+            if (entries.isEmpty()) {
+                break;
+            }
+            for (Journal.Entry entry : entries) {
+                if (entry.offset >= end) {
+                    break; // appended since we started, add() has those queued already
+                }
+                String line = entry.text();
+                // CHAN <channel> <nick> <text>
+                if (line.startsWith("CHAN ")) {
+                    int channelEnd = line.indexOf(' ', 5);
+                    int nickEnd = channelEnd < 0 ? -1 : line.indexOf(' ', channelEnd + 1);
+                    if (nickEnd > 0) {
+                        index(entry.offset, line.substring(5, channelEnd), line.substring(nickEnd + 1));
+                    }
+                }
+                offset = entry.offset + 1;
+            }
+        }
+        ServerLog.info("[SEARCH] Indexed the journal up to offset {} in {} ms", offset,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // add one message to the active segment (indexer thread only)
+    private void index(long offset, String channel, String text) {
+        int channelId = channelIds.computeIfAbsent(channel, c -> channelIds.size());
+        List<String> words = terms(text);
+        synchronized (active) {
+            int doc = active.size;
+            if (doc == active.offsets.length) {
+                active.offsets = Arrays.copyOf(active.offsets, doc * 2);
+                active.channels = Arrays.copyOf(active.channels, doc * 2);
+            }
+            active.offsets[doc] = offset;
+            active.channels[doc] = channelId;
+            active.size++;
+            posting(channelTerm(channel), doc);
+            for (String word : words) {
+                posting(word, doc);
+            }
+        }
+        indexed.increment();
+        if (active.size >= SEGMENT_DOCS) {
+            freeze();
+        }
+    }
+
+    private void posting(String term, int doc) {
+        IntList list = active.terms.computeIfAbsent(term, t -> new IntList());
+        // a word twice in the same message is one posting
+        if (list.size == 0 || list.values[list.size - 1] != doc) {
+            list.add(doc);
+        }
+    }
+
+    // turn the active segment into a frozen one, then merge. the encoding only reads the
+    // active segment, and we're its only writer, so queries can carry on meanwhile
+    private void freeze() {
+        Map<String, Postings> terms = new HashMap<>(active.terms.size() * 2);
+        for (Map.Entry<String, IntList> entry : active.terms.entrySet()) {
+            IntList list = entry.getValue();
+            terms.put(entry.getKey(), Postings.encode(list.values, list.size));
+        }
+        Frozen segment = new Frozen(terms, Arrays.copyOf(active.offsets, active.size),
+                Arrays.copyOf(active.channels, active.size));
+        synchronized (active) {
+            // published before the active segment is emptied, so a query never misses them
+            List<Frozen> updated = new ArrayList<>(frozen);
+            updated.add(segment);
+            frozen = updated;
+            active.terms.clear();
+            active.size = 0;
+        }
+        merge();
+    }
+
+    // merge the newest two segments while the newer is at least half the size of the
+    // older, and forget segments the journal no longer has the messages for
+    private void merge() {
+        List<Frozen> segments = new ArrayList<>(frozen);
+        long oldest = oldestOffset.getAsLong();
+        while (!segments.isEmpty()) {
+            Frozen first = segments.get(0);
+            if (first.offsets[first.offsets.length - 1] >= oldest) {
+                break;
+            }
+            segments.remove(0);
+        }
+        while (segments.size() >= 2) {
+            Frozen newer = segments.get(segments.size() - 1);
+            Frozen older = segments.get(segments.size() - 2);
+            if (newer.offsets.length * 2 < older.offsets.length) {
+                break;
+            }
+            segments.remove(segments.size() - 1);
+            segments.set(segments.size() - 1, merge(older, newer));
+            merges.increment();
+        }
+        frozen = segments;
+    }
+
+    private static Frozen merge(Frozen older, Frozen newer) {
+        int shift = older.offsets.length;
+        Map<String, Postings> terms = new HashMap<>((older.terms.size() + newer.terms.size()) * 2);
+        for (Map.Entry<String, Postings> entry : older.terms.entrySet()) {
+            terms.put(entry.getKey(), Postings.append(entry.getValue(), newer.terms.get(entry.getKey()), shift));
+        }
+        for (Map.Entry<String, Postings> entry : newer.terms.entrySet()) {
+            if (!older.terms.containsKey(entry.getKey())) {
+                terms.put(entry.getKey(), Postings.append(null, entry.getValue(), shift));
+            }
+        }
+        long[] offsets = Arrays.copyOf(older.offsets, shift + newer.offsets.length);
+        System.arraycopy(newer.offsets, 0, offsets, shift, newer.offsets.length);
+        int[] channels = Arrays.copyOf(older.channels, shift + newer.channels.length);
+        System.arraycopy(newer.channels, 0, channels, shift, newer.channels.length);
+        return new Frozen(terms, offsets, channels);
+    }
+
+    // the journal offsets of up to max messages that have every term of query, newest
+    // first. channel limits it to one channel, or channels to any of several (both null = all)
+    public long[] search(String channel, Collection<String> channels, String query, int max) {
+        long start = System.nanoTime();
+        List<String> words = terms(query);
+        if (words.isEmpty()) {
+            return new long[0];
+        }
+        if (channel != null) {
+            words.add(channelTerm(channel));
+        }
+        int[] allowed = null;
+        if (channels != null) {
+            allowed = new int[channels.size()];
+            int n = 0;
+            for (String name : channels) {
+                Integer id = channelIds.get(name);
+                if (id != null) {
+                    allowed[n++] = id;
+                }
+            }
+            allowed = Arrays.copyOf(allowed, n);
+            Arrays.sort(allowed);
+        }
+
+        long[] hits = new long[max];
+        int found;
+        synchronized (active) {
+            found = searchActive(words, allowed, hits);
+        }
+        List<Frozen> segments = frozen;
+        for (int i = segments.size() - 1; i >= 0 && found < max; i--) {
+            found = searchFrozen(segments.get(i), words, allowed, hits, found);
+        }
+        queries.increment();
+        queryMicros.add((System.nanoTime() - start) / 1000);
+        return Arrays.copyOf(hits, found);
+    }
+
+    private int searchActive(List<String> words, int[] allowed, long[] hits) {
+        int[] docs = null;
+        int size = 0;
+        for (String word : words) {
+            IntList list = active.terms.get(word);
+            if (list == null) {
+                return 0;
+            }
+            if (docs == null) {
+                docs = Arrays.copyOf(list.values, list.size);
+                size = list.size;
+            } else {
+                size = intersect(docs, size, list.values, list.size);
+            }
+        }
+        return collect(docs, size, active.offsets, active.channels, allowed, hits, 0);
+    }
+
+    private static int searchFrozen(Frozen segment, List<String> words, int[] allowed, long[] hits, int found) {
+        Postings[] lists = new Postings[words.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = segment.terms.get(words.get(i));
+            if (lists[i] == null) {
+                return found;
+            }
+        }
+        // rarest first, the candidates only ever shrink
+        Arrays.sort(lists, Comparator.comparingInt(p -> p.count));
+        int[] docs = lists[0].decode();
+        int size = docs.length;
+        for (int i = 1; i < lists.length && size > 0; i++) {
+            int[] other = lists[i].decode();
+            size = intersect(docs, size, other, other.length);
+        }
+        return collect(docs, size, segment.offsets, segment.channels, allowed, hits, found);
+    }
+
+    // keep the docs in a that are also in b, both sorted. returns how many are left in a
+    private static int intersect(int[] a, int aSize, int[] b, int bSize) {
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < aSize && j < bSize; i++) {
+            while (j < bSize && b[j] < a[i]) {
+                j++;
+            }
+            if (j < bSize && b[j] == a[i]) {
+                a[n++] = a[i];
+            }
+        }
+        return n;
+    }
+
+    // newest matching docs into hits, up to its length
+    private static int collect(int[] docs, int size, long[] offsets, int[] channels, int[] allowed, long[] hits,
+            int found) {
+        for (int i = size - 1; i >= 0 && found < hits.length; i--) {
+            if (allowed == null || Arrays.binarySearch(allowed, channels[docs[i]]) >= 0) {
+                hits[found++] = offsets[docs[i]];
+            }
+        }
+        return found;
+    }
+
+    // channels can't clash with words, the splitter never keeps a #. the name is kept as
+    // it is: #Secret and #secret are two channels, only words fold case
+    private static String channelTerm(String channel) {
+        return channel;
+    }
+
+    // lower-cased runs of letters and digits, too short or too long ones left out, no repeats
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int n = i - start;
+            if (n >= MIN_TERM && n <= MAX_TERM) {
+                String term = text.substring(start, i).toLowerCase();
+                if (seen.add(term)) {
+                    terms.add(term);
+                }
+            }
+        }
+        return terms;
+    }
+}
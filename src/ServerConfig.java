@@ -0,0 +1,722 @@
+public class ServerConfig {
+    /**
+     * Tunable settings for the chat server.
+     * Everything is read from -Dchat.* system properties so the old
+     * "ChatServer [port] [password]" command line keeps working as it is.
+     */
+
+    // how the server runs its client connections
+    public enum Mode {
+        THREAD, // one blocking thread per client (the original design)
+        VIRTUAL, // one blocking virtual thread per client (needs Java 21+)
+        NIO // a few selector threads shared by every client
+    }
+
+    private Mode mode = Mode.THREAD;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int channelShards = 0; // threads that own the channels, 0 = handlers change them directly
+    private int outboundCapacity = 1024;
+    private OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.DISCONNECT;
+    private long slowConsumerTimeoutMillis = 5000;
+    private int flushBytes = 16 * 1024;
+    private long flushDelayMicros = 1000;
+    private long fileWindowBytes = 1024 * 1024;
+    private ServerLog.Level logLevel = ServerLog.Level.INFO;
+    private String logFile = null; // null means stdout
+    private long logMaxBytes = 10L * 1024 * 1024;
+    private int compressionLevel = 6; // DEFLATE level for clients that ask for it, 0 turns it off
+    private int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    private String tlsProtocols = "TLSv1.3,TLSv1.2";
+    // AES-128 and ChaCha20 first, they're the cheapest of the safe suites. no DHE, its key exchange is slow
+    private String tlsCiphers = "TLS_AES_128_GCM_SHA256,TLS_CHACHA20_POLY1305_SHA256,TLS_AES_256_GCM_SHA384,"
+            + "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,"
+            + "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256,TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256,"
+            + "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384";
+    private int tlsSessionCacheSize = 20000;
+    private int tlsSessionTimeoutSeconds = 3600;
+    private int handshakeTimeoutMillis = 10000;
+    private int handshakeThreads = Runtime.getRuntime().availableProcessors(); // nio mode, 0 = on the event loops
+    private int idleTimeoutSeconds = 0; // a client this quiet gets a PING, 0 = never (120 is a good start)
+    private int pingTimeoutSeconds = 30; // and is dropped if it still says nothing for this long
+    private int timerTickMillis = 100; // how precise every server timeout is
+    // channel history: kept per channel and in total, and how much of it a JOIN replays
+    private int historySize = 100; // messages per channel, 0 = keep no history
+    private long historyChannelBytes = 64 * 1024;
+    private long historyTotalBytes = 32L * 1024 * 1024;
+    private int historyOnJoin = 20;
+    // the on-disk journal of CHAN and MSG traffic, a null or empty directory (the default) turns it off
+    private String journalDir = "";
+    private int journalSegmentBytes = 64 * 1024 * 1024;
+    private Journal.Fsync journalFsync = Journal.Fsync.INTERVAL;
+    private int journalFsyncMillis = 1000;
+    private int journalRetentionHours = 24 * 7;
+    private long journalMaxBytes = 1024L * 1024 * 1024; // 0 = only the retention time counts
+    // MSGs to people who aren't connected wait here, a null or empty directory (the default) turns it off
+    private String mailboxDir = "";
+    private int mailboxMessages = 100; // per nickname
+    private long mailboxBytes = 64 * 1024;
+    private int mailboxMaxUsers = 10000; // nicknames with mail waiting
+    private int mailboxRetentionHours = 24 * 7;
+    // full-text search over the journal: messages waiting to be indexed, 0 = no search
+    private int searchQueue = 64 * 1024;
+    private int searchMaxResults = 20;
+    // several servers as one: the port other nodes connect to (0 = not in a cluster), and who to connect to
+    private int clusterPort = 0;
+    private String clusterPeers = ""; // host:port of every other node, comma separated
+    private String nodeName = null; // null = "node-" plus the client port
+    private String clusterSecret = ""; // every node must be given the same one
+    private int clusterQueue = 64 * 1024; // frames waiting to go to one node
+    // admission and rate limits, 0 means no limit. the rates are off unless asked for, the
+    // numbers in the comments are a reasonable start for a public server
+    private int acceptBacklog = 256;
+    private int maxConnections = 10000;
+    private int maxConnectionsPerAddress = 100;
+    private int commandRate = 0; // per connection, commands per second (20)
+    private int commandBurst = 50;
+    private int byteRate = 0; // per connection, command bytes per second, file data isn't counted (16K)
+    private int byteBurst = 64 * 1024;
+    private int addressCommandRate = 0; // everyone from one address together (100)
+    private int addressCommandBurst = 250;
+    private int addressByteRate = 0; // and their command bytes (64K)
+    private int addressByteBurst = 256 * 1024;
+
+    // the default settings, used when nothing is given on the command line
+    public static ServerConfig defaults() {
+        return new ServerConfig();
+    }
+
+    // build the config from -Dchat.* properties, falling back to the defaults
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig c = new ServerConfig();
+        c.mode = enumProperty("chat.mode", Mode.class, c.mode);
+        c.eventLoops = intProperty("chat.eventLoops", c.eventLoops);
+        c.channelShards = intProperty("chat.channelShards", c.channelShards);
+        c.outboundCapacity = intProperty("chat.outboundCapacity", c.outboundCapacity);
+        c.slowConsumerPolicy = enumProperty("chat.slowConsumerPolicy", OutboundQueue.Policy.class,
+                c.slowConsumerPolicy);
+        c.slowConsumerTimeoutMillis = intProperty("chat.slowConsumerTimeoutMillis",
+                (int) c.slowConsumerTimeoutMillis);
+        c.flushBytes = intProperty("chat.flushBytes", c.flushBytes);
+        c.flushDelayMicros = intProperty("chat.flushDelayMicros", (int) c.flushDelayMicros);
+        c.fileWindowBytes = intProperty("chat.fileWindowBytes", (int) c.fileWindowBytes);
+        c.logLevel = enumProperty("chat.logLevel", ServerLog.Level.class, c.logLevel);
+        c.logFile = System.getProperty("chat.logFile", c.logFile);
+        c.logMaxBytes = intProperty("chat.logMaxBytes", (int) c.logMaxBytes);
+        c.setCompressionLevel(intProperty("chat.compressionLevel", c.compressionLevel));
+        c.compressionThreshold = intProperty("chat.compressionThreshold", c.compressionThreshold);
+        c.tlsProtocols = System.getProperty("chat.tlsProtocols", c.tlsProtocols);
+        c.tlsCiphers = System.getProperty("chat.tlsCiphers", c.tlsCiphers);
+        c.tlsSessionCacheSize = intProperty("chat.tlsSessionCacheSize", c.tlsSessionCacheSize);
+        c.tlsSessionTimeoutSeconds = intProperty("chat.tlsSessionTimeoutSeconds", c.tlsSessionTimeoutSeconds);
+        c.handshakeTimeoutMillis = intProperty("chat.handshakeTimeoutMillis", c.handshakeTimeoutMillis);
+        c.handshakeThreads = intProperty("chat.handshakeThreads", c.handshakeThreads);
+        c.idleTimeoutSeconds = intProperty("chat.idleTimeoutSeconds", c.idleTimeoutSeconds);
+        c.setPingTimeoutSeconds(intProperty("chat.pingTimeoutSeconds", c.pingTimeoutSeconds));
+        c.setTimerTickMillis(intProperty("chat.timerTickMillis", c.timerTickMillis));
+        c.historySize = intProperty("chat.historySize", c.historySize);
+        c.historyChannelBytes = intProperty("chat.historyChannelBytes", (int) c.historyChannelBytes);
+        c.historyTotalBytes = intProperty("chat.historyTotalBytes", (int) c.historyTotalBytes);
+        c.historyOnJoin = intProperty("chat.historyOnJoin", c.historyOnJoin);
+        c.journalDir = System.getProperty("chat.journalDir", c.journalDir);
+        c.setJournalSegmentBytes(intProperty("chat.journalSegmentBytes", c.journalSegmentBytes));
+        c.journalFsync = enumProperty("chat.journalFsync", Journal.Fsync.class, c.journalFsync);
+        c.journalFsyncMillis = intProperty("chat.journalFsyncMillis", c.journalFsyncMillis);
+        c.journalRetentionHours = intProperty("chat.journalRetentionHours", c.journalRetentionHours);
+        c.journalMaxBytes = longProperty("chat.journalMaxBytes", c.journalMaxBytes);
+        c.mailboxDir = System.getProperty("chat.mailboxDir", c.mailboxDir);
+        c.mailboxMessages = intProperty("chat.mailboxMessages", c.mailboxMessages);
+        c.mailboxBytes = intProperty("chat.mailboxBytes", (int) c.mailboxBytes);
+        c.mailboxMaxUsers = intProperty("chat.mailboxMaxUsers", c.mailboxMaxUsers);
+        c.mailboxRetentionHours = intProperty("chat.mailboxRetentionHours", c.mailboxRetentionHours);
+        c.searchQueue = intProperty("chat.searchQueue", c.searchQueue);
+        c.setSearchMaxResults(intProperty("chat.searchMaxResults", c.searchMaxResults));
+        c.clusterPort = intProperty("chat.clusterPort", c.clusterPort);
+        c.clusterPeers = System.getProperty("chat.clusterPeers", c.clusterPeers);
+        c.nodeName = System.getProperty("chat.nodeName", c.nodeName);
+        c.clusterSecret = System.getProperty("chat.clusterSecret", c.clusterSecret);
+        c.clusterQueue = intProperty("chat.clusterQueue", c.clusterQueue);
+        c.acceptBacklog = intProperty("chat.acceptBacklog", c.acceptBacklog);
+        c.maxConnections = intProperty("chat.maxConnections", c.maxConnections);
+        c.maxConnectionsPerAddress = intProperty("chat.maxConnectionsPerAddress", c.maxConnectionsPerAddress);
+        c.commandRate = intProperty("chat.commandRate", c.commandRate);
+        c.commandBurst = intProperty("chat.commandBurst", c.commandBurst);
+        c.byteRate = intProperty("chat.byteRate", c.byteRate);
+        c.byteBurst = intProperty("chat.byteBurst", c.byteBurst);
+        c.addressCommandRate = intProperty("chat.addressCommandRate", c.addressCommandRate);
+        c.addressCommandBurst = intProperty("chat.addressCommandBurst", c.addressCommandBurst);
+        c.addressByteRate = intProperty("chat.addressByteRate", c.addressByteRate);
+        c.addressByteBurst = intProperty("chat.addressByteBurst", c.addressByteBurst);
+        return c;
+    }
+
+    // helper to read a numeric property without blowing up on typos
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            ServerLog.warn("[SERVER] Invalid value for {}: {}", name, value);
+            return defaultValue;
+        }
+    }
+
+    // same for sizes that don't fit in an int
+    static long longProperty(String name, long defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            ServerLog.warn("[SERVER] Invalid value for {}: {}", name, value);
+            return defaultValue;
+        }
+    }
+
+    // helper to read an enum property, case doesn't matter
+    static <E extends Enum<E>> E enumProperty(String name, Class<E> type, E defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            ServerLog.warn("[SERVER] Unknown " + name + " '{}', using {}", value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public ServerConfig setMode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public ServerConfig setEventLoops(int eventLoops) {
+        this.eventLoops = Math.max(1, eventLoops);
+        return this;
+    }
+
+    public int getChannelShards() {
+        return channelShards;
+    }
+
+    public ServerConfig setChannelShards(int channelShards) {
+        this.channelShards = channelShards;
+        return this;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public ServerConfig setOutboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = outboundCapacity;
+        return this;
+    }
+
+    public OutboundQueue.Policy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public ServerConfig setSlowConsumerPolicy(OutboundQueue.Policy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        return this;
+    }
+
+    public long getSlowConsumerTimeoutMillis() {
+        return slowConsumerTimeoutMillis;
+    }
+
+    public ServerConfig setSlowConsumerTimeoutMillis(long slowConsumerTimeoutMillis) {
+        this.slowConsumerTimeoutMillis = slowConsumerTimeoutMillis;
+        return this;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    public ServerConfig setFlushBytes(int flushBytes) {
+        this.flushBytes = flushBytes;
+        return this;
+    }
+
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    public ServerConfig setFlushDelayMicros(long flushDelayMicros) {
+        this.flushDelayMicros = flushDelayMicros;
+        return this;
+    }
+
+    public long getFileWindowBytes() {
+        return fileWindowBytes;
+    }
+
+    public ServerConfig setFileWindowBytes(long fileWindowBytes) {
+        this.fileWindowBytes = fileWindowBytes;
+        return this;
+    }
+
+    public ServerLog.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public ServerConfig setLogLevel(ServerLog.Level logLevel) {
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public ServerConfig setLogFile(String logFile) {
+        this.logFile = logFile;
+        return this;
+    }
+
+    public long getLogMaxBytes() {
+        return logMaxBytes;
+    }
+
+    public ServerConfig setLogMaxBytes(long logMaxBytes) {
+        this.logMaxBytes = logMaxBytes;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public ServerConfig setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Math.max(0, Math.min(9, compressionLevel));
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public ServerConfig setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public String getTlsProtocols() {
+        return tlsProtocols;
+    }
+
+    public ServerConfig setTlsProtocols(String tlsProtocols) {
+        this.tlsProtocols = tlsProtocols;
+        return this;
+    }
+
+    public String getTlsCiphers() {
+        return tlsCiphers;
+    }
+
+    public ServerConfig setTlsCiphers(String tlsCiphers) {
+        this.tlsCiphers = tlsCiphers;
+        return this;
+    }
+
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    public ServerConfig setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+        return this;
+    }
+
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    public ServerConfig setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+        this.tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+        return this;
+    }
+
+    public int getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public ServerConfig setHandshakeTimeoutMillis(int handshakeTimeoutMillis) {
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        return this;
+    }
+
+    public int getHandshakeThreads() {
+        return handshakeThreads;
+    }
+
+    public ServerConfig setHandshakeThreads(int handshakeThreads) {
+        this.handshakeThreads = Math.max(0, handshakeThreads);
+        return this;
+    }
+
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public ServerConfig setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        return this;
+    }
+
+    public int getPingTimeoutSeconds() {
+        return pingTimeoutSeconds;
+    }
+
+    public ServerConfig setPingTimeoutSeconds(int pingTimeoutSeconds) {
+        this.pingTimeoutSeconds = Math.max(1, pingTimeoutSeconds);
+        return this;
+    }
+
+    public int getTimerTickMillis() {
+        return timerTickMillis;
+    }
+
+    public ServerConfig setTimerTickMillis(int timerTickMillis) {
+        this.timerTickMillis = Math.max(1, timerTickMillis);
+        return this;
+    }
+
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    public ServerConfig setHistorySize(int historySize) {
+        this.historySize = historySize;
+        return this;
+    }
+
+    public long getHistoryChannelBytes() {
+        return historyChannelBytes;
+    }
+
+    public ServerConfig setHistoryChannelBytes(long historyChannelBytes) {
+        this.historyChannelBytes = historyChannelBytes;
+        return this;
+    }
+
+    public long getHistoryTotalBytes() {
+        return historyTotalBytes;
+    }
+
+    public ServerConfig setHistoryTotalBytes(long historyTotalBytes) {
+        this.historyTotalBytes = historyTotalBytes;
+        return this;
+    }
+
+    public int getHistoryOnJoin() {
+        return historyOnJoin;
+    }
+
+    public ServerConfig setHistoryOnJoin(int historyOnJoin) {
+        this.historyOnJoin = historyOnJoin;
+        return this;
+    }
+
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public ServerConfig setJournalDir(String journalDir) {
+        this.journalDir = journalDir;
+        return this;
+    }
+
+    public boolean isJournalEnabled() {
+        return journalDir != null && !journalDir.isEmpty();
+    }
+
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    public ServerConfig setJournalSegmentBytes(int journalSegmentBytes) {
+        // a segment has to hold at least one record of the longest line
+        this.journalSegmentBytes = Math.max(1024 * 1024, journalSegmentBytes);
+        return this;
+    }
+
+    public Journal.Fsync getJournalFsync() {
+        return journalFsync;
+    }
+
+    public ServerConfig setJournalFsync(Journal.Fsync journalFsync) {
+        this.journalFsync = journalFsync;
+        return this;
+    }
+
+    public int getJournalFsyncMillis() {
+        return journalFsyncMillis;
+    }
+
+    public ServerConfig setJournalFsyncMillis(int journalFsyncMillis) {
+        this.journalFsyncMillis = journalFsyncMillis;
+        return this;
+    }
+
+    public int getJournalRetentionHours() {
+        return journalRetentionHours;
+    }
+
+    public ServerConfig setJournalRetentionHours(int journalRetentionHours) {
+        this.journalRetentionHours = journalRetentionHours;
+        return this;
+    }
+
+    public long getJournalMaxBytes() {
+        return journalMaxBytes;
+    }
+
+    public ServerConfig setJournalMaxBytes(long journalMaxBytes) {
+        this.journalMaxBytes = journalMaxBytes;
+        return this;
+    }
+
+    public String getMailboxDir() {
+        return mailboxDir;
+    }
+
+    public ServerConfig setMailboxDir(String mailboxDir) {
+        this.mailboxDir = mailboxDir;
+        return this;
+    }
+
+    public boolean isMailboxEnabled() {
+        return mailboxDir != null && !mailboxDir.isEmpty();
+    }
+
+    public int getMailboxMessages() {
+        return mailboxMessages;
+    }
+
+    public ServerConfig setMailboxMessages(int mailboxMessages) {
+        this.mailboxMessages = mailboxMessages;
+        return this;
+    }
+
+    public long getMailboxBytes() {
+        return mailboxBytes;
+    }
+
+    public ServerConfig setMailboxBytes(long mailboxBytes) {
+        this.mailboxBytes = mailboxBytes;
+        return this;
+    }
+
+    public int getMailboxMaxUsers() {
+        return mailboxMaxUsers;
+    }
+
+    public ServerConfig setMailboxMaxUsers(int mailboxMaxUsers) {
+        this.mailboxMaxUsers = mailboxMaxUsers;
+        return this;
+    }
+
+    public int getMailboxRetentionHours() {
+        return mailboxRetentionHours;
+    }
+
+    public ServerConfig setMailboxRetentionHours(int mailboxRetentionHours) {
+        this.mailboxRetentionHours = mailboxRetentionHours;
+        return this;
+    }
+
+    public int getSearchQueue() {
+        return searchQueue;
+    }
+
+    public ServerConfig setSearchQueue(int searchQueue) {
+        this.searchQueue = searchQueue;
+        return this;
+    }
+
+    public int getSearchMaxResults() {
+        return searchMaxResults;
+    }
+
+    public ServerConfig setSearchMaxResults(int searchMaxResults) {
+        this.searchMaxResults = Math.max(1, searchMaxResults);
+        return this;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public ServerConfig setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+        return this;
+    }
+
+    public boolean isClusterEnabled() {
+        return clusterPort > 0;
+    }
+
+    public String getClusterPeers() {
+        return clusterPeers;
+    }
+
+    public ServerConfig setClusterPeers(String clusterPeers) {
+        this.clusterPeers = clusterPeers;
+        return this;
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    public ServerConfig setNodeName(String nodeName) {
+        this.nodeName = nodeName;
+        return this;
+    }
+
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    public ServerConfig setClusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret;
+        return this;
+    }
+
+    public int getClusterQueue() {
+        return clusterQueue;
+    }
+
+    public ServerConfig setClusterQueue(int clusterQueue) {
+        this.clusterQueue = clusterQueue;
+        return this;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public ServerConfig setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public ServerConfig setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    public ServerConfig setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        return this;
+    }
+
+    public int getCommandRate() {
+        return commandRate;
+    }
+
+    public ServerConfig setCommandRate(int commandRate) {
+        this.commandRate = commandRate;
+        return this;
+    }
+
+    public int getCommandBurst() {
+        return commandBurst;
+    }
+
+    public ServerConfig setCommandBurst(int commandBurst) {
+        this.commandBurst = commandBurst;
+        return this;
+    }
+
+    public int getByteRate() {
+        return byteRate;
+    }
+
+    public ServerConfig setByteRate(int byteRate) {
+        this.byteRate = byteRate;
+        return this;
+    }
+
+    public int getByteBurst() {
+        return byteBurst;
+    }
+
+    public ServerConfig setByteBurst(int byteBurst) {
+        this.byteBurst = byteBurst;
+        return this;
+    }
+
+    public int getAddressCommandRate() {
+        return addressCommandRate;
+    }
+
+    public ServerConfig setAddressCommandRate(int addressCommandRate) {
+        this.addressCommandRate = addressCommandRate;
+        return this;
+    }
+
+    public int getAddressCommandBurst() {
+        return addressCommandBurst;
+    }
+
+    public ServerConfig setAddressCommandBurst(int addressCommandBurst) {
+        this.addressCommandBurst = addressCommandBurst;
+        return this;
+    }
+
+    public int getAddressByteRate() {
+        return addressByteRate;
+    }
+
+    public ServerConfig setAddressByteRate(int addressByteRate) {
+        this.addressByteRate = addressByteRate;
+        return this;
+    }
+
+    public int getAddressByteBurst() {
+        return addressByteBurst;
+    }
+
+    public ServerConfig setAddressByteBurst(int addressByteBurst) {
+        this.addressByteBurst = addressByteBurst;
+        return this;
+    }
+
+    // switch off every connection cap and rate limit, for benchmarks and tests that
+    // open lots of connections from localhost and push as hard as they can
+    public ServerConfig unlimited() {
+        maxConnections = 0;
+        maxConnectionsPerAddress = 0;
+        commandRate = 0;
+        byteRate = 0;
+        addressCommandRate = 0;
+        addressByteRate = 0;
+        return this;
+    }
+}
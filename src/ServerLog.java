@@ -0,0 +1,362 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+public final class ServerLog {
+    /**
+     * Asynchronous server log.
+     * Callers only drop an entry into a fixed ring of slots (one CAS, no lock)
+     * and a background thread turns batches of entries into text and writes them
+     * out with one flush each, to stdout or to a rolling file. Messages below
+     * the current level are thrown away before anything gets formatted.
+     */
+
+    // how much detail we want, lowest first
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int CAPACITY = 8192; // slots in the ring, a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final int LOG_FILES = 3; // server.log, server.log.1, server.log.2
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+    private static final long FULL_WAIT_NANOS = 5_000_000L; // how long a caller waits for room before dropping
+
+    // one reusable slot in the ring, only filled in by whoever claimed it
+    private static final class Entry {
+        long time;
+        Level level;
+        String template;
+        String arg1;
+        String arg2;
+    }
+
+    private static final Entry[] entries = new Entry[CAPACITY];
+    // per slot: equal to the claim position when free, position + 1 once it's filled in
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static long head; // only the writer thread touches this
+    private static volatile long written; // entries before this position are out of the ring and flushed
+
+    private static volatile Level level = Level.INFO;
+    private static volatile boolean writerWaiting;
+    private static volatile Sink pendingSink; // handed to the writer by configure()
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        writer = new Thread(ServerLog::writeLoop, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private ServerLog() {
+    }
+
+    // set the level and where the log goes, a null file means stdout
+    public static void configure(Level newLevel, String file, long maxBytes) {
+        level = newLevel;
+        pendingSink = file == null || file.isEmpty() ? new Sink(null, 0) : new Sink(new File(file), maxBytes);
+        LockSupport.unpark(writer);
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level at) {
+        return at.compareTo(level) >= 0;
+    }
+
+    // entries thrown away because the ring was full
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    // each "{}" in a template is replaced by the next argument. arguments are only
+    // turned into strings if the level is enabled, so pass objects, not concatenations
+    public static void debug(String template, Object arg1, Object arg2) {
+        log(Level.DEBUG, template, arg1, arg2);
+    }
+
+    public static void debug(String template, Object arg1) {
+        log(Level.DEBUG, template, arg1, null);
+    }
+
+    public static void info(String template, Object arg1, Object arg2) {
+        log(Level.INFO, template, arg1, arg2);
+    }
+
+    public static void info(String template, Object arg1) {
+        log(Level.INFO, template, arg1, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null, null);
+    }
+
+    public static void warn(String template, Object arg1, Object arg2) {
+        log(Level.WARN, template, arg1, arg2);
+    }
+
+    public static void warn(String template, Object arg1) {
+        log(Level.WARN, template, arg1, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null, null);
+    }
+
+    public static void error(String template, Object arg1, Object arg2) {
+        log(Level.ERROR, template, arg1, arg2);
+    }
+
+    public static void error(String template, Object arg1) {
+        log(Level.ERROR, template, arg1, null);
+    }
+
+    public static void log(Level at, String template, Object arg1, Object arg2) {
+        if (!isEnabled(at)) {
+            return;
+        }
+        // turn the arguments into strings now, the objects may change before the writer gets to them
+        String a1 = arg1 != null ? String.valueOf(arg1) : null;
+        String a2 = arg2 != null ? String.valueOf(arg2) : null;
+
+        // claim a slot: it's ours if its sequence says it's free for this position
+        long pos = tail.get();
+        long giveUpAt = 0;
+        int index;
+        while (true) {
+            index = (int) pos & MASK;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the writer is a whole ring behind: give it a moment to catch up, but
+                // never hold the caller up for long over a log line
+                long now = System.nanoTime();
+                if (giveUpAt == 0) {
+                    giveUpAt = now + FULL_WAIT_NANOS;
+                } else if (now - giveUpAt >= 0) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                Thread.yield();
+                pos = tail.get();
+            } else {
+                pos = tail.get(); // someone else took it, try the next one
+            }
+        }
+
+        Entry entry = entries[index];
+        entry.time = System.currentTimeMillis();
+        entry.level = at;
+        entry.template = template;
+        entry.arg1 = a1;
+        entry.arg2 = a2;
+        sequences.set(index, pos + 1); // publish
+
+        if (writerWaiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // wait (a little) for everything logged so far to be written out
+    public static void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        LockSupport.unpark(writer);
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000L);
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // the background thread: drain whatever is there, write it in one go, sleep when idle
+    private static void writeLoop() {
+        Sink sink = new Sink(null, 0);
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        DateFormatter dates = new DateFormatter();
+        Entry copy = new Entry();
+        while (true) {
+            Sink next = pendingSink;
+            if (next != null) {
+                pendingSink = null;
+                sink.close();
+                sink = next;
+            }
+
+            int count = 0;
+            while (count < CAPACITY && take(copy)) {
+                format(batch, copy, dates);
+                count++;
+                // don't let one batch grow without limit while callers keep logging
+                if (batch.length() >= 60 * 1024) {
+                    sink.write(batch);
+                    batch.setLength(0);
+                }
+            }
+            if (batch.length() > 0) {
+                sink.write(batch);
+                batch.setLength(0);
+            }
+            if (count > 0) {
+                sink.flush();
+                written = head;
+                continue;
+            }
+
+            // nothing to do: say we're waiting, look once more, then sleep until a caller wakes us
+            writerWaiting = true;
+            if (!hasEntry() && pendingSink == null) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            writerWaiting = false;
+        }
+    }
+
+    private static boolean hasEntry() {
+        return sequences.get((int) head & MASK) == head + 1;
+    }
+
+    // copy the next entry out of the ring and free its slot, false if there isn't one
+    private static boolean take(Entry copy) {
+        int index = (int) head & MASK;
+        if (sequences.get(index) != head + 1) {
+            return false;
+        }
+        Entry entry = entries[index];
+        copy.time = entry.time;
+        copy.level = entry.level;
+        copy.template = entry.template;
+        copy.arg1 = entry.arg1;
+        copy.arg2 = entry.arg2;
+        entry.template = null;
+        entry.arg1 = null;
+        entry.arg2 = null;
+        sequences.set(index, head + CAPACITY);
+        head++;
+        return true;
+    }
+
+    private static void format(StringBuilder out, Entry entry, DateFormatter dates) {
+        dates.append(out, entry.time);
+        out.append(' ').append(entry.level.name()).append(' ');
+        String template = entry.template;
+        String[] args = { entry.arg1, entry.arg2 };
+        int next = 0;
+        int from = 0;
+        int at;
+        while (next < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            out.append(template, from, at).append(args[next++]);
+            from = at + 2;
+        }
+        out.append(template, from, template.length()).append('\n');
+    }
+
+    // formats timestamps, the date part only changes once a second
+    private static final class DateFormatter {
+        private final ZoneId zone = ZoneId.systemDefault();
+        private long second = -1;
+        private String prefix;
+
+        void append(StringBuilder out, long millis) {
+            long sec = Math.floorDiv(millis, 1000);
+            if (sec != second) {
+                second = sec;
+                LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochSecond(sec), zone);
+                prefix = String.format("%04d-%02d-%02d %02d:%02d:%02d.", t.getYear(), t.getMonthValue(),
+                        t.getDayOfMonth(), t.getHour(), t.getMinute(), t.getSecond());
+            }
+            int ms = (int) Math.floorMod(millis, 1000L);
+            out.append(prefix).append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10))
+                    .append((char) ('0' + ms % 10));
+        }
+    }
+
+    // where the text ends up: stdout, or a file that rolls over at maxBytes
+    private static final class Sink {
+        private final File file;
+        private final long maxBytes;
+        private OutputStream out;
+        private long size;
+
+        Sink(File file, long maxBytes) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+        }
+
+        void write(StringBuilder text) {
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            try {
+                if (out == null) {
+                    open();
+                }
+                out.write(bytes);
+                size += bytes.length;
+            } catch (IOException e) {
+                // nowhere else to report it, fall back to the console
+                System.err.println("[SERVER] Log write failed: " + e.getMessage());
+                System.out.write(bytes, 0, bytes.length);
+            }
+        }
+
+        void flush() {
+            try {
+                if (out != null) {
+                    out.flush();
+                }
+                if (file != null && maxBytes > 0 && size >= maxBytes) {
+                    roll();
+                }
+            } catch (IOException e) {
+                System.err.println("[SERVER] Log flush failed: " + e.getMessage());
+            }
+        }
+
+        private void open() throws IOException {
+            if (file == null) {
+                out = System.out;
+                return;
+            }
+            out = new FileOutputStream(file, true);
+            size = file.length();
+        }
+
+        // server.log -> server.log.1 -> server.log.2, the oldest one is dropped
+        private void roll() throws IOException {
+            out.close();
+            out = null;
+            for (int i = LOG_FILES - 1; i > 0; i--) {
+                File older = new File(file.getPath() + "." + i);
+                File newer = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+                if (newer.exists()) {
+                    older.delete();
+                    newer.renameTo(older);
+                }
+            }
+            size = 0;
+        }
+
+        void close() {
+            if (file != null && out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+
+public class ServerStats {
+    /**
+     * Server-wide counters, shown to users with the STATS command.
+     * Counters are LongAdders so lots of threads can bump them without
+     * fighting over one cache line; gauges are read only when someone asks.
+     */
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    // get (or create) a counter, callers keep the result instead of looking it up every time
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    // register a value that is computed when stats are requested
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter != null) {
+            return counter.sum();
+        }
+        LongSupplier gauge = gauges.get(name);
+        return gauge != null ? gauge.getAsLong() : 0;
+    }
+
+    // everything we know, sorted by name
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return result;
+    }
+}
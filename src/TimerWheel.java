@@ -0,0 +1,169 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class TimerWheel implements Runnable {
+    /**
+     * A hashed timer wheel: one thread and a ring of slots, one slot per tick.
+     * A timeout goes into the slot its deadline falls in (with a count of full
+     * turns to wait if it's further out than one turn), and each tick only
+     * looks at the one slot that's due, so the cost of a tick doesn't grow
+     * with the number of connections the way a priority queue's does. New
+     * timeouts are handed over through a lock-free queue and cancelling just
+     * flips a flag, the wheel thread drops cancelled ones when it meets them.
+     * Deadlines are rounded up to the next tick. Tasks run on the wheel
+     * thread, so they should only check a flag or hand the work on.
+     */
+
+    private final long tickNanos;
+    private final Slot[] slots;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(); // scheduled and not yet run or cancelled
+    private final long startNanos;
+    private volatile boolean running;
+    private Thread thread;
+    private long tick; // the next tick to run, only the wheel thread touches this
+
+    // one scheduled task, cancel() it if it isn't needed any more
+    public final class Timeout {
+        private static final int WAITING = 0, CANCELLED = 1, DONE = 2;
+
+        private final Runnable task;
+        private final long deadlineTick;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long rounds; // full turns of the wheel still to wait
+        private Timeout next; // in its slot
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        // false if it has already run (or was cancelled before)
+        public boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // the timeouts hashed to one slot, a plain linked list only the wheel thread touches
+    private static final class Slot {
+        Timeout head;
+    }
+
+    // slots is rounded up to a power of two, one turn of the wheel is slots * tickMillis
+    public TimerWheel(long tickMillis, int slots) {
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    public void start(String name) {
+        running = true;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // run task once, delayMillis from now (give or take a tick). safe from any thread
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = (System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis))
+                + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(task, ticks);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    // how many timeouts are waiting, for STATS
+    public int pending() {
+        return pending.get();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            // sleep until the next tick is due
+            long wait = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    continue; // stop() wants us, running says whether to go on
+                }
+            }
+            transferAdded();
+            expire(slots[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    // move newly scheduled timeouts into their slots
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() != Timeout.WAITING) {
+                continue;
+            }
+            // anything already overdue goes in the slot being run right now
+            long at = Math.max(timeout.deadlineTick, tick);
+            timeout.rounds = (at - tick) / slots.length;
+            Slot slot = slots[(int) (at & mask)];
+            timeout.next = slot.head;
+            slot.head = timeout;
+        }
+    }
+
+    // run what's due in this slot, count down the ones due on a later turn
+    private void expire(Slot slot) {
+        Timeout previous = null;
+        Timeout timeout = slot.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean remove;
+            if (timeout.state.get() != Timeout.WAITING) {
+                remove = true; // cancelled, just forget it
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+                remove = false;
+            } else {
+                remove = true;
+                if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.DONE)) {
+                    pending.decrementAndGet();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        ServerLog.error("[SERVER] Timer task failed: {}", e.getMessage());
+                    }
+                }
+            }
+            if (remove) {
+                if (previous == null) {
+                    slot.head = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+            } else {
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+}
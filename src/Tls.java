@@ -0,0 +1,145 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public final class Tls {
+    /**
+     * The TLS setup shared by the server, the client and the benchmark.
+     * chat.jks is loaded and turned into an SSLContext once per process, and
+     * every connection comes from that one context, so its session cache
+     * carries over: a client that reconnects to the same server from the same
+     * JVM resumes its session instead of doing the full key exchange again.
+     * The server side also picks the protocol versions and cipher suites (its
+     * own order wins) and counts full vs. resumed handshakes.
+     */
+
+    private static final String KEYSTORE = "chat.jks";
+    private static final char[] KEYSTORE_PASSWORD = "password".toCharArray();
+
+    private static SSLContext clientContext; // one per JVM, so its session cache is shared
+
+    private Tls() {
+    }
+
+    // a server context with the session cache set up from the config
+    public static SSLContext serverContext(ServerConfig config) throws IOException, GeneralSecurityException {
+        // the KeyManagerFactory manages our keys and certificates
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(loadKeyStore(), KEYSTORE_PASSWORD);
+
+        // the SSLContext is the environment where the secure connection happens
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+
+        // resumption needs the session (or the key for its ticket) still in here
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+        sessions.setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+        return context;
+    }
+
+    // the client context, built the first time it's asked for
+    public static synchronized SSLContext clientContext() throws IOException, GeneralSecurityException {
+        if (clientContext == null) {
+            clientContext = newClientContext();
+        }
+        return clientContext;
+    }
+
+    // a client context of its own, with an empty session cache (the benchmark wants full handshakes)
+    public static SSLContext newClientContext() throws IOException, GeneralSecurityException {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(loadKeyStore());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    private static KeyStore loadKeyStore() throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try (FileInputStream fis = new FileInputStream(KEYSTORE)) {
+            ks.load(fis, KEYSTORE_PASSWORD); // unlock the keystore
+        }
+        return ks;
+    }
+
+    // the server's protocols and cipher suites, in the configured order and without any
+    // this JVM doesn't have. the configured order is the server's preference
+    public static SSLParameters serverParameters(SSLContext context, ServerConfig config) {
+        SSLParameters supported = context.getSupportedSSLParameters();
+        SSLParameters params = context.getDefaultSSLParameters();
+        String[] protocols = pick(config.getTlsProtocols(), supported.getProtocols());
+        if (protocols.length > 0) {
+            params.setProtocols(protocols);
+        }
+        String[] ciphers = pick(config.getTlsCiphers(), supported.getCipherSuites());
+        if (ciphers.length > 0) {
+            params.setCipherSuites(ciphers);
+        }
+        params.setUseCipherSuitesOrder(true);
+        return params;
+    }
+
+    // the names in a comma separated list that are also in available, in list order
+    private static String[] pick(String list, String[] available) {
+        Set<String> known = new HashSet<>(Arrays.asList(available));
+        List<String> picked = new ArrayList<>();
+        for (String name : list.split(",")) {
+            name = name.trim();
+            if (known.contains(name)) {
+                picked.add(name);
+            } else if (!name.isEmpty()) {
+                ServerLog.warn("[SERVER] TLS setting {} is not available, skipped", name);
+            }
+        }
+        return picked.toArray(new String[0]);
+    }
+
+    // handshake counters, kept by the server for STATS
+    public static class Metrics {
+        private final LongAdder full;
+        private final LongAdder resumed;
+        private final LongAdder fullMicros;
+        private final LongAdder resumedMicros;
+        private final LongAdder failed;
+        private final LongAdder timedOut;
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        public Metrics(ServerStats stats) {
+            full = stats.counter("tls.handshakes.full");
+            resumed = stats.counter("tls.handshakes.resumed");
+            fullMicros = stats.counter("tls.handshakes.fullMicros");
+            resumedMicros = stats.counter("tls.handshakes.resumedMicros");
+            failed = stats.counter("tls.handshakes.failed");
+            timedOut = stats.counter("tls.handshakes.timedOut");
+            stats.gauge("tls.handshakes.maxMicros", maxMicros::get);
+        }
+
+        // a handshake that started at startMillis (wall clock) finished after elapsedNanos.
+        // a resumed session was made by an earlier handshake, so it's older than this one
+        public void finished(SSLSession session, long startMillis, long elapsedNanos) {
+            long micros = elapsedNanos / 1000;
+            if (session.getCreationTime() < startMillis) {
+                resumed.increment();
+                resumedMicros.add(micros);
+            } else {
+                full.increment();
+                fullMicros.add(micros);
+            }
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+                // someone else raised it, look again
+            }
+        }
+
+        public void failed() {
+            failed.increment();
+        }
+
+        public void timedOut() {
+            timedOut.increment();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.concurrent.atomic.*;
+
+public final class TokenBucket {
+    /**
+     * A token bucket that fills at a fixed rate up to a burst size.
+     * Instead of a token count and a refill timestamp it keeps one number, the
+     * time at which everything taken so far would have been paid back (the
+     * "virtual clock" of GCRA), so taking tokens is a single CAS and there is
+     * no refill work at all. Safe to share between threads, and cheap enough
+     * to check on every command.
+     */
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong paidUntil;
+
+    // rate tokens per second, at most burst of them saved up. a new bucket starts full
+    public TokenBucket(long rate, long burst) {
+        this.nanosPerToken = Math.max(1, 1_000_000_000L / rate);
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+        this.paidUntil = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    // a bucket for the given rate and burst, or null for no limit (rate 0 or less)
+    public static TokenBucket of(long rate, long burst) {
+        return rate > 0 ? new TokenBucket(rate, burst) : null;
+    }
+
+    // take n tokens if they're all there, otherwise take none
+    public boolean tryTake(long n) {
+        long now = System.nanoTime();
+        while (true) {
+            long paid = paidUntil.get();
+            // a bucket that has been idle is full, it doesn't keep filling past the burst
+            long next = Math.max(paid, now - burstNanos) + n * nanosPerToken;
+            if (next > now) {
+                return false;
+            }
+            if (paidUntil.compareAndSet(paid, next)) {
+                return true;
+            }
+        }
+    }
+
+    // return n tokens taken earlier but not used. a bucket can't end up over its burst,
+    // tryTake() never counts more than that
+    public void giveBack(long n) {
+        paidUntil.addAndGet(-n * nanosPerToken);
+    }
+
+    // true if the bucket has filled all the way up again
+    public boolean isFull() {
+        return paidUntil.get() <= System.nanoTime() - burstNanos;
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.*;
+
+public class VerbTable<E extends Enum<E>> {
+    /**
+     * Case-insensitive lookup from a command word to an enum constant.
+     * The table is built once from the enum's names and looked up straight
+     * from a slice of the input line, so finding a command doesn't need
+     * substring(), toUpperCase() or a string switch.
+     */
+
+    private final E[] slots; // open addressing, null means empty
+    private final int mask;
+
+    public VerbTable(E[] verbs) {
+        int size = Integer.highestOneBit(Math.max(1, verbs.length) * 4 - 1) << 1; // at most 1/4 full
+        this.slots = Arrays.copyOf(verbs, size);
+        Arrays.fill(slots, null);
+        this.mask = size - 1;
+        for (E verb : verbs) {
+            String name = verb.name();
+            // matches() folds case by clearing one bit, which is only right for A-Z
+            for (int j = 0; j < name.length(); j++) {
+                if (name.charAt(j) < 'A' || name.charAt(j) > 'Z') {
+                    throw new IllegalArgumentException("Verb must be A-Z only: " + name);
+                }
+            }
+            int i = hash(name, 0, name.length()) & mask;
+            while (slots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = verb;
+        }
+    }
+
+    // the verb spelled by text[start, end) in any case, or null
+    public E find(String text, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return null;
+        }
+        int i = hash(text, start, end) & mask;
+        E verb;
+        while ((verb = slots[i]) != null) {
+            String name = verb.name();
+            if (name.length() == length && matches(text, start, name)) {
+                return verb;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    // compare against an upper case name, ASCII letters only
+    private static boolean matches(String text, int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if ((text.charAt(start + i) & ~0x20) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // hash that ignores ASCII case, so "join" and "JOIN" land in the same slot
+    private static int hash(String text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + (text.charAt(i) & ~0x20);
+        }
+        return h ^ (h >>> 16);
+    }
+}